@@ -0,0 +1,131 @@
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Checks that the colour filters don't allocate anything per pixel. Run it from the
+ * command line:
+ * <pre>
+ *   java AllocationCheck [megapixels]
+ * </pre>
+ * Each filter runs a few times first, so the JIT compiler has done its work, then
+ * once more while the bytes allocated by every thread are counted (see
+ * Metrics.allocatedBytes()). The bands and row buffers a filter makes come to a few
+ * kilobytes however big the image is, while one int[4] per pixel (what unpackPixel()
+ * costs) would be over 20 bytes a pixel. A filter fails if it allocates more than
+ * MAX_BYTES_PER_PIXEL bytes for each pixel of the image.
+ * <p>
+ * The channel getters (Processor.getRed() and the rest) are also checked on their
+ * own, in a loop over every pixel on this thread, which must allocate nothing at all.
+ * <p>
+ * Prints a line for each check and exits with 1 if any of them failed.
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public class AllocationCheck
+{
+    private static final double MAX_BYTES_PER_PIXEL = 0.01;  // 40 KB on a 4 MP image
+    private static final int WARMUP = 5;
+
+    // The filters that read and write every pixel's channels. The Grayscale button makes Luma;
+    // Edit.GREYSCALE isn't checked, it is kept going through Java2D's colour conversion (which
+    // allocates per pixel) for code that asks for it by name.
+    private static final Edit[] COLOUR_EDITS = { Edit.GREENIFY, Edit.REDIFY, Edit.BLUEIFY, Edit.LUMA,
+        Edit.NEGATIVE, Edit.BRIGHTEN, Edit.SCRAMBLE };
+
+    private static volatile int sink;  // Keeps the JIT from throwing away unused results
+
+    /**
+     * Runs one edit and checks how much it allocated.
+     *
+     * @param edit  The edit to run
+     * @param bi    The image to run it on (changed)
+     * @return boolean  True if it allocated less than MAX_BYTES_PER_PIXEL per pixel
+     */
+    public static boolean check (Edit edit, BufferedImage bi)
+    {
+        for (int i = 0; i < WARMUP; i++)
+        {
+            edit.apply (bi);
+        }
+        long before = Metrics.allocatedBytes();
+        edit.apply (bi);
+        long allocated = Metrics.allocatedBytes() - before;
+        long pixels = (long) bi.getWidth() * bi.getHeight();
+        return report (edit.getName(), allocated, pixels, allocated <= MAX_BYTES_PER_PIXEL * pixels);
+    }
+
+    /**
+     * Reads every channel of every pixel with the getters, and checks that this thread
+     * allocated nothing while doing it.
+     *
+     * @param bi    The image to read (not changed)
+     * @return boolean  True if nothing was allocated
+     */
+    public static boolean checkGetters (BufferedImage bi)
+    {
+        int[] pixels = PixelAccess.argbPixels (bi);
+        if (pixels == null)
+            throw new IllegalArgumentException ("Needs a TYPE_INT_ARGB image");
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return report ("channel getters", 0, pixels.length, true);
+        com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+
+        for (int i = 0; i < WARMUP; i++)
+        {
+            sink += sumChannels (pixels);
+        }
+        long id = Thread.currentThread().getId();
+        long before = counter.getThreadAllocatedBytes (id);
+        int total = sumChannels (pixels);
+        long allocated = counter.getThreadAllocatedBytes (id) - before;
+        sink += total;
+        return report ("channel getters", allocated, pixels.length, allocated == 0);
+    }
+
+    /**
+     * The loop the colour filters used to run through unpackPixel(), with the getters
+     * instead.
+     */
+    private static int sumChannels (int[] pixels)
+    {
+        int total = 0;
+        for (int p : pixels)
+        {
+            total += Processor.getAlpha (p) + Processor.getRed (p) + Processor.getGreen (p) + Processor.getBlue (p);
+        }
+        return total;
+    }
+
+    private static boolean report (String name, long allocated, long pixels, boolean passed)
+    {
+        System.out.printf ("%-4s %-16s %12d bytes %10.4f bytes/pixel%n",
+            passed ? "ok" : "FAIL", name, allocated, allocated / (double) pixels);
+        return passed;
+    }
+
+    /**
+     * Command line entry point, see the class comment for the arguments.
+     *
+     * @param args  The command line arguments
+     */
+    public static void main (String[] args)
+    {
+        double megapixels = (args.length > 0) ? Double.parseDouble (args[0]) : 4;
+        if (Metrics.allocatedBytes() == 0)
+        {
+            System.out.println ("This JVM can't count allocated bytes, nothing checked");
+            return;
+        }
+
+        BufferedImage bi = ProcessorBenchmark.randomImage (megapixels, BufferedImage.TYPE_INT_ARGB);
+        boolean passed = checkGetters (bi);
+        for (Edit edit : COLOUR_EDITS)
+        {
+            passed &= check (edit, bi);
+        }
+        System.exit (passed ? 0 : 1);
+    }
+}
@@ -1,8 +1,10 @@
 import greenfoot.*;  // (World, Actor, GreenfootImage, Greenfoot and MouseInfo)
+import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
 import javax.swing.JOptionPane;
-import java.util.ArrayList;
-import java.awt.image.BufferedImage;
 /**
  * Starter code for Image Manipulation Array Assignment.
  * 
@@ -23,11 +25,12 @@ public class Background extends World
 {
     // Constants:
     private final String STARTING_FILE = "patryu.jpg";
+    private final boolean PROXY_EDITING = true;  // Edit a preview of big images straight away, the full size image only on export or when idle
+    private final String UNDO_MODE = "tiles";  // "tiles": keep changed tiles, "log": reverse or replay edits, "compressed": keep compressed copies
+    private final int SMALL_EXPORT_SIZE = 1024;  // Export All also writes a JPG that fits in a box this size
 
     // Objects and Variables:
 
-    private int edits;  // How many edits (filter button presses) are made. Helps determine index of ArrayList of previous images.
-
     private ImageHolder image;
 
     // Enacts various filters
@@ -43,16 +46,21 @@ public class Background extends World
     private TextButton scrambleButton;
 
     private TextButton undoButton;
+    private TextButton redoButton;
+    private TextButton cancelButton;  // Stops the edit that is running
 
     // Export canvas to external PNG or JPG file
     private TextButton exportPNGButton;
     private TextButton exportJPGButton;
+    private TextButton exportAllButton;  // PNG, JPG and a small JPG at once
     
     private TextButton openFile;
 
     private String fileName;
 
-    private ArrayList<BufferedImage> images;  // List of previous images, used for undo function
+    private EditRunner runner;  // Makes edits, undo and redo in the background, keeps the history of previous states
+    private ProxyEditor proxy;  // Used instead of runner to edit the preview of a big image (see PROXY_EDITING), otherwise null
+    private ExportService exports;  // Writes exported files in the background
 
     /**
      * Constructor for objects of class Background.
@@ -63,10 +71,8 @@ public class Background extends World
         // Create a new world with 960x768 cells with a cell size of 1x1 pixels.
         super(960, 768, 1); 
 
-        edits = 0;
-
         // Initialize buttons and the image
-        image = new ImageHolder(STARTING_FILE);
+        image = new ImageHolder(STARTING_FILE, PROXY_EDITING);
         blueButton = new TextButton(" [ Blue-ify ] ");
         redButton = new TextButton(" [ Red-ify ] ");
         greenButton = new TextButton(" [ Green-ify ] ");
@@ -79,9 +85,12 @@ public class Background extends World
         scrambleButton = new TextButton(" [ Scramble! ] ");
 
         undoButton = new TextButton(" [ Undo ] ");
+        redoButton = new TextButton(" [ Redo ] ");
+        cancelButton = new TextButton(" [ Cancel ] ");
 
         exportPNGButton = new TextButton(" [ Export as PNG ] ");
         exportJPGButton = new TextButton(" [ Export as JPG ] ");
+        exportAllButton = new TextButton(" [ Export All ] ");
         openFile = new TextButton(" [ Open File: " + STARTING_FILE + " ] ");
 
         // Add objects to the screen
@@ -99,14 +108,16 @@ public class Background extends World
         addObject (scrambleButton, 806, 352);
 
         addObject (undoButton, 550, 24);
+        addObject (redoButton, 626, 24);
+        addObject (cancelButton, 710, 24);
 
         addObject (exportPNGButton, 300, 24);
         addObject (exportJPGButton, 440, 24);
+        addObject (exportAllButton, 803, 416);
         addObject (openFile, 105, 24);
 
-        // Initialize ArrayList
-        images = new ArrayList<BufferedImage>();
-        images.add(Processor.deepCopy(image.getBufferedImage()));  // Set original image as first object
+        exports = new ExportService();
+        startEditing();  // Original image is the first state
     }
 
     /**
@@ -114,6 +125,28 @@ public class Background extends World
      */
     public void act ()
     {
+        if (proxy != null)
+        {
+            try
+            {
+                proxy.update();  // Renders the full size image once the user stops clicking
+            }
+            catch (UncheckedIOException e)  // The full size image is decoded from its file the first time it is needed
+            {
+                JOptionPane.showMessageDialog(null, "Sorry, there was an error opening the full size image.");
+            }
+            showText(proxy.getStatus(), 370, 750);
+        }
+        else
+        {
+            runner.update();  // Show the result of a finished edit
+            showText(runner.getStatus(), 370, 750);  // Progress indicator, blank when idle
+        }
+        showText(exports.getStatus(), 803, 448);
+        for (ExportService.Job job : exports.update())
+        {
+            showExportResult(job);  // Popup message once all of an export's files are written
+        }
         checkMouse();
     }
 
@@ -127,51 +160,51 @@ public class Background extends World
         {
             // Each of these calls a different filter method in the Processor class.
             if (Greenfoot.mouseClicked(blueButton)){
-                Processor.blueify(image.getBufferedImage());
-                addToList();  // Adds newly created image to ArrayList of edited images.
+                applyEdit(Edit.BLUEIFY);  // Edits image and adds it to the history of edited images.
             }
             else if (Greenfoot.mouseClicked(redButton)){
-                Processor.redify(image.getBufferedImage());
-                addToList();
+                applyEdit(Edit.REDIFY);
             }
             else if (Greenfoot.mouseClicked(greenButton)){
-                Processor.greenify(image.getBufferedImage());
-                addToList();
+                applyEdit(Edit.GREENIFY);
             }
             else if (Greenfoot.mouseClicked(hRevButton)){
-                Processor.flipHorizontal(image.getBufferedImage());
-                addToList();
+                applyEdit(Edit.FLIP_HORIZONTAL);
             }
             else if (Greenfoot.mouseClicked(vRevButton)){
-                Processor.flipVertical(image.getBufferedImage());
-                addToList();
+                applyEdit(Edit.FLIP_VERTICAL);
             }
             else if (Greenfoot.mouseClicked(gScaleButton)){
-                Processor.greyScale(image.getBufferedImage());
-                addToList();
+                applyEdit(Edit.LUMA);  // Rec. 709 luma, much quicker than the old Java2D conversion (Edit.GREYSCALE)
             }
             else if (Greenfoot.mouseClicked(pixelButton)){
-                Processor.pixelate(image.getBufferedImage());
-                addToList();
+                applyEdit(Edit.PIXELATE);
             }
             else if (Greenfoot.mouseClicked(negButton)){
-                Processor.negative(image.getBufferedImage());
-                addToList();
+                applyEdit(Edit.NEGATIVE);
             }
             else if (Greenfoot.mouseClicked(brightButton)){
-                Processor.brighten(image.getBufferedImage());
-                addToList();
+                applyEdit(Edit.BRIGHTEN);
             }
             else if (Greenfoot.mouseClicked(scrambleButton)){
-                Processor.scramble(image.getBufferedImage());
-                addToList();
+                applyEdit(Edit.SCRAMBLE);
             }
 
             else if (Greenfoot.mouseClicked(undoButton)){
-                if (edits > 0){  // Will not undo if no edits have been made
-                    Processor.undoEdit(image.getBufferedImage(), images.get(edits - 1));
-                    edits--;  // Will access previous image in ArrayList the next time this is called
-                }
+                if (proxy != null)
+                    proxy.undo();  // Will not undo if no edits have been made
+                else
+                    runner.undo();
+            }
+            else if (Greenfoot.mouseClicked(redoButton)){
+                if (proxy != null)
+                    proxy.redo();  // Will not redo if nothing has been undone
+                else
+                    runner.redo();
+            }
+            else if (Greenfoot.mouseClicked(cancelButton)){
+                if (runner != null)
+                    runner.cancel();  // Image goes back to how it was before the running edit
             }
 
             else if (Greenfoot.mouseClicked(exportPNGButton)){
@@ -180,6 +213,9 @@ public class Background extends World
             else if (Greenfoot.mouseClicked(exportJPGButton)){
                 exportJPG ();
             }
+            else if (Greenfoot.mouseClicked(exportAllButton)){
+                exportAll ();
+            }
             else if (Greenfoot.mouseClicked(openFile))
             {
                 openFile ();
@@ -188,12 +224,67 @@ public class Background extends World
     }
 
     /**
-     * Adds image being displayed at the time of calling to the ArrayList of images, then increments edit counter.
+     * Queues an edit to the image being displayed. The result is added to the history
+     * of images, and shown once it is finished.
+     * 
+     * @param edit  The edit to make
+     */
+    private void applyEdit (Edit edit)
+    {
+        if (proxy != null)
+            proxy.edit(edit);  // Instant, only changes the preview
+        else
+            runner.edit(edit);
+    }
+
+    /**
+     * Starts editing a newly opened image, either through its preview (if it is big and
+     * PROXY_EDITING is on) or in full with an undo history.
+     */
+    private void startEditing ()
+    {
+        if (PROXY_EDITING && image.isLarge())
+        {
+            proxy = new ProxyEditor(image);
+            runner = null;
+        }
+        else
+        {
+            proxy = null;
+            runner = new EditRunner(image, createHistory());
+        }
+    }
+
+    /**
+     * Creates the undo history chosen by UNDO_MODE: only tiles changed by an edit, only
+     * the edits themselves, or compressed copies are stored. Large images always store
+     * the edits, since the other histories copy every pixel onto the heap.
+     * 
+     * @return EditHistory  New, empty history for the image on screen
+     */
+    private EditHistory createHistory ()
+    {
+        if (UNDO_MODE.equals("log") || image.isLarge())
+            return new OperationLog();  // Keyframes of large images are kept in scratch files too
+        else if (UNDO_MODE.equals("compressed"))
+            return new CompressedHistory();
+        else
+            return new TileHistory();
+    }
+
+    /**
+     * Checks that no edits are still running, and asks the user to wait if there are.
+     * 
+     * @return boolean  True if the image on screen is up to date, otherwise false
      */
-    private void addToList ()
+    private boolean isIdle ()
     {
-        images.add(Processor.deepCopy(image.getBufferedImage()));  // Avoiding passing by reference
-        edits++;
+        if (runner != null && runner.isBusy())
+        {
+            JOptionPane.showMessageDialog(null, "Please wait for the edits to finish.");
+            return false;
+        }
+        return true;
     }
 
     /**
@@ -201,6 +292,9 @@ public class Background extends World
      */
     private void openFile ()
     {
+        if (!isIdle())
+            return;
+
         // Use a JOptionPane to get file name from user
         String fileName = JOptionPane.showInputDialog("Please input a file name with extension");
 
@@ -209,9 +303,7 @@ public class Background extends World
         {
             String display = " [ Open File: " + fileName + " ] ";
             openFile.update (display);
-            images.clear();  // Cannot undo back to previous image
-            edits = 0;
-            images.add(Processor.deepCopy(image.getBufferedImage()));  // Reset everything, set first object in ArrayList to new image
+            startEditing();  // Cannot undo back to previous image, new image is the first state
         }
     }
 
@@ -220,29 +312,83 @@ public class Background extends World
      */
     private void exportPNG ()
     {
-        // Use a JOptionPane to get file name from user
-        String fileName = JOptionPane.showInputDialog("Please input a file name, without extensions");
+        String fileName = askExportName();
+        if (fileName != null)
+            export(Arrays.asList(new ExportService.Target(new File(fileName + ".png"), "png")));
+    }
 
-        // If the export operation is successful, display a popup message
-        if (image.exportPNG (fileName))
+    /**
+     * Export canvas to a new JPG file in the directory of the program.
+     */
+    private void exportJPG ()
+    {
+        String fileName = askExportName();
+        if (fileName != null)
+            export(Arrays.asList(new ExportService.Target(new File(fileName + ".jpg"), "jpg")));
+    }
+
+    /**
+     * Export canvas to a PNG, a JPG and a small JPG at once, in the directory of the program.
+     */
+    private void exportAll ()
+    {
+        String fileName = askExportName();
+        if (fileName != null)
         {
-            JOptionPane.showMessageDialog(null, "Image successfully exported: '" + fileName + ".png'");
+            export(Arrays.asList(new ExportService.Target(new File(fileName + ".png"), "png"),
+                new ExportService.Target(new File(fileName + ".jpg"), "jpg"),
+                new ExportService.Target(new File(fileName + "-small.jpg"), "jpg", SMALL_EXPORT_SIZE, SMALL_EXPORT_SIZE)));
         }
     }
 
     /**
-     * Export canvas to a new JPG file in the directory of the program.
+     * Asks the user for the name of the files to export to, once no edits are running.
+     * 
+     * @return String   The name, without an extension, or null if there is nothing to export
      */
-    private void exportJPG ()
+    private String askExportName ()
     {
+        if (!isIdle())
+            return null;
+
         // Use a JOptionPane to get file name from user
-        String fileName = JOptionPane.showInputDialog("Please input a file name, without extensions");
+        return JOptionPane.showInputDialog("Please input a file name, without extensions");
+    }
+
+    /**
+     * Starts writing the canvas to files in the background. Editing can carry on
+     * straight away, and a popup message says when they are done.
+     * 
+     * @param targets   The files to write
+     */
+    private void export (List<ExportService.Target> targets)
+    {
+        if (proxy != null)
+            proxy.export(exports, targets);  // Renders the full size image in the background first
+        else
+            exports.export(image.getBufferedImage(), targets);
+    }
 
-        // If the export operation is successful, display a popup message
-        if (image.exportJPG (fileName))
+    /**
+     * Tells the user that an export has finished, or what went wrong.
+     * 
+     * @param job   The finished export
+     */
+    private void showExportResult (ExportService.Job job)
+    {
+        if (job.getFailures().isEmpty())
         {
-            JOptionPane.showMessageDialog(null, "Image successfully exported: '" + fileName + ".jpg'");
+            StringBuilder names = new StringBuilder();
+            for (File file : job.getFiles())
+            {
+                names.append(names.length() == 0 ? "'" : ", '").append(file.getName()).append("'");
+            }
+            JOptionPane.showMessageDialog(null, "Image successfully exported: " + names);
+        }
+        else
+        {
+            JOptionPane.showMessageDialog(null, "Sorry, there was an error exporting the image.\n"
+                + String.join("\n", job.getFailures()));
         }
     }
 }
-
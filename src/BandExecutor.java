@@ -0,0 +1,209 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits work on an image into bands of rows and runs the bands on a ForkJoinPool,
+ * so every core gets a share of a big image instead of just one.
+ * <p>
+ * Each band only ever touches its own rows, so the result is exactly the same as
+ * running all of the rows one after another on a single thread. Small images are
+ * not worth splitting up and run straight away on the calling thread.
+ * <p>
+ * Inside EditProgress.run() every band first checks whether the edit has been
+ * cancelled, and reports its pixels once it is done. Work on the calling thread is
+ * then cut into small slices too, so it can be stopped part way through.
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public class BandExecutor
+{
+    /**
+     * The work done for one band: rows start (inclusive) to end (exclusive).
+     */
+    public interface Band
+    {
+        void process (int start, int end);
+    }
+
+    private static final int SLICE_PIXELS = 64 * 1024;  // Work between cancel checks when running on the calling thread
+
+    private static int parallelism = Runtime.getRuntime().availableProcessors();
+    private static int sequentialThreshold = 256 * 1024;  // Images with fewer pixels than this are not split up
+    private static Workers pool;  // Pool for the current parallelism, made when first needed
+
+    /**
+     * Sets how many threads may work on one image at a time. 1 turns parallel
+     * execution off completely.
+     *
+     * @param threads   Number of worker threads (at least 1)
+     */
+    public static synchronized void setParallelism (int threads)
+    {
+        if (threads < 1)
+            throw new IllegalArgumentException ("Parallelism must be at least 1: " + threads);
+        if (threads != parallelism && pool != null)
+        {
+            pool.retire();  // Calls still using it finish, the next call makes a new pool
+            pool = null;
+        }
+        parallelism = threads;
+    }
+
+    /**
+     * @return int  Number of threads that may work on one image at a time
+     */
+    public static synchronized int getParallelism ()
+    {
+        return parallelism;
+    }
+
+    /**
+     * Sets the smallest amount of work (in pixels) that is split up between threads.
+     * Anything smaller runs on the calling thread.
+     *
+     * @param pixels    Number of pixels
+     */
+    public static synchronized void setSequentialThreshold (int pixels)
+    {
+        sequentialThreshold = Math.max (0, pixels);
+    }
+
+    /**
+     * @return int  Smallest amount of work (in pixels) that is split up between threads
+     */
+    public static synchronized int getSequentialThreshold ()
+    {
+        return sequentialThreshold;
+    }
+
+    /**
+     * Runs band over the rows 0 to rows (exclusive), split between threads if the
+     * work is big enough. Returns once every row is done.
+     * <p>
+     * If this thread is inside EditProgress.run() and the edit is cancelled, the
+     * bands that haven't started yet are skipped and a CancellationException is thrown.
+     *
+     * @param rows          Number of rows (or groups of rows) to process
+     * @param pixelsPerRow  Roughly how many pixels each row touches
+     * @param band          The work to do for a band of rows
+     */
+    public static void run (int rows, long pixelsPerRow, Band band)
+    {
+        EditProgress progress = EditProgress.current();
+        if (progress != null)
+        {
+            progress.check();
+            progress.begin (rows * pixelsPerRow);
+            Band work = band;
+            band = (start, end) -> {
+                progress.check();  // Don't start any more bands once cancelled
+                work.process (start, end);
+                progress.advance ((end - start) * pixelsPerRow);
+            };
+        }
+
+        Workers workers;
+        int threads;
+        synchronized (BandExecutor.class)
+        {
+            threads = parallelism;
+            if (threads <= 1 || rows < 2 || rows * pixelsPerRow < sequentialThreshold)
+            {
+                workers = null;
+            }
+            else
+            {
+                if (pool == null)
+                    pool = new Workers (threads);
+                workers = pool;
+                workers.users++;  // setParallelism() can't shut it down under us now
+            }
+        }
+
+        if (workers == null)
+        {
+            // All in one go, unless it may have to stop part way through
+            int sliceRows = (progress == null) ? rows : (int) Math.max (1, SLICE_PIXELS / Math.max (1, pixelsPerRow));
+            for (int start = 0; start < rows; start += sliceRows)
+            {
+                band.process (start, Math.min (rows, start + sliceRows));
+            }
+            return;
+        }
+
+        try
+        {
+            // A few bands per thread, so a thread that finishes early can help the others
+            int bandRows = Math.max (1, rows / (threads * 4));
+            workers.pool.invoke (new BandTask (band, 0, rows, bandRows));
+        }
+        finally
+        {
+            synchronized (BandExecutor.class)
+            {
+                workers.users--;
+                if (workers.retired && workers.users == 0)
+                    workers.pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * A ForkJoinPool and the number of run() calls using it. A pool that has been
+     * replaced by setParallelism() is only shut down once the last of them is done.
+     * The counts are guarded by the lock on BandExecutor.class.
+     */
+    private static class Workers
+    {
+        final ForkJoinPool pool;
+        int users;
+        boolean retired;
+
+        Workers (int threads)
+        {
+            pool = new ForkJoinPool (threads);
+        }
+
+        void retire ()
+        {
+            retired = true;
+            if (users == 0)
+                pool.shutdown();
+        }
+    }
+
+    /**
+     * Keeps cutting its rows in half until they are small enough to process.
+     */
+    private static class BandTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Band band;
+        private final int start;
+        private final int end;
+        private final int bandRows;
+
+        BandTask (Band band, int start, int end, int bandRows)
+        {
+            this.band = band;
+            this.start = start;
+            this.end = end;
+            this.bandRows = bandRows;
+        }
+
+        protected void compute ()
+        {
+            if (end - start <= bandRows)
+            {
+                band.process (start, end);
+            }
+            else
+            {
+                int middle = (start + end) >>> 1;
+                invokeAll (new BandTask (band, start, middle, bandRows), new BandTask (band, middle, end, bandRows));
+            }
+        }
+    }
+}
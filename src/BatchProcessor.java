@@ -0,0 +1,367 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+
+/**
+ * Runs a list of edits over a whole folder of images from the command line, without
+ * Greenfoot:
+ * <pre>
+ *   java BatchProcessor [-threads N] [-inflight N] [-metrics file] [-crop x,y,w,h] [-subsample N]
+ *                       [-orient N] [-mono 601|709] input output format [edit...]
+ *
+ *   java BatchProcessor scans out png greyScale negative
+ *   java BatchProcessor "scans/*.jpg" out jpg pixelate
+ *   java BatchProcessor -subsample 4 scans thumbs jpg
+ *   java BatchProcessor -orient 6 camera upright jpg
+ *   java BatchProcessor -mono 709 scans grey png brighten
+ * </pre>
+ * input is a folder (every image in it) or a file name pattern like "scans/*.jpg".
+ * The results are written to the output folder with the same names and the new
+ * format's extension. Edits are named after their Processor methods (see Edit) and
+ * are applied in order, through a FilterPipeline.
+ * <p>
+ * Files are processed at the same time by a fixed number of worker threads
+ * (-threads, one per core by default). At most -inflight images (threads + 1 by
+ * default) are decoded or being worked on at once: the next file isn't handed out
+ * until one has been written, so memory stays bounded however many files there are.
+ * <p>
+ * Format "raw" writes RasterFiles: uncompressed, so the next run can map them straight
+ * back in. Use it for the steps in between when a job is split over several runs.
+ * <p>
+ * -metrics writes the time spent decoding, editing and encoding to a file at the end
+ * (see Metrics).
+ * <p>
+ * -crop only decodes (and edits and writes) a rectangle of each image, and
+ * -subsample N only every N-th pixel of every N-th row (see ImageDecoder). The
+ * pixels left out are skipped while decoding, so they cost no memory. With no edits
+ * after the format, that makes thumbnails (or crops) of every image.
+ * <p>
+ * -orient N turns every image the right way up from EXIF orientation N (1 to 8, see
+ * Transforms.orient()) before the edits, for a folder of photos from one camera held
+ * the same way. Given no edits, it only turns them.
+ * <p>
+ * -mono turns every image into 8-bit greyscale (see LumaOp) with Rec. 601 or Rec. 709
+ * weights before the edits. Each image then takes a quarter of the memory, so the
+ * edits have less to go through.
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public class BatchProcessor
+{
+    private final List<Edit> edits;
+    private final File outputFolder;
+    private final String format;
+    private final int threads;
+    private final int inFlight;
+    private Rectangle crop;     // Part of each image to decode, or null for all of it
+    private int subsampling = 1;
+    private int orientation = 1;  // EXIF orientation to undo, 1 for none
+    private LumaOp mono;          // Weights to turn images grey with, or null to keep their colours
+
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /**
+     * Construct a BatchProcessor.
+     *
+     * @param edits         Edits to make to every image, in order
+     * @param outputFolder  Folder to write the results to (made if it doesn't exist)
+     * @param format        Format to write, like "png" or "jpg"
+     * @param threads       Number of files to work on at once
+     * @param inFlight      Most images to hold in memory at once (at least threads)
+     */
+    public BatchProcessor (List<Edit> edits, File outputFolder, String format, int threads, int inFlight)
+    {
+        if (threads < 1 || inFlight < threads)
+            throw new IllegalArgumentException ("Need at least 1 thread and as many images in flight as threads");
+        if (!format.equalsIgnoreCase (RasterFile.EXTENSION) && !ImageIO.getImageWritersByFormatName (format).hasNext())
+            throw new IllegalArgumentException ("Unknown output format: " + format);
+        this.edits = new ArrayList<Edit> (edits);
+        this.outputFolder = outputFolder;
+        this.format = format.toLowerCase();
+        this.threads = threads;
+        this.inFlight = inFlight;
+    }
+
+    /**
+     * Only decodes part of each image, or only some of its pixels.
+     *
+     * @param crop          Rectangle of each image to keep, or null for the whole image
+     * @param subsampling   1 to keep every pixel, N to keep every N-th pixel of every N-th row
+     */
+    public void setRegion (Rectangle crop, int subsampling)
+    {
+        if (subsampling < 1)
+            throw new IllegalArgumentException ("Subsampling must be at least 1: " + subsampling);
+        this.crop = crop;
+        this.subsampling = subsampling;
+    }
+
+    /**
+     * Turns every image the right way up before editing it.
+     *
+     * @param orientation   The EXIF orientation (1 to 8) the images were taken in, 1 for none
+     */
+    public void setOrientation (int orientation)
+    {
+        if (orientation < 1 || orientation > 8)
+            throw new IllegalArgumentException ("EXIF orientation must be 1 to 8: " + orientation);
+        this.orientation = orientation;
+    }
+
+    /**
+     * Turns every image into an 8-bit greyscale image before editing it.
+     *
+     * @param luma  LumaOp.REC_601 or LumaOp.REC_709, or null to keep the colours
+     */
+    public void setMono (LumaOp luma)
+    {
+        this.mono = luma;
+    }
+
+    /**
+     * Processes every file, returning once they have all been written (or failed).
+     *
+     * @param files The image files to process
+     * @return int  Number of files that failed
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public int run (List<File> files) throws InterruptedException
+    {
+        if (!outputFolder.isDirectory() && !outputFolder.mkdirs())
+            throw new IllegalArgumentException ("Can't create output folder: " + outputFolder);
+
+        ExecutorService workers = Executors.newFixedThreadPool (threads);
+        Semaphore slots = new Semaphore (inFlight);  // One per image that may be in memory
+        try
+        {
+            for (File file : files)
+            {
+                slots.acquire();  // Wait for an image to be written before decoding another
+                workers.execute (() -> {
+                    try
+                    {
+                        process (file, files.size());
+                    }
+                    finally
+                    {
+                        slots.release();
+                    }
+                });
+            }
+        }
+        finally
+        {
+            workers.shutdown();
+            workers.awaitTermination (Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+        return failed.get();
+    }
+
+    /**
+     * Decodes, edits and writes one file. Runs on a worker thread.
+     */
+    private void process (File file, int total)
+    {
+        try
+        {
+            Metrics.Sample decode = Metrics.start ("decode");
+            BufferedImage bi;
+            if (RasterFile.isRasterFile (file))
+                bi = RasterFile.open (file, false);  // Mapped, not decoded; edits don't change the input file
+            else if (crop != null || subsampling > 1)
+                bi = ImageDecoder.read (file, crop, subsampling);  // Skips the rest while decoding
+            else
+                bi = ImageIO.read (file);
+            if (bi == null)
+                throw new IOException ("Not an image");
+            long pixels = (long) bi.getWidth() * bi.getHeight();
+            decode.stop (pixels);
+
+            bi = Transforms.orient (bi, orientation);  // In place, or one copy for a quarter turn
+            if (mono != null)
+                bi = mono.toGrey (bi);
+            FilterPipeline.of (edits.toArray (new Edit[0])).apply (bi);
+
+            Metrics.Sample encode = Metrics.start ("encode." + format);
+            File output = new File (outputFolder, baseName (file) + "." + format);
+            ImageExporter.write (bi, format, output);  // Converts for JPG as it goes, see ImageExporter
+            encode.stop (pixels);
+            System.out.println ("[" + done.incrementAndGet() + "/" + total + "] " + output);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            failed.incrementAndGet();
+            System.err.println ("[" + done.incrementAndGet() + "/" + total + "] FAILED " + file + ": " + e);
+        }
+    }
+
+    /**
+     * Finds the files named by a folder or file name pattern.
+     *
+     * @param input A folder, a single file, or a pattern like "scans/*.jpg"
+     * @return List<File>   The files, sorted by name
+     */
+    public static List<File> findFiles (String input)
+    {
+        File folder;
+        PathMatcher matcher;
+        File given = new File (input);
+        if (given.isDirectory())
+        {
+            folder = given;
+            matcher = path -> isImageName (path.toString());
+        }
+        else if (given.isFile())
+        {
+            return Arrays.asList (given);
+        }
+        else
+        {
+            // Pattern in the last part of the path, like *.jpg
+            folder = (given.getParentFile() == null) ? new File (".") : given.getParentFile();
+            matcher = FileSystems.getDefault().getPathMatcher ("glob:" + given.getName());
+        }
+
+        List<File> files = new ArrayList<File>();
+        File[] inFolder = folder.listFiles();
+        if (inFolder != null)
+        {
+            for (File file : inFolder)
+            {
+                if (file.isFile() && matcher.matches (Paths.get (file.getName())))
+                    files.add (file);
+            }
+        }
+        files.sort (null);
+        return files;
+    }
+
+    private static boolean isImageName (String name)
+    {
+        int dot = name.lastIndexOf ('.');
+        String suffix = (dot >= 0) ? name.substring (dot + 1) : "";
+        return suffix.equalsIgnoreCase (RasterFile.EXTENSION) || (dot >= 0 && ImageIO.getImageReadersBySuffix (suffix).hasNext());
+    }
+
+    private static Rectangle parseRectangle (String text)
+    {
+        String[] parts = text.split (",");
+        if (parts.length != 4)
+            throw new IllegalArgumentException ("Crop must be x,y,width,height: " + text);
+        Rectangle rectangle = new Rectangle (Integer.parseInt (parts[0].trim()), Integer.parseInt (parts[1].trim()),
+            Integer.parseInt (parts[2].trim()), Integer.parseInt (parts[3].trim()));
+        if (rectangle.width < 1 || rectangle.height < 1)
+            throw new IllegalArgumentException ("Crop must have a positive size: " + text);
+        return rectangle;
+    }
+
+    private static LumaOp parseLuma (String text)
+    {
+        if (text.equals ("601"))
+            return LumaOp.REC_601;
+        if (text.equals ("709"))
+            return LumaOp.REC_709;
+        throw new IllegalArgumentException ("Mono must be 601 or 709: " + text);
+    }
+
+    private static String baseName (File file)
+    {
+        String name = file.getName();
+        int dot = name.lastIndexOf ('.');
+        return (dot > 0) ? name.substring (0, dot) : name;
+    }
+
+    /**
+     * Command line entry point, see the class comment for the arguments.
+     *
+     * @param args  The command line arguments
+     * @throws InterruptedException If interrupted while waiting for the workers
+     */
+    public static void main (String[] args) throws InterruptedException
+    {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int inFlight = -1;
+        String metricsFile = null;
+        Rectangle crop = null;
+        int subsampling = 1;
+        int orientation = 1;
+        LumaOp mono = null;
+        int i = 0;
+        try
+        {
+            for (; i + 1 < args.length && args[i].startsWith ("-"); i += 2)
+            {
+                if (args[i].equals ("-threads"))
+                    threads = Integer.parseInt (args[i + 1]);
+                else if (args[i].equals ("-inflight"))
+                    inFlight = Integer.parseInt (args[i + 1]);
+                else if (args[i].equals ("-metrics"))
+                    metricsFile = args[i + 1];
+                else if (args[i].equals ("-crop"))
+                    crop = parseRectangle (args[i + 1]);
+                else if (args[i].equals ("-subsample"))
+                    subsampling = Integer.parseInt (args[i + 1]);
+                else if (args[i].equals ("-orient"))
+                    orientation = Integer.parseInt (args[i + 1]);
+                else if (args[i].equals ("-mono"))
+                    mono = parseLuma (args[i + 1]);
+                else
+                    throw new IllegalArgumentException ("Unknown option: " + args[i]);
+            }
+            if (args.length - i < 3)  // No edits is fine: the files are only decoded and written again
+                throw new IllegalArgumentException ("Not enough arguments");
+
+            List<Edit> edits = new ArrayList<Edit>();
+            for (int e = i + 3; e < args.length; e++)
+            {
+                edits.add (Edit.forName (args[e]));
+            }
+            List<File> files = findFiles (args[i]);
+            if (files.isEmpty())
+                throw new IllegalArgumentException ("No images found: " + args[i]);
+
+            BatchProcessor batch = new BatchProcessor (edits, new File (args[i + 1]), args[i + 2],
+                threads, (inFlight < 0) ? threads + 1 : inFlight);
+            batch.setRegion (crop, subsampling);
+            batch.setOrientation (orientation);
+            batch.setMono (mono);
+            int failures = batch.run (files);
+            if (metricsFile != null)
+                Metrics.dumpTo (new File (metricsFile));
+            System.exit ((failures == 0) ? 0 : 1);
+        }
+        catch (IOException e)  // Only from writing the metrics
+        {
+            System.err.println ("Couldn't write metrics: " + e);
+            System.exit (1);
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println (e.getMessage());
+            System.err.println ("Usage: java BatchProcessor [-threads N] [-inflight N] [-metrics file] [-crop x,y,w,h]"
+                + " [-subsample N] [-orient N] [-mono 601|709] input output format [edit...]");
+            StringBuilder names = new StringBuilder();
+            for (Edit edit : Edit.values())
+            {
+                names.append (' ').append (edit.getName());
+            }
+            System.err.println ("Edits:" + names);
+            System.exit (2);
+        }
+    }
+}
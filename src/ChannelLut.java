@@ -0,0 +1,407 @@
+import java.awt.image.BufferedImage;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * A colour adjustment that changes red, green and blue each on their own, using a
+ * lookup table of 256 entries per channel. The new value of every possible old
+ * value is worked out once, so changing a pixel is just three table lookups no
+ * matter how complicated the adjustment is. Alpha is never changed.
+ * <p>
+ * Green-ify, Red-ify, Blue-ify, Brighten and Negative are all ChannelLuts (see
+ * Processor), and custom curves and levels can be made with of(), curve() and
+ * levels(). A ChannelLut is a PixelOp, so it can be applied with applyTo() or
+ * PixelAccess.applyPointOp().
+ * <p>
+ * Each output channel can also be read from a different input channel, which is
+ * how Scramble swaps its colours around (see rearrange()). Any number of tables,
+ * swaps included, can be joined into one with then(), which is what FilterPipeline
+ * does to apply a whole chain of colour filters in a single pass.
+ * <p>
+ * The built-in edits also have a kernel that works out all three channels at once
+ * with integer arithmetic (see PackedKernels), which is used instead of the tables
+ * (see withKernel()). KernelCheck makes sure each kernel gives exactly the same
+ * pixels as its table.
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public class ChannelLut implements PixelOp
+{
+    // Channel numbers for rearrange()
+    public static final int RED = 0;
+    public static final int GREEN = 1;
+    public static final int BLUE = 2;
+
+    private static final int[] SHIFT = { 16, 8, 0 };  // Where each channel sits in a packed pixel
+
+    private static final boolean CHECK_KERNELS = Boolean.getBoolean ("photoedit.checkKernels");
+
+    // New value of each channel, already shifted into its place in a packed pixel
+    private final int[] red;
+    private final int[] green;
+    private final int[] blue;
+
+    // Which input channel (RED, GREEN or BLUE) each output channel is looked up from
+    private final int redSource;
+    private final int greenSource;
+    private final int blueSource;
+
+    private final PixelOp kernel;  // Changes pixels the same as the tables but faster, or null
+
+    /**
+     * Construct a ChannelLut from three tables.
+     *
+     * @param red   256 new red values (0-255), indexed by the old red value
+     * @param green 256 new green values (0-255), indexed by the old green value
+     * @param blue  256 new blue values (0-255), indexed by the old blue value
+     */
+    public ChannelLut (int[] red, int[] green, int[] blue)
+    {
+        this (red, green, blue, RED, GREEN, BLUE);
+    }
+
+    /**
+     * Construct a ChannelLut from three tables, where each output channel is looked up
+     * from the chosen input channel.
+     *
+     * @param red           256 new red values (0-255), indexed by the value of redSource
+     * @param green         256 new green values (0-255), indexed by the value of greenSource
+     * @param blue          256 new blue values (0-255), indexed by the value of blueSource
+     * @param redSource     Input channel the new red comes from (RED, GREEN or BLUE)
+     * @param greenSource   Input channel the new green comes from
+     * @param blueSource    Input channel the new blue comes from
+     */
+    public ChannelLut (int[] red, int[] green, int[] blue, int redSource, int greenSource, int blueSource)
+    {
+        this.red = shifted (red, SHIFT[RED], "red");
+        this.green = shifted (green, SHIFT[GREEN], "green");
+        this.blue = shifted (blue, SHIFT[BLUE], "blue");
+        this.redSource = checkChannel (redSource);
+        this.greenSource = checkChannel (greenSource);
+        this.blueSource = checkChannel (blueSource);
+        this.kernel = null;
+    }
+
+    /**
+     * Construct a copy of a ChannelLut that uses a kernel (or the tables, if kernel is null).
+     */
+    private ChannelLut (ChannelLut table, PixelOp kernel)
+    {
+        this.red = table.red;
+        this.green = table.green;
+        this.blue = table.blue;
+        this.redSource = table.redSource;
+        this.greenSource = table.greenSource;
+        this.blueSource = table.blueSource;
+        this.kernel = kernel;
+    }
+
+    /**
+     * Builds a ChannelLut from a function for each channel. Each function is called
+     * once for every value from 0 to 255; results outside 0-255 are clamped.
+     *
+     * @param red   New red value for an old red value
+     * @param green New green value for an old green value
+     * @param blue  New blue value for an old blue value
+     * @return ChannelLut   The finished lookup table
+     */
+    public static ChannelLut of (IntUnaryOperator red, IntUnaryOperator green, IntUnaryOperator blue)
+    {
+        return new ChannelLut (table (red), table (green), table (blue));
+    }
+
+    /**
+     * Builds a ChannelLut that uses the same function for red, green and blue.
+     *
+     * @param channel   New value of a channel for an old value
+     * @return ChannelLut   The finished lookup table
+     */
+    public static ChannelLut of (IntUnaryOperator channel)
+    {
+        int[] table = table (channel);
+        return new ChannelLut (table, table, table);
+    }
+
+    /**
+     * @return ChannelLut   A table that leaves every pixel as it is
+     */
+    public static ChannelLut identity ()
+    {
+        return of (value -> value);
+    }
+
+    /**
+     * Builds a table that only moves channels around: the new red is the old value of
+     * redFrom, and so on. rearrange(BLUE, RED, GREEN) is Scramble.
+     *
+     * @param redFrom   Channel (RED, GREEN or BLUE) to take the new red from
+     * @param greenFrom Channel to take the new green from
+     * @param blueFrom  Channel to take the new blue from
+     * @return ChannelLut   The finished lookup table
+     */
+    public static ChannelLut rearrange (int redFrom, int greenFrom, int blueFrom)
+    {
+        int[] same = table (value -> value);
+        return new ChannelLut (same, same, same, redFrom, greenFrom, blueFrom);
+    }
+
+    /**
+     * Builds a levels adjustment: values at or below black become 0, values at or
+     * above white become 255, and the values in between are stretched out, bent by
+     * gamma (1.0 is a straight line, above 1.0 brightens the mid-tones).
+     *
+     * @param black Input value that becomes black (0-254)
+     * @param white Input value that becomes white (black + 1 to 255)
+     * @param gamma Mid-tone adjustment, greater than 0
+     * @return ChannelLut   The finished lookup table
+     */
+    public static ChannelLut levels (int black, int white, double gamma)
+    {
+        if (black < 0 || white > 255 || black >= white || !(gamma > 0))
+            throw new IllegalArgumentException ("Invalid levels: " + black + ", " + white + ", " + gamma);
+        return of (value -> {
+            double position = Math.min (1.0, Math.max (0.0, (value - black) / (double) (white - black)));
+            return (int) Math.round (255.0 * Math.pow (position, 1.0 / gamma));
+        });
+    }
+
+    /**
+     * Builds a curve adjustment that passes through the given points, joining them
+     * with straight lines. Values before the first point or after the last point
+     * keep the output of that point.
+     *
+     * @param inputs    Old values (0-255), in increasing order
+     * @param outputs   New value (0-255) for each of the old values
+     * @return ChannelLut   The finished lookup table
+     */
+    public static ChannelLut curve (int[] inputs, int[] outputs)
+    {
+        if (inputs.length == 0 || inputs.length != outputs.length)
+            throw new IllegalArgumentException ("A curve needs the same number of inputs and outputs, at least one");
+        for (int i = 1; i < inputs.length; i++)
+        {
+            if (inputs[i] <= inputs[i - 1])
+                throw new IllegalArgumentException ("Curve inputs must be in increasing order");
+        }
+        return of (value -> {
+            if (value <= inputs[0])
+                return outputs[0];
+            for (int i = 1; i < inputs.length; i++)
+            {
+                if (value <= inputs[i])
+                {
+                    // Straight line between point i - 1 and point i
+                    double t = (value - inputs[i - 1]) / (double) (inputs[i] - inputs[i - 1]);
+                    return (int) Math.round (outputs[i - 1] + t * (outputs[i] - outputs[i - 1]));
+                }
+            }
+            return outputs[outputs.length - 1];
+        });
+    }
+
+    /**
+     * Returns a copy of this table that changes pixels with a kernel instead of looking
+     * them up. The kernel has to give exactly the same pixels, which KernelCheck tests
+     * for every built-in kernel; it isn't checked here, so loading Processor stays quick.
+     * <p>
+     * Setting the system property photoedit.checkKernels to true checks anyway: every
+     * value of each channel is tried next to every value of the channel after it, and
+     * a kernel that gets any of them wrong leaves this table as it is (KernelCheck
+     * reports an edit that ended up like that). With kernels turned off (see
+     * PackedKernels) this table is always kept.
+     *
+     * @param kernel    An operation that should do the same as this table
+     * @return ChannelLut   A table using the kernel, or this table
+     */
+    public ChannelLut withKernel (PixelOp kernel)
+    {
+        if (!PackedKernels.isEnabled() || (CHECK_KERNELS && !matches (kernel)))
+            return this;
+        return new ChannelLut (this, kernel);
+    }
+
+    /**
+     * Checks a kernel against this table on every pair of values of neighbouring
+     * channels, one row of pixels at a time and one pixel at a time.
+     */
+    private boolean matches (PixelOp kernel)
+    {
+        int[] pixels = new int[256];
+        for (int first = 0; first < 256; first++)
+        {
+            for (int turn = 0; turn < 3; turn++)
+            {
+                // first and every value of second side by side, turned around so each
+                // pair of channels gets a go, with a third value mixed from both
+                for (int second = 0; second < 256; second++)
+                {
+                    int third = (first * 3 + second * 5 + 17) & 0xFF;
+                    int rgb = (first << 16) | (second << 8) | third;
+                    rgb = ((rgb << (8 * turn)) | (rgb >>> (24 - 8 * turn))) & 0xFFFFFF;
+                    pixels[second] = (third << 24) | rgb;
+                }
+                int[] changed = pixels.clone();
+                kernel.applyRow (changed, 0, 256);
+                for (int second = 0; second < 256; second++)
+                {
+                    int expected = apply (pixels[second]);
+                    if (changed[second] != expected || kernel.apply (pixels[second]) != expected)
+                        return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return boolean  True if pixels are changed by a kernel rather than the tables (see withKernel())
+     */
+    public boolean hasKernel ()
+    {
+        return kernel != null;
+    }
+
+    /**
+     * @return ChannelLut   This table, looking pixels up in the tables even if it has a kernel
+     */
+    public ChannelLut withoutKernel ()
+    {
+        return (kernel == null) ? this : new ChannelLut (this, null);
+    }
+
+    /**
+     * Combines this table with another one, giving a single table that does the same
+     * as applying this one and then next.
+     *
+     * @param next  The table to apply after this one
+     * @return ChannelLut   A table that does both at once
+     */
+    public ChannelLut then (ChannelLut next)
+    {
+        // next reads its channel c from our output channel next.source(c), which we
+        // looked up from our input channel source(next.source(c))
+        int[][] tables = new int[3][256];
+        int[] sources = new int[3];
+        for (int channel = RED; channel <= BLUE; channel++)
+        {
+            int middle = next.source (channel);
+            sources[channel] = source (middle);
+            for (int value = 0; value < 256; value++)
+            {
+                tables[channel][value] = next.lookup (channel, lookup (middle, value));
+            }
+        }
+        return new ChannelLut (tables[RED], tables[GREEN], tables[BLUE], sources[RED], sources[GREEN], sources[BLUE]);
+    }
+
+    /**
+     * Looks up the new value of one channel.
+     *
+     * @param channel   The output channel (RED, GREEN or BLUE)
+     * @param value     The value (0-255) of the input channel it is read from
+     * @return int      The new value (0-255)
+     */
+    public int lookup (int channel, int value)
+    {
+        int[] table = (channel == RED) ? red : (channel == GREEN) ? green : blue;
+        return table[value] >> SHIFT[checkChannel (channel)];
+    }
+
+    /**
+     * @param channel   An output channel (RED, GREEN or BLUE)
+     * @return int      The input channel it is looked up from
+     */
+    public int source (int channel)
+    {
+        return (checkChannel (channel) == RED) ? redSource : (channel == GREEN) ? greenSource : blueSource;
+    }
+
+    /**
+     * Looks up the new values for a single pixel.
+     *
+     * @param argb  The value of a single pixel as an integer (alpha, red, green, blue)
+     * @return int  The changed pixel, with the same alpha
+     */
+    public int apply (int argb)
+    {
+        if (kernel != null)
+            return kernel.apply (argb);
+        return (argb & 0xFF000000) | red[(argb >> SHIFT[redSource]) & 0xFF]
+            | green[(argb >> SHIFT[greenSource]) & 0xFF] | blue[(argb >> SHIFT[blueSource]) & 0xFF];
+    }
+
+    /**
+     * Looks up the new values for a run of pixels in place.
+     *
+     * @param pixels    Array of packed ARGB pixels
+     * @param offset    Index of the first pixel to change
+     * @param length    Number of pixels to change
+     */
+    public void applyRow (int[] pixels, int offset, int length)
+    {
+        if (kernel != null)
+        {
+            kernel.applyRow (pixels, offset, length);
+            return;
+        }
+        int[] r = red;
+        int[] g = green;
+        int[] b = blue;
+        int rShift = SHIFT[redSource];
+        int gShift = SHIFT[greenSource];
+        int bShift = SHIFT[blueSource];
+        int end = offset + length;
+        for (int i = offset; i < end; i++)
+        {
+            int p = pixels[i];
+            pixels[i] = (p & 0xFF000000) | r[(p >> rShift) & 0xFF] | g[(p >> gShift) & 0xFF] | b[(p >> bShift) & 0xFF];
+        }
+    }
+
+    /**
+     * Applies this table to every pixel of an image, in place.
+     *
+     * @param bi    The BufferedImage (passed by reference) to change.
+     */
+    public void applyTo (BufferedImage bi)
+    {
+        PixelAccess.applyPointOp (bi, this);
+    }
+
+    /**
+     * Runs a channel function over every value from 0 to 255, clamping the results.
+     */
+    private static int[] table (IntUnaryOperator channel)
+    {
+        int[] table = new int[256];
+        for (int value = 0; value < 256; value++)
+        {
+            table[value] = Math.min (255, Math.max (0, channel.applyAsInt (value)));
+        }
+        return table;
+    }
+
+    private static int checkChannel (int channel)
+    {
+        if (channel < RED || channel > BLUE)
+            throw new IllegalArgumentException ("Not a channel: " + channel);
+        return channel;
+    }
+
+    /**
+     * Checks a table and shifts its values into place for a packed pixel.
+     */
+    private static int[] shifted (int[] table, int shift, String channel)
+    {
+        if (table.length != 256)
+            throw new IllegalArgumentException ("The " + channel + " table needs 256 entries, not " + table.length);
+        int[] result = new int[256];
+        for (int value = 0; value < 256; value++)
+        {
+            if (table[value] < 0 || table[value] > 255)
+                throw new IllegalArgumentException ("The " + channel + " table has a value outside 0-255 at " + value);
+            result[value] = table[value] << shift;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,339 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Undo history that keeps every state of the image compressed in memory.
+ * <p>
+ * A new state is copied as it is, then compressed on a background thread so the
+ * editor doesn't have to wait. Each pixel is first XORed with the pixel to its left,
+ * which turns flat areas (greyscale, pixelate, big areas of one colour) into long
+ * runs of zeros, and the result is squeezed with fast Deflate. Undo and redo
+ * decompress the state they need.
+ * <p>
+ * The compression ratio is published through Metrics (see
+ * Metrics.setHistoryCompressionRatio()), next to the time compressing and
+ * decompressing take (history.compress and history.decompress) and undo and redo
+ * as a whole (history.undo and history.redo, timed by EditRunner), so the tradeoff
+ * can be watched. Like TileHistory there is a memory budget: when it is used up,
+ * states that could be redone are dropped first, newest first, and then the oldest
+ * states.
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public class CompressedHistory implements EditHistory
+{
+    // One background thread compresses for every history, it only runs when there is work
+    private static final ExecutorService COMPRESSOR = Executors.newSingleThreadExecutor (task -> {
+        Thread thread = new Thread (task, "CompressedHistory");
+        thread.setDaemon (true);
+        return thread;
+    });
+
+    private final List<State> states = new ArrayList<State>();  // Oldest first
+    private int current;  // Index of the state that matches the image, later states can be redone
+
+    private long memoryBudget;  // Most bytes of states to keep
+    private long memoryUsed;    // Bytes of states kept right now
+    private int width;
+    private int height;
+
+    // For the compression ratio
+    private long rawBytesCompressed;    // Size of every state that has been compressed, before compression
+    private long compressedBytes;       // ...and after
+
+    /**
+     * Construct a CompressedHistory that may use up to a quarter of the maximum heap.
+     */
+    public CompressedHistory ()
+    {
+        this (Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /**
+     * Construct a CompressedHistory with a memory budget.
+     *
+     * @param memoryBudget  Most bytes of states to keep (compressed, or raw while waiting to be compressed)
+     */
+    public CompressedHistory (long memoryBudget)
+    {
+        this.memoryBudget = memoryBudget;
+    }
+
+    public synchronized void reset (BufferedImage bi)
+    {
+        states.clear();
+        current = 0;
+        memoryUsed = 0;
+        width = bi.getWidth();
+        height = bi.getHeight();
+        add (bi);
+    }
+
+    public synchronized void commit (BufferedImage bi, Edit edit)
+    {
+        if (states.isEmpty() || bi.getWidth() != width || bi.getHeight() != height)
+        {
+            reset (bi);
+            return;
+        }
+
+        // Undone states can't be redone any more
+        while (states.size() - 1 > current)
+        {
+            memoryUsed -= states.remove (states.size() - 1).size();
+        }
+        add (bi);
+        current++;
+        evict();
+    }
+
+    public synchronized boolean undo (BufferedImage bi)
+    {
+        if (current == 0)
+            return false;
+        restore (bi, states.get (current - 1));
+        current--;
+        return true;
+    }
+
+    public synchronized boolean redo (BufferedImage bi)
+    {
+        if (current >= states.size() - 1)
+            return false;
+        restore (bi, states.get (current + 1));
+        current++;
+        return true;
+    }
+
+    public synchronized void revert (BufferedImage bi)
+    {
+        if (!states.isEmpty())
+            restore (bi, states.get (current));
+    }
+
+    /**
+     * @return double   Raw size of the compressed states divided by their compressed
+     *                  size (0 if nothing has been compressed yet)
+     */
+    public synchronized double getCompressionRatio ()
+    {
+        return (compressedBytes == 0) ? 0 : rawBytesCompressed / (double) compressedBytes;
+    }
+
+    /**
+     * @return int  Number of edits that can be undone
+     */
+    public synchronized int getUndoCount ()
+    {
+        return current;
+    }
+
+    /**
+     * @return int  Number of undone edits that can be redone
+     */
+    public synchronized int getRedoCount ()
+    {
+        return Math.max (0, states.size() - 1 - current);
+    }
+
+    /**
+     * @return long Bytes used by the states being kept right now
+     */
+    public synchronized long getMemoryUsed ()
+    {
+        return memoryUsed;
+    }
+
+    /**
+     * @return long Most bytes of states the history will keep
+     */
+    public synchronized long getMemoryBudget ()
+    {
+        return memoryBudget;
+    }
+
+    /**
+     * Changes the memory budget, dropping states straight away (redo states first, then
+     * the oldest) if they no longer fit.
+     *
+     * @param memoryBudget  Most bytes of states to keep
+     */
+    public synchronized void setMemoryBudget (long memoryBudget)
+    {
+        this.memoryBudget = memoryBudget;
+        evict();
+    }
+
+    /**
+     * Copies the image into a new state at the end of the list and queues it to be compressed.
+     */
+    private void add (BufferedImage bi)
+    {
+        int[] pixels = new int[width * height];
+        BandExecutor.run (height, width, (start, end) -> {
+            int[] row = new int[width];
+            for (int y = start; y < end; y++)
+            {
+                PixelAccess.readRow (bi, y, row);
+                System.arraycopy (row, 0, pixels, y * width, width);
+            }
+        });
+
+        State state = new State (pixels);
+        states.add (state);
+        memoryUsed += state.size();
+        COMPRESSOR.execute (() -> compress (state, width));
+    }
+
+    /**
+     * Runs on the background thread: compresses the raw pixels of a state, then lets
+     * them go.
+     */
+    private void compress (State state, int rowWidth)
+    {
+        int[] pixels;
+        synchronized (this)
+        {
+            pixels = state.raw;
+            if (pixels == null || !states.contains (state))
+                return;  // Already dropped
+        }
+
+        Metrics.Sample sample = Metrics.start ("history.compress");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream (pixels.length);
+        Deflater deflater = new Deflater (Deflater.BEST_SPEED);
+        try (DeflaterOutputStream out = new DeflaterOutputStream (bytes, deflater, 1 << 16))
+        {
+            byte[] rowBytes = new byte[rowWidth * 4];
+            for (int start = 0; start < pixels.length; start += rowWidth)
+            {
+                int left = 0;
+                for (int x = 0; x < rowWidth; x++)
+                {
+                    int p = pixels[start + x];
+                    int delta = p ^ left;  // Same as the pixel to the left gives 0
+                    left = p;
+                    rowBytes[4 * x] = (byte) (delta >> 24);
+                    rowBytes[4 * x + 1] = (byte) (delta >> 16);
+                    rowBytes[4 * x + 2] = (byte) (delta >> 8);
+                    rowBytes[4 * x + 3] = (byte) delta;
+                }
+                out.write (rowBytes);
+            }
+        }
+        catch (IOException e)  // Can't happen when writing to memory
+        {
+            throw new UncheckedIOException (e);
+        }
+        finally
+        {
+            deflater.end();
+        }
+        sample.stop (pixels.length);
+
+        synchronized (this)
+        {
+            if (!states.contains (state))
+                return;  // Dropped while it was being compressed
+            memoryUsed -= state.size();
+            state.compressed = bytes.toByteArray();
+            state.raw = null;
+            memoryUsed += state.size();
+            rawBytesCompressed += 4L * pixels.length;
+            compressedBytes += state.compressed.length;
+        }
+    }
+
+    /**
+     * Writes a state back into the image, decompressing it if needed.
+     */
+    private void restore (BufferedImage bi, State state)
+    {
+        int[] pixels = (state.raw != null) ? state.raw : decompress (state.compressed);
+        BandExecutor.run (height, width, (start, end) -> {
+            int[] row = new int[width];
+            for (int y = start; y < end; y++)
+            {
+                System.arraycopy (pixels, y * width, row, 0, width);
+                PixelAccess.writeRow (bi, y, row);
+            }
+        });
+    }
+
+    private int[] decompress (byte[] compressed)
+    {
+        Metrics.Sample sample = Metrics.start ("history.decompress");
+        int[] pixels = new int[width * height];
+        try (DataInputStream in = new DataInputStream (new InflaterInputStream (new ByteArrayInputStream (compressed), new Inflater(), 1 << 16)))
+        {
+            byte[] rowBytes = new byte[width * 4];
+            for (int start = 0; start < pixels.length; start += width)
+            {
+                in.readFully (rowBytes);
+                int left = 0;
+                for (int x = 0; x < width; x++)
+                {
+                    int delta = ((rowBytes[4 * x] & 0xFF) << 24) | ((rowBytes[4 * x + 1] & 0xFF) << 16)
+                        | ((rowBytes[4 * x + 2] & 0xFF) << 8) | (rowBytes[4 * x + 3] & 0xFF);
+                    left ^= delta;
+                    pixels[start + x] = left;
+                }
+            }
+        }
+        catch (IOException e)  // Only if the data was damaged in memory
+        {
+            throw new UncheckedIOException (e);
+        }
+        sample.stop (pixels.length);
+        return pixels;
+    }
+
+    /**
+     * Drops the states that could be redone (newest first) until the rest fit in the
+     * memory budget, then the oldest states if it still doesn't fit.
+     */
+    private void evict ()
+    {
+        while (memoryUsed > memoryBudget && states.size() - 1 > current)
+        {
+            memoryUsed -= states.remove (states.size() - 1).size();
+        }
+        while (memoryUsed > memoryBudget && current > 0)
+        {
+            memoryUsed -= states.remove (0).size();
+            current--;
+        }
+    }
+
+    /**
+     * One state of the image: raw pixels until the background thread compresses them.
+     */
+    private static class State
+    {
+        int[] raw;          // ARGB pixels, row after row, or null once compressed
+        byte[] compressed;  // Compressed pixels, or null until compressed
+
+        State (int[] raw)
+        {
+            this.raw = raw;
+        }
+
+        long size ()
+        {
+            return (raw != null) ? 4L * raw.length : compressed.length;
+        }
+    }
+}
@@ -0,0 +1,682 @@
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Neighbourhood filters: every pixel becomes a weighted sum of the pixels around it
+ * (blur, sharpen, edge detection).
+ * <p>
+ * A kernel whose weights are a column of numbers times a row of numbers (like a
+ * Gaussian blur) is separable: filtering each row with the row and then each column
+ * with the column gives the same result, for width + height multiplies per pixel
+ * instead of width * height. of() notices this by itself. Box blurs go further and
+ * keep a running sum as they slide along, adding the pixel coming in and taking
+ * away the one going out, so they cost the same for any radius; gaussianBlur() is
+ * three box blurs in a row, which comes very close to a true Gaussian.
+ * <p>
+ * Images are filtered in place, in tiles of whole rows that run in parallel (see
+ * BandExecutor). Each tile also needs a few rows from the tiles above and below it
+ * (the halo), so those rows are copied before any tile starts writing. Within a
+ * tile, rows are read just before they are needed and written once they are no
+ * longer needed, and the rows in between are kept in scratch arrays that each thread
+ * reuses from one tile (and one filter) to the next, as long as they aren't too big
+ * to keep (see Scratch).
+ * <p>
+ * Pixels past the edge of the image are taken to be the same as the nearest edge
+ * pixel. Red, green and blue are filtered; alpha is left as it is.
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public class Convolution
+{
+    /** Largest radius a box blur or kernel can have */
+    public static final int MAX_RADIUS = 1000;
+
+    private static final int TILE_ROWS = 256;  // Rows per tile, at least; tiles are never smaller than 8 radii
+
+    /** Sharpens edges: each pixel minus its four neighbours, added to itself */
+    public static final Convolution SHARPEN = of (3, 3,
+         0, -1,  0,
+        -1,  5, -1,
+         0, -1,  0);
+
+    /** Finds edges: each pixel minus the average of its eight neighbours, so flat areas go black */
+    public static final Convolution EDGES = of (3, 3,
+        -1, -1, -1,
+        -1,  8, -1,
+        -1, -1, -1);
+
+    // Scratch arrays for each thread, kept between tiles and between filters
+    private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>();
+
+    private final int width;            // Kernel size, both odd
+    private final int height;
+    private final float[] weights;      // width * height weights, one row of the kernel after another
+    private final float[] horizontal;   // If separable, weights[y * width + x] == vertical[y] * horizontal[x]...
+    private final float[] vertical;     // ...otherwise both are null
+
+    private Convolution (int width, int height, float[] weights, float[] horizontal, float[] vertical)
+    {
+        this.width = width;
+        this.height = height;
+        this.weights = weights;
+        this.horizontal = horizontal;
+        this.vertical = vertical;
+    }
+
+    /**
+     * Builds a filter from a grid of weights. The new value of each pixel is the sum of
+     * the pixels under the grid, centred on it, times their weights. Separable grids
+     * are found and filtered in two passes.
+     *
+     * @param width     Width of the grid, odd
+     * @param height    Height of the grid, odd
+     * @param weights   width * height weights, the top row first
+     * @return Convolution  The filter
+     */
+    public static Convolution of (int width, int height, float... weights)
+    {
+        checkSize (width, "width");
+        checkSize (height, "height");
+        if (weights.length != width * height)
+            throw new IllegalArgumentException ("A " + width + "x" + height + " kernel needs " + (width * height)
+                + " weights, not " + weights.length);
+        float[] grid = weights.clone();
+
+        // Take the row and column through the biggest weight; the grid is separable if
+        // every weight is its column's number times its row's number
+        int biggest = 0;
+        for (int i = 1; i < grid.length; i++)
+        {
+            if (Math.abs (grid[i]) > Math.abs (grid[biggest]))
+                biggest = i;
+        }
+        if (grid[biggest] == 0)
+            return new Convolution (width, height, grid, null, null);
+        float[] row = new float[width];
+        float[] column = new float[height];
+        for (int x = 0; x < width; x++)
+        {
+            row[x] = grid[(biggest / width) * width + x];
+        }
+        for (int y = 0; y < height; y++)
+        {
+            column[y] = grid[y * width + biggest % width] / grid[biggest];
+        }
+        float tolerance = Math.abs (grid[biggest]) * 1e-6f;
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                if (Math.abs (column[y] * row[x] - grid[y * width + x]) > tolerance)
+                    return new Convolution (width, height, grid, null, null);
+            }
+        }
+        return new Convolution (width, height, grid, row, column);
+    }
+
+    /**
+     * Builds a separable filter from its row and column of weights.
+     *
+     * @param horizontal    Weights across each row, an odd number of them
+     * @param vertical      Weights down each column, an odd number of them
+     * @return Convolution  The filter
+     */
+    public static Convolution separable (float[] horizontal, float[] vertical)
+    {
+        checkSize (horizontal.length, "width");
+        checkSize (vertical.length, "height");
+        float[] grid = new float[horizontal.length * vertical.length];
+        for (int y = 0; y < vertical.length; y++)
+        {
+            for (int x = 0; x < horizontal.length; x++)
+            {
+                grid[y * horizontal.length + x] = vertical[y] * horizontal[x];
+            }
+        }
+        return new Convolution (horizontal.length, vertical.length, grid, horizontal.clone(), vertical.clone());
+    }
+
+    /**
+     * Builds an exact Gaussian blur, reaching out 3 sigma each way. For big sigmas
+     * gaussianBlur() is much quicker and looks the same.
+     *
+     * @param sigma How far the blur spreads, in pixels
+     * @return Convolution  The filter
+     */
+    public static Convolution gaussian (double sigma)
+    {
+        if (!(sigma > 0))
+            throw new IllegalArgumentException ("Sigma must be more than 0: " + sigma);
+        int radius = (int) Math.ceil (3 * sigma);
+        float[] weights = new float[2 * radius + 1];
+        double total = 0;
+        for (int i = -radius; i <= radius; i++)
+        {
+            total += Math.exp (-i * i / (2 * sigma * sigma));
+        }
+        for (int i = -radius; i <= radius; i++)
+        {
+            weights[i + radius] = (float) (Math.exp (-i * i / (2 * sigma * sigma)) / total);
+        }
+        return separable (weights, weights);
+    }
+
+    /**
+     * @return boolean  True if the filter runs as a pass across and a pass down
+     */
+    public boolean isSeparable ()
+    {
+        return horizontal != null;
+    }
+
+    /**
+     * Filters an image in place.
+     *
+     * @param bi    The BufferedImage (passed by reference) to change.
+     */
+    public void apply (BufferedImage bi)
+    {
+        int imageWidth = bi.getWidth();
+        if (isSeparable())
+            run (bi, height / 2, () -> new SeparableWindow (horizontal, vertical, imageWidth));
+        else
+            run (bi, height / 2, () -> new GridWindow (width, height, weights, imageWidth));
+    }
+
+    /**
+     * Blurs an image in place: each pixel becomes the average of the square of pixels
+     * around it. Takes the same time for any radius.
+     *
+     * @param bi        The BufferedImage (passed by reference) to change.
+     * @param radius    Pixels to reach out each way (the square is 2 * radius + 1 wide)
+     */
+    public static void boxBlur (BufferedImage bi, int radius)
+    {
+        if (radius < 0 || radius > MAX_RADIUS)
+            throw new IllegalArgumentException ("Radius must be from 0 to " + MAX_RADIUS + ": " + radius);
+        if (radius == 0)
+            return;
+        int imageWidth = bi.getWidth();
+        run (bi, radius, () -> new BoxWindow (radius, imageWidth));
+    }
+
+    /**
+     * Blurs an image in place with three box blurs, sized so that together they come
+     * very close to a Gaussian blur. Takes the same time for any sigma.
+     *
+     * @param bi    The BufferedImage (passed by reference) to change.
+     * @param sigma How far the blur spreads, in pixels
+     */
+    public static void gaussianBlur (BufferedImage bi, double sigma)
+    {
+        if (!(sigma > 0))
+            throw new IllegalArgumentException ("Sigma must be more than 0: " + sigma);
+
+        // Three boxes of widths small or small + 2, whose spread adds up to sigma's
+        // (from "Fast Almost-Gaussian Filtering", Kovesi)
+        int passes = 3;
+        int small = (int) Math.floor (Math.sqrt (12 * sigma * sigma / passes + 1));
+        if (small % 2 == 0)
+            small--;
+        int smallPasses = (int) Math.round ((12 * sigma * sigma - passes * small * small - 4 * passes * small - 3 * passes)
+            / (-4.0 * small - 4));
+        for (int pass = 0; pass < passes; pass++)
+        {
+            int size = (pass < smallPasses) ? small : small + 2;
+            boxBlur (bi, size / 2);
+        }
+    }
+
+    /**
+     * Rows of a tile go into a Window one at a time, top to bottom, and each output
+     * row is worked out from the 2 * radius + 1 rows around it. Windows are made for
+     * each tile, but keep their big arrays in the thread's Scratch.
+     */
+    private interface Window
+    {
+        /** A row comes into the window, in ring position slot (also in rows[slot]) */
+        void enter (int[][] rows, int slot);
+
+        /** The row in ring position slot is about to be replaced */
+        void leave (int slot);
+
+        /** Works out the red, green and blue of the row in the middle of the window, centre is its ring position */
+        void output (int[][] rows, int centre, int[] out);
+    }
+
+    private interface WindowMaker
+    {
+        Window make ();
+    }
+
+    /**
+     * Filters the image in tiles of rows, each with a window reaching radius rows up
+     * and down.
+     */
+    private static void run (BufferedImage bi, int radius, WindowMaker maker)
+    {
+        int imageWidth = bi.getWidth();
+        int imageHeight = bi.getHeight();
+        int tileRows = Math.max (TILE_ROWS, 8 * radius);
+        int tiles = (imageHeight + tileRows - 1) / tileRows;
+
+        // The halo: rows each tile needs from the tiles next to it, copied before any are changed
+        int[][][] above = new int[tiles][][];
+        int[][][] below = new int[tiles][][];
+        BandExecutor.run (tiles, 2L * radius * imageWidth, (start, end) -> {
+            for (int t = start; t < end; t++)
+            {
+                int top = t * tileRows;
+                int bottom = Math.min (imageHeight, top + tileRows);
+                above[t] = readRows (bi, Math.max (0, top - radius), top);
+                below[t] = readRows (bi, bottom, Math.min (imageHeight, bottom + radius));
+            }
+        });
+
+        BandExecutor.run (tiles, (long) tileRows * imageWidth, (start, end) -> {
+            Scratch space = scratch.get();
+            if (space == null)
+            {
+                space = new Scratch();
+                scratch.set (space);
+            }
+            int size = 2 * radius + 1;
+            int[][] rows = space.rows (size, imageWidth);
+            int[] out = space.out (imageWidth);
+            for (int t = start; t < end; t++)
+            {
+                Window window = maker.make();
+                int top = t * tileRows;
+                int bottom = Math.min (imageHeight, top + tileRows);
+                int haloTop = Math.max (0, top - radius);
+
+                // Fill the window with the rows around the tile's first row
+                for (int y = top - radius; y <= top + radius; y++)
+                {
+                    int slot = y - (top - radius);
+                    readRow (bi, y, top, bottom, haloTop, above[t], below[t], rows[slot]);
+                    window.enter (rows, slot);
+                }
+                for (int y = top; y < bottom; y++)
+                {
+                    int centre = (y - top + radius) % size;
+                    window.output (rows, centre, out);
+                    int[] original = rows[centre];
+                    for (int x = 0; x < imageWidth; x++)
+                    {
+                        out[x] = (original[x] & 0xFF000000) | out[x];  // Alpha stays as it was
+                    }
+                    PixelAccess.writeRow (bi, y, out);
+
+                    // Slide down a row (row y + radius + 1 is never one already written)
+                    if (y + 1 < bottom)
+                    {
+                        int slot = (y - top) % size;
+                        window.leave (slot);
+                        readRow (bi, y + radius + 1, top, bottom, haloTop, above[t], below[t], rows[slot]);
+                        window.enter (rows, slot);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads row y (moved to the nearest edge if it is outside the image) for the tile
+     * from top to bottom, from the halo if it is in another tile.
+     */
+    private static void readRow (BufferedImage bi, int y, int top, int bottom, int haloTop, int[][] above,
+        int[][] below, int[] row)
+    {
+        y = Math.max (0, Math.min (bi.getHeight() - 1, y));
+        if (y < top)
+            System.arraycopy (above[y - haloTop], 0, row, 0, bi.getWidth());
+        else if (y >= bottom)
+            System.arraycopy (below[y - bottom], 0, row, 0, bi.getWidth());
+        else
+            PixelAccess.readRow (bi, y, row);
+    }
+
+    private static int[][] readRows (BufferedImage bi, int start, int end)
+    {
+        int[][] rows = new int[end - start][bi.getWidth()];
+        for (int y = start; y < end; y++)
+        {
+            PixelAccess.readRow (bi, y, rows[y - start]);
+        }
+        return rows;
+    }
+
+    private static void checkSize (int size, String name)
+    {
+        if (size < 1 || size % 2 == 0 || size > 2 * MAX_RADIUS + 1)
+            throw new IllegalArgumentException ("Kernel " + name + " must be odd, from 1 to " + (2 * MAX_RADIUS + 1)
+                + ": " + size);
+    }
+
+    private static int clamp (float value)
+    {
+        int rounded = Math.round (value);
+        return (rounded < 0) ? 0 : (rounded > 255) ? 255 : rounded;
+    }
+
+    /**
+     * Box blur with running sums: across each row as it comes in, and down each column
+     * as rows come in and leave.
+     */
+    private static class BoxWindow implements Window
+    {
+        private final int radius;
+        private final int width;
+        private final int[][] rowSums;   // Sum across the box, for each row in the window (red, green, blue per pixel)
+        private final int[] columnSums;  // Sum of rowSums over the window
+        private final int count;         // Pixels in the box
+
+        BoxWindow (int radius, int width)
+        {
+            this.radius = radius;
+            this.width = width;
+            Scratch space = scratch.get();
+            rowSums = space.intRing (2 * radius + 1, 3 * width);
+            columnSums = space.sums (3 * width);
+            Arrays.fill (columnSums, 0);
+            count = (2 * radius + 1) * (2 * radius + 1);
+        }
+
+        public void enter (int[][] rows, int slot)
+        {
+            int[] row = rows[slot];
+            int[] sums = rowSums[slot];
+            int last = width - 1;
+            int r = 0;
+            int g = 0;
+            int b = 0;
+            for (int i = -radius; i <= radius; i++)
+            {
+                int p = row[Math.max (0, Math.min (last, i))];
+                r += (p >> 16) & 0xFF;
+                g += (p >> 8) & 0xFF;
+                b += p & 0xFF;
+            }
+            for (int x = 0; x < width; x++)
+            {
+                sums[3 * x] = r;
+                sums[3 * x + 1] = g;
+                sums[3 * x + 2] = b;
+                columnSums[3 * x] += r;
+                columnSums[3 * x + 1] += g;
+                columnSums[3 * x + 2] += b;
+
+                // Slide the box one pixel right
+                int in = row[Math.min (last, x + radius + 1)];
+                int out = row[Math.max (0, x - radius)];
+                r += ((in >> 16) & 0xFF) - ((out >> 16) & 0xFF);
+                g += ((in >> 8) & 0xFF) - ((out >> 8) & 0xFF);
+                b += (in & 0xFF) - (out & 0xFF);
+            }
+        }
+
+        public void leave (int slot)
+        {
+            int[] sums = rowSums[slot];
+            for (int i = 0; i < 3 * width; i++)
+            {
+                columnSums[i] -= sums[i];
+            }
+        }
+
+        public void output (int[][] rows, int centre, int[] out)
+        {
+            // (sum + half) / count, but multiplying by 2^53 / count (rounded up) and shifting
+            // back is much quicker than dividing. It gives exactly the same answer for sums
+            // up to 256 * count, since 256 * count * count is less than 2^53.
+            long half = count / 2;
+            long reciprocal = ((1L << 53) + count - 1) / count;
+            for (int x = 0; x < width; x++)
+            {
+                int r = (int) (((columnSums[3 * x] + half) * reciprocal) >>> 53);
+                int g = (int) (((columnSums[3 * x + 1] + half) * reciprocal) >>> 53);
+                int b = (int) (((columnSums[3 * x + 2] + half) * reciprocal) >>> 53);
+                out[x] = (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+
+    /**
+     * A separable kernel: each row is filtered across as it comes in, and the output
+     * is the weighted sum down the window.
+     */
+    private static class SeparableWindow implements Window
+    {
+        private final float[] horizontal;
+        private final float[] vertical;
+        private final int width;
+        private final float[][] filtered;  // Each row in the window after the pass across (red, green, blue per pixel)
+        private final float[][] window;    // The same rows, from the top of the window down
+
+        SeparableWindow (float[] horizontal, float[] vertical, int width)
+        {
+            this.horizontal = horizontal;
+            this.vertical = vertical;
+            this.width = width;
+            filtered = scratch.get().floatRing (vertical.length, 3 * width);
+            window = new float[vertical.length][];
+        }
+
+        public void enter (int[][] rows, int slot)
+        {
+            int[] row = rows[slot];
+            float[] across = filtered[slot];
+            int radius = horizontal.length / 2;
+            int last = width - 1;
+            for (int x = 0; x < width; x++)
+            {
+                float r = 0;
+                float g = 0;
+                float b = 0;
+                boolean inside = x >= radius && x + radius <= last;  // No need to stop at the edges
+                for (int i = 0; i < horizontal.length; i++)
+                {
+                    int sx = x + i - radius;
+                    int p = row[inside ? sx : Math.max (0, Math.min (last, sx))];
+                    float weight = horizontal[i];
+                    r += weight * ((p >> 16) & 0xFF);
+                    g += weight * ((p >> 8) & 0xFF);
+                    b += weight * (p & 0xFF);
+                }
+                across[3 * x] = r;
+                across[3 * x + 1] = g;
+                across[3 * x + 2] = b;
+            }
+        }
+
+        public void leave (int slot)
+        {
+            // Nothing to take away, every output row is summed again
+        }
+
+        public void output (int[][] rows, int centre, int[] out)
+        {
+            int size = vertical.length;
+            int first = centre - size / 2 + size;  // Ring position of the top row of the window, plus size
+            for (int i = 0; i < size; i++)
+            {
+                window[i] = filtered[(first + i) % size];  // Top to bottom
+            }
+            for (int x = 0; x < 3 * width; x += 3)
+            {
+                float r = 0;
+                float g = 0;
+                float b = 0;
+                for (int i = 0; i < size; i++)
+                {
+                    float[] across = window[i];
+                    float weight = vertical[i];
+                    r += weight * across[x];
+                    g += weight * across[x + 1];
+                    b += weight * across[x + 2];
+                }
+                out[x / 3] = clamp (r) << 16 | clamp (g) << 8 | clamp (b);
+            }
+        }
+    }
+
+    /**
+     * Any other kernel: every weight times every pixel under it.
+     */
+    private static class GridWindow implements Window
+    {
+        private final int kernelWidth;
+        private final int kernelHeight;
+        private final float[] weights;
+        private final int width;
+
+        GridWindow (int kernelWidth, int kernelHeight, float[] weights, int width)
+        {
+            this.kernelWidth = kernelWidth;
+            this.kernelHeight = kernelHeight;
+            this.weights = weights;
+            this.width = width;
+        }
+
+        public void enter (int[][] rows, int slot)
+        {
+            // The rows are used as they are
+        }
+
+        public void leave (int slot)
+        {
+            // Nor is anything kept
+        }
+
+        public void output (int[][] rows, int centre, int[] out)
+        {
+            int radiusX = kernelWidth / 2;
+            int first = centre - kernelHeight / 2 + kernelHeight;
+            int last = width - 1;
+            for (int x = 0; x < width; x++)
+            {
+                float r = 0;
+                float g = 0;
+                float b = 0;
+                boolean inside = x >= radiusX && x + radiusX <= last;  // No need to stop at the edges
+                for (int ky = 0; ky < kernelHeight; ky++)
+                {
+                    int[] row = rows[(first + ky) % kernelHeight];
+                    for (int kx = 0; kx < kernelWidth; kx++)
+                    {
+                        float weight = weights[ky * kernelWidth + kx];
+                        if (weight == 0)
+                            continue;
+                        int sx = x + kx - radiusX;
+                        int p = row[inside ? sx : Math.max (0, Math.min (last, sx))];
+                        r += weight * ((p >> 16) & 0xFF);
+                        g += weight * ((p >> 8) & 0xFF);
+                        b += weight * (p & 0xFF);
+                    }
+                }
+                out[x] = clamp (r) << 16 | clamp (g) << 8 | clamp (b);
+            }
+        }
+    }
+
+    /**
+     * Arrays one thread reuses for every tile it filters, grown when a bigger image or
+     * radius needs more. The rings of rows are only kept while they add up to
+     * MAX_KEPT_BYTES; bigger ones (a huge radius on a wide image) are made for the tile
+     * that needs them and then left for the garbage collector, so a worker thread
+     * doesn't hold on to them for as long as it lives.
+     */
+    private static class Scratch
+    {
+        private static final long MAX_KEPT_BYTES = 8L << 20;  // 8 MB for each thread
+
+        private int[][] rows = new int[0][];
+        private int[] out = new int[0];
+        private int[][] intRing = new int[0][];
+        private int[] sums = new int[0];
+        private float[][] floatRing = new float[0][];
+
+        int[][] rows (int count, int length)
+        {
+            if (fits (rows.length, length (rows), count, length))
+                return rows;
+            int keptCount = Math.max (count, rows.length);
+            int keptLength = Math.max (length, length (rows));
+            if (!keep (bytes (keptCount, keptLength) - bytes (rows.length, length (rows))))
+                return new int[count][length];  // Too big to keep
+            rows = new int[keptCount][keptLength];
+            return rows;
+        }
+
+        int[] out (int length)
+        {
+            if (out.length < length)
+                out = new int[length];  // Just one row, always kept
+            return out;
+        }
+
+        int[][] intRing (int count, int length)
+        {
+            if (fits (intRing.length, length (intRing), count, length))
+                return intRing;
+            int keptCount = Math.max (count, intRing.length);
+            int keptLength = Math.max (length, length (intRing));
+            if (!keep (bytes (keptCount, keptLength) - bytes (intRing.length, length (intRing))))
+                return new int[count][length];  // Too big to keep
+            intRing = new int[keptCount][keptLength];
+            return intRing;
+        }
+
+        int[] sums (int length)
+        {
+            if (sums.length < length)
+                sums = new int[length];  // Just one row, always kept
+            return sums;
+        }
+
+        float[][] floatRing (int count, int length)
+        {
+            if (fits (floatRing.length, length (floatRing), count, length))
+                return floatRing;
+            int keptCount = Math.max (count, floatRing.length);
+            int keptLength = Math.max (length, length (floatRing));
+            if (!keep (bytes (keptCount, keptLength) - bytes (floatRing.length, length (floatRing))))
+                return new float[count][length];  // Too big to keep
+            floatRing = new float[keptCount][keptLength];
+            return floatRing;
+        }
+
+        /**
+         * Checks whether the rings would still fit in MAX_KEPT_BYTES if one of them
+         * grew by change bytes.
+         */
+        private boolean keep (long change)
+        {
+            long kept = bytes (rows.length, length (rows)) + bytes (intRing.length, length (intRing))
+                + bytes (floatRing.length, length (floatRing));
+            return kept + change <= MAX_KEPT_BYTES;
+        }
+
+        private static boolean fits (int count, int length, int neededCount, int neededLength)
+        {
+            return count >= neededCount && length >= neededLength;
+        }
+
+        private static int length (int[][] ring)
+        {
+            return (ring.length == 0) ? 0 : ring[0].length;
+        }
+
+        private static int length (float[][] ring)
+        {
+            return (ring.length == 0) ? 0 : ring[0].length;
+        }
+
+        private static long bytes (int count, int length)
+        {
+            return 4L * count * length;  // ints and floats are both 4 bytes
+        }
+    }
+}
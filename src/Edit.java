@@ -0,0 +1,141 @@
+import java.awt.image.BufferedImage;
+import java.util.function.Consumer;
+
+/**
+ * Every edit that Processor can make to an image, by name.
+ * <p>
+ * Colour edits also hand out their PixelOp through pointOp(), so a FilterPipeline
+ * can join several of them into a single pass over the image. Edits that move
+ * pixels around (flips, pixelate, mosaic) or look at a pixel's neighbours (blur,
+ * sharpen, edges) have no PixelOp and always get a pass of their own.
+ * <p>
+ * Some edits can be undone exactly by making more edits (see inverse()), which
+ * OperationLog uses to undo them without keeping a copy of the image.
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public enum Edit
+{
+    PIXELATE ("pixelate", Processor::pixelate, null),
+    MOSAIC ("mosaic", Processor::mosaic, null),
+    GREENIFY ("greenify", Processor::greenify, Processor.GREENIFY),
+    REDIFY ("redify", Processor::redify, Processor.REDIFY),
+    BLUEIFY ("blueify", Processor::blueify, Processor.BLUEIFY),
+    FLIP_HORIZONTAL ("flipHorizontal", Processor::flipHorizontal, null),
+    FLIP_VERTICAL ("flipVertical", Processor::flipVertical, null),
+    GREYSCALE ("greyScale", Processor::greyScale, Processor.GREYSCALE),
+    LUMA ("luma", Processor::luma, LumaOp.REC_709),
+    NEGATIVE ("negative", Processor::negative, Processor.NEGATIVE),
+    BRIGHTEN ("brighten", Processor::brighten, Processor.BRIGHTEN),
+    SCRAMBLE ("scramble", Processor::scramble, Processor.SCRAMBLE),
+    BLUR ("blur", Processor::blur, null),
+    SHARPEN ("sharpen", Processor::sharpen, null),
+    EDGES ("edges", Processor::edges, null);
+
+    private final String name;
+    private final Consumer<BufferedImage> method;
+    private final PixelOp pointOp;
+
+    private Edit (String name, Consumer<BufferedImage> method, PixelOp pointOp)
+    {
+        this.name = name;
+        this.method = method;
+        this.pointOp = pointOp;
+    }
+
+    /**
+     * Finds an edit by the name of its Processor method, like "greyScale". Case
+     * doesn't matter, and the constant name (GREYSCALE) works too.
+     *
+     * @param name  Name of the edit
+     * @return Edit The edit with that name
+     * @throws IllegalArgumentException If no edit has that name
+     */
+    public static Edit forName (String name)
+    {
+        for (Edit edit : values())
+        {
+            if (edit.name.equalsIgnoreCase (name) || edit.name().equalsIgnoreCase (name))
+                return edit;
+        }
+        throw new IllegalArgumentException ("Unknown edit: " + name);
+    }
+
+    /**
+     * Makes this edit to an image by calling the matching Processor method.
+     *
+     * @param bi    The BufferedImage (passed by reference) to change.
+     */
+    public void apply (BufferedImage bi)
+    {
+        Metrics.Sample sample = Metrics.start ("edit." + name);
+        method.accept (bi);
+        sample.stop ((long) bi.getWidth() * bi.getHeight());
+    }
+
+    /**
+     * @return PixelOp  The per-pixel operation behind this edit, or null if the edit
+     *                  looks at more than one pixel at a time
+     */
+    public PixelOp pointOp ()
+    {
+        return pointOp;
+    }
+
+    /**
+     * Returns the edits that turn the result of this edit back into the original
+     * image: a flip or Negative undoes itself, and three Scrambles bring every colour
+     * back to where it started. Edits that lose information (Brighten, Green-ify,
+     * Pixelate, ...) have no inverse.
+     * <p>
+     * The flips round the colour of see-through pixels and grey images round every
+     * colour they store, so the inverse is only exact for images that keep exact
+     * colours (and, for the flips, have no see-through pixels).
+     *
+     * @return Edit[]   Edits to apply in order to undo this one, or null if there are none
+     */
+    public Edit[] inverse ()
+    {
+        switch (this)
+        {
+            case FLIP_HORIZONTAL:
+            case FLIP_VERTICAL:
+            case NEGATIVE:
+                return new Edit[] { this };
+            case SCRAMBLE:
+                return new Edit[] { SCRAMBLE, SCRAMBLE };
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Checks whether making this edit twice in a row gives the same image as making it
+     * once. Greyscale, Luma, Pixelate and Mosaic do: the second time round every
+     * pixel (or block) already has the colour it would get.
+     *
+     * @return boolean  True if a second go changes nothing
+     */
+    public boolean isIdempotent ()
+    {
+        switch (this)
+        {
+            case PIXELATE:
+            case MOSAIC:
+            case GREYSCALE:
+            case LUMA:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return String   Name of the Processor method that makes this edit, like "greyScale"
+     */
+    public String getName ()
+    {
+        return name;
+    }
+}
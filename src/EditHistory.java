@@ -0,0 +1,57 @@
+import java.awt.image.BufferedImage;
+
+/**
+ * Remembers the states an image goes through as it is edited, so edits can be
+ * undone and redone. EditRunner keeps one of these for the image on screen.
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public interface EditHistory
+{
+    /**
+     * Forgets every earlier state and starts again from this image, e.g. after a new
+     * file is opened.
+     *
+     * @param bi    The image as it is now
+     */
+    void reset (BufferedImage bi);
+
+    /**
+     * Remembers the image as it is right after an edit. Any undone edits can no
+     * longer be redone.
+     *
+     * @param bi    The image as it is now
+     * @param edit  The edit that was just made, or null if it was something else
+     */
+    void commit (BufferedImage bi, Edit edit);
+
+    /**
+     * Changes the image back to the state the history is at now, e.g. after an edit
+     * was stopped halfway through.
+     *
+     * @param bi    The BufferedImage (passed by reference) to change.
+     */
+    void revert (BufferedImage bi);
+
+    /**
+     * @return long Bytes of pixel data the history keeps right now
+     */
+    long getMemoryUsed ();
+
+    /**
+     * Changes the image back to how it was before the last edit.
+     *
+     * @param bi    The BufferedImage (passed by reference) to change.
+     * @return boolean  True if there was an edit to undo, otherwise false
+     */
+    boolean undo (BufferedImage bi);
+
+    /**
+     * Makes the last undone edit again.
+     *
+     * @param bi    The BufferedImage (passed by reference) to change.
+     * @return boolean  True if there was an edit to redo, otherwise false
+     */
+    boolean redo (BufferedImage bi);
+}
@@ -0,0 +1,134 @@
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleConsumer;
+
+/**
+ * Lets a long edit report how far it has got, and be stopped part way through.
+ * <p>
+ * Processor methods don't take one of these directly. Instead an edit is run inside
+ * run(), and every BandExecutor.run() on that thread checks it before each band of
+ * rows: once cancel() has been called the next band throws a CancellationException
+ * instead of starting. After each band the amount of work done goes up and the
+ * listener hears about it.
+ * <p>
+ * A cancelled edit leaves the image half changed, so whoever runs it has to put the
+ * image back (EditRunner uses EditHistory.revert()).
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public class EditProgress
+{
+    private static final ThreadLocal<EditProgress> CURRENT = new ThreadLocal<EditProgress>();
+
+    private final DoubleConsumer listener;  // Told the fraction done after each band, may be null
+    private final AtomicLong done = new AtomicLong();   // Pixels processed so far
+    private final AtomicLong total = new AtomicLong();  // Pixels in every pass started so far
+    private volatile boolean cancelled;
+
+    /**
+     * Construct an EditProgress that nobody listens to.
+     */
+    public EditProgress ()
+    {
+        this (null);
+    }
+
+    /**
+     * Construct an EditProgress that reports to a listener. The listener is called on
+     * whichever thread finished a band, so it has to be quick and thread-safe.
+     *
+     * @param listener  Called with the fraction done (0 to 1) after every band
+     */
+    public EditProgress (DoubleConsumer listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * Runs a task on this thread, with every BandExecutor.run() inside it checking
+     * this EditProgress.
+     *
+     * @param task  The work to do, e.g. an edit
+     * @throws CancellationException    If cancel() was called before the task finished
+     */
+    public void run (Runnable task)
+    {
+        check();
+        EditProgress outer = CURRENT.get();
+        CURRENT.set (this);
+        try
+        {
+            task.run();
+        }
+        finally
+        {
+            if (outer == null)
+                CURRENT.remove();
+            else
+                CURRENT.set (outer);
+        }
+    }
+
+    /**
+     * Asks the task to stop. It stops before its next band of rows starts.
+     */
+    public void cancel ()
+    {
+        cancelled = true;
+    }
+
+    /**
+     * @return boolean  True if cancel() has been called
+     */
+    public boolean isCancelled ()
+    {
+        return cancelled;
+    }
+
+    /**
+     * @return double   Fraction of the work started so far that is done, from 0 to 1.
+     *                  An edit that makes several passes goes back down when the next
+     *                  pass starts.
+     */
+    public double getFraction ()
+    {
+        long work = total.get();
+        return (work == 0) ? 0 : Math.min (1.0, done.get() / (double) work);
+    }
+
+    /**
+     * @return EditProgress The EditProgress whose run() this thread is inside, or null
+     */
+    static EditProgress current ()
+    {
+        return CURRENT.get();
+    }
+
+    /**
+     * Throws a CancellationException if the task has been cancelled.
+     */
+    void check ()
+    {
+        if (cancelled)
+            throw new CancellationException ("Edit cancelled");
+    }
+
+    /**
+     * Adds a new pass over the image to the work to be done.
+     */
+    void begin (long pixels)
+    {
+        total.addAndGet (pixels);
+    }
+
+    /**
+     * Counts a finished band and tells the listener.
+     */
+    void advance (long pixels)
+    {
+        done.addAndGet (pixels);
+        if (listener != null)
+            listener.accept (getFraction());
+    }
+}
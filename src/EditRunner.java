@@ -0,0 +1,299 @@
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs edits, undo and redo on a background thread, so the world keeps acting (and
+ * drawing) while a filter works through a big image.
+ * <p>
+ * The edits are made to a working copy of the image (see ImageHolder.getWorkingCopy()),
+ * never to the image on screen. When a task is done the runner waits until update()
+ * is called from act(), which copies the finished result to the screen in one go
+ * and starts the next task. The picture on screen is therefore never half-processed.
+ * <p>
+ * Clicks that arrive while the runner is busy are queued, so three quick clicks of
+ * Undo undo three edits, and a second click of Negative or a flip cancels out the
+ * first. Only an edit that changes nothing when made twice in a row (see
+ * Edit.isIdempotent()), clicked again before the last click of it has been dealt
+ * with, is dropped, so impatient repeated clicks of Greyscale don't pile up.
+ * <p>
+ * cancel() stops the running task before its next band of rows (see EditProgress)
+ * and drops the queue. The working copy is put back to the last state in the
+ * history, so neither the picture on screen nor the history ever sees the half-made edit.
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public class EditRunner
+{
+    // One background thread runs the tasks of every runner, one task at a time
+    private static final ExecutorService WORKER = Executors.newSingleThreadExecutor (task -> {
+        Thread thread = new Thread (task, "EditRunner");
+        thread.setDaemon (true);
+        return thread;
+    });
+
+    private final ImageHolder image;
+    private final EditHistory history;  // Only used by the background thread
+    private final BufferedImage working;
+
+    private final Deque<Task> queue = new ArrayDeque<Task>();  // Tasks waiting to start
+    private Task running;       // Task being run or waiting for update(), null if idle
+    private EditProgress progress;  // Progress of running
+    private boolean finished;   // Whether running is done and its result can be shown
+    private boolean changed;    // Whether running changed the working copy (false if it was cancelled)
+    private Throwable error;    // Thrown by the running task, if it failed
+
+    /**
+     * Construct an EditRunner for the image on screen. The history is reset to the
+     * image as it is now.
+     *
+     * @param image     The ImageHolder showing the image
+     * @param history   The history to keep the edits in
+     */
+    public EditRunner (ImageHolder image, EditHistory history)
+    {
+        this.image = image;
+        this.history = history;
+        this.working = image.getWorkingCopy();
+        history.reset (working);
+        Metrics.setHistoryMemory (history::getMemoryUsed);
+        Metrics.setHistoryCompressionRatio ((history instanceof CompressedHistory)
+            ? ((CompressedHistory) history)::getCompressionRatio : null);
+    }
+
+    /**
+     * Queues an edit.
+     *
+     * @param edit  The edit to make
+     */
+    public void edit (Edit edit)
+    {
+        submit (new Task (Action.EDIT, edit));
+    }
+
+    /**
+     * Queues an undo of the last edit.
+     */
+    public void undo ()
+    {
+        submit (new Task (Action.UNDO, null));
+    }
+
+    /**
+     * Queues a redo of the last undone edit.
+     */
+    public void redo ()
+    {
+        submit (new Task (Action.REDO, null));
+    }
+
+    /**
+     * Stops the running task as soon as possible and forgets the queued ones.
+     */
+    public synchronized void cancel ()
+    {
+        queue.clear();
+        if (progress != null)
+            progress.cancel();
+    }
+
+    /**
+     * Shows the result of a finished task and starts the next one. Call this from
+     * act(), it is the only place the image on screen is changed.
+     */
+    public void update ()
+    {
+        Throwable failure;
+        synchronized (this)
+        {
+            if (!finished)
+                return;
+
+            // The background thread is idle until the next task starts, so the working copy holds still
+            failure = error;
+            if (changed)
+                image.showWorkingCopy (working);
+            running = null;
+            progress = null;
+            finished = false;
+            changed = false;
+            error = null;
+            startNext();
+        }
+        if (failure instanceof Error)
+            throw (Error) failure;
+        if (failure != null)
+            throw (RuntimeException) failure;  // The tasks throw nothing checked
+    }
+
+    /**
+     * @return boolean  True if a task is running or waiting to be shown
+     */
+    public synchronized boolean isBusy ()
+    {
+        return running != null;
+    }
+
+    /**
+     * @return String   What the runner is doing, like "Working: greyScale 40% (2 more queued)",
+     *                  or an empty String if it is idle
+     */
+    public synchronized String getStatus ()
+    {
+        if (running == null)
+            return "";
+        if (progress.isCancelled())
+            return "Cancelling: " + running;
+        String status = "Working: " + running + " " + Math.round (progress.getFraction() * 100) + "%";
+        if (!queue.isEmpty())
+            status += " (" + queue.size() + " more queued)";
+        return status;
+    }
+
+    private synchronized void submit (Task task)
+    {
+        Task last = queue.isEmpty() ? running : queue.peekLast();
+        if (task.action == Action.EDIT && task.edit.isIdempotent() && task.equals (last))
+            return;  // Same edit clicked again before the last click was dealt with, and a second go would change nothing
+        queue.add (task);
+        if (running == null)
+            startNext();
+    }
+
+    /**
+     * Hands the next queued task to the background thread, if there is one.
+     */
+    private void startNext ()
+    {
+        running = queue.poll();
+        if (running == null)
+            return;
+
+        Task task = running;
+        EditProgress taskProgress = new EditProgress();
+        progress = taskProgress;
+        WORKER.execute (() -> {
+            boolean done = false;
+            Throwable failure = null;
+            try
+            {
+                ImageSnapshot.beforeChange (working);  // Large images are exported straight from the working copy
+                taskProgress.run (() -> run (task));
+                if (task.action == Action.EDIT)
+                {
+                    Metrics.Sample commit = Metrics.start ("history.commit");
+                    history.commit (working, task.edit);  // Too late to cancel, the history must see every edit that was made
+                    commit.stop (pixels());
+                }
+                done = true;
+            }
+            catch (CancellationException e)
+            {
+                failure = revert (null);  // Throw away the half-made edit
+            }
+            catch (Throwable e)  // Errors too: running out of memory on a big image mustn't leave the runner busy for good
+            {
+                failure = revert (e);
+            }
+            finally
+            {
+                synchronized (this)
+                {
+                    changed = done;
+                    error = failure;
+                    finished = true;  // update() shows it on the next act()
+                }
+            }
+        });
+    }
+
+    /**
+     * Puts the working copy back to the last state in the history after a task stopped
+     * part way. Only called on the background thread.
+     *
+     * @param failure   What stopped the task, or null if it was cancelled
+     * @return Throwable    The failure to report, or null
+     */
+    private Throwable revert (Throwable failure)
+    {
+        try
+        {
+            history.revert (working);
+        }
+        catch (Throwable e)
+        {
+            if (failure == null)
+                return e;
+            failure.addSuppressed (e);
+        }
+        return failure;
+    }
+
+    /**
+     * Runs one task on the working copy, up to the point where it can still be
+     * cancelled. Only called on the background thread.
+     */
+    private void run (Task task)
+    {
+        switch (task.action)
+        {
+            case EDIT:
+                task.edit.apply (working);
+                break;
+            case UNDO:
+                Metrics.Sample undo = Metrics.start ("history.undo");
+                history.undo (working);
+                undo.stop (pixels());
+                break;
+            case REDO:
+                Metrics.Sample redo = Metrics.start ("history.redo");
+                history.redo (working);
+                redo.stop (pixels());
+                break;
+        }
+    }
+
+    private long pixels ()
+    {
+        return (long) working.getWidth() * working.getHeight();
+    }
+
+    private enum Action { EDIT, UNDO, REDO }
+
+    /**
+     * One click of a button: an edit, undo or redo.
+     */
+    private static class Task
+    {
+        final Action action;
+        final Edit edit;    // null for undo and redo
+
+        Task (Action action, Edit edit)
+        {
+            this.action = action;
+            this.edit = edit;
+        }
+
+        public boolean equals (Object other)
+        {
+            if (!(other instanceof Task))
+                return false;
+            Task task = (Task) other;
+            return action == task.action && edit == task.edit;
+        }
+
+        public int hashCode ()
+        {
+            return action.hashCode() * 31 + ((edit == null) ? 0 : edit.hashCode());
+        }
+
+        public String toString ()
+        {
+            return (action == Action.EDIT) ? edit.getName() : action.name().toLowerCase();
+        }
+    }
+}
@@ -0,0 +1,373 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Exports images in the background, in several formats and sizes at once, so the
+ * world keeps acting while a big PNG is compressed.
+ * <p>
+ * export() takes a snapshot of the image (see ImageSnapshot, which only copies it if
+ * it is edited before the export is done) and starts one background task per file,
+ * so a PNG and a JPG of the same image are encoded at the same time. PNGs are
+ * compressed on every core by ParallelPNGWriter, unless that is turned off.
+ * Smaller sizes are shrunk a few rows at a time as they are written, averaging the
+ * pixels that go into each one.
+ * <p>
+ * Like EditRunner, finished exports are collected from act(): update() returns the
+ * jobs that have finished since it was last called.
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public class ExportService
+{
+    // Background threads shared by every service, enough to encode a few files at once
+    private static final ExecutorService ENCODERS = Executors.newFixedThreadPool (
+        Math.max (2, Runtime.getRuntime().availableProcessors()), task -> {
+            Thread thread = new Thread (task, "Export");
+            thread.setDaemon (true);
+            return thread;
+        });
+
+    private final List<Job> jobs = new ArrayList<Job>();  // Started, and not yet returned by update()
+
+    private int pngLevel = ImageExporter.DEFAULT_PNG_LEVEL;
+    private boolean parallelPNG = true;
+    private float jpgQuality = ImageExporter.DEFAULT_JPG_QUALITY;
+    private boolean progressiveJPG = false;
+
+    /**
+     * One file to write.
+     */
+    public static class Target
+    {
+        private final File file;
+        private final String format;
+        private final int maxWidth;     // 0 for full size
+        private final int maxHeight;
+
+        /**
+         * A full size copy of the image.
+         *
+         * @param file      The file to write
+         * @param format    "png", "jpg", "raw" (see RasterFile) or any other format ImageIO can write
+         */
+        public Target (File file, String format)
+        {
+            this (file, format, 0, 0);
+        }
+
+        /**
+         * A copy of the image shrunk to fit in a box, keeping its shape. Images already
+         * smaller than the box are written full size.
+         *
+         * @param file      The file to write
+         * @param format    "png", "jpg", "raw" (see RasterFile) or any other format ImageIO can write
+         * @param maxWidth  Most width the copy may have
+         * @param maxHeight Most height the copy may have
+         */
+        public Target (File file, String format, int maxWidth, int maxHeight)
+        {
+            if (maxWidth < 0 || maxHeight < 0 || (maxWidth == 0) != (maxHeight == 0))
+                throw new IllegalArgumentException ("Size must be positive, or 0 by 0 for full size");
+            this.file = file;
+            this.format = format.toLowerCase();
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+        }
+
+        public File getFile ()
+        {
+            return file;
+        }
+    }
+
+    /**
+     * A group of files being written from one snapshot.
+     */
+    public static class Job
+    {
+        private final List<Target> targets;
+        private final List<String> failures = new ArrayList<String>();  // Guarded by this
+        private int remaining;  // Files not yet written, guarded by this
+
+        Job (List<Target> targets)
+        {
+            this.targets = targets;
+            this.remaining = targets.size();
+        }
+
+        /**
+         * @return List<File>   Every file the job writes (or wrote)
+         */
+        public List<File> getFiles ()
+        {
+            List<File> files = new ArrayList<File>();
+            for (Target target : targets)
+            {
+                files.add (target.file);
+            }
+            return files;
+        }
+
+        public synchronized boolean isDone ()
+        {
+            return remaining == 0;
+        }
+
+        /**
+         * @return int  Number of files still being written
+         */
+        public synchronized int getRemaining ()
+        {
+            return remaining;
+        }
+
+        /**
+         * @return List<String> A message for each file that couldn't be written
+         */
+        public synchronized List<String> getFailures ()
+        {
+            return new ArrayList<String> (failures);
+        }
+
+        /**
+         * Records that one file has been written (or has failed), returning true for the last one.
+         */
+        private synchronized boolean finish (Target target, Throwable failure)
+        {
+            if (failure != null)
+                failures.add (target.file + ": " + failure.getMessage());
+            return --remaining == 0;
+        }
+    }
+
+    /**
+     * Sets the PNG compression level, 0 (fastest) to 9 (smallest file).
+     *
+     * @param level The level
+     */
+    public void setPNGLevel (int level)
+    {
+        if (level < 0 || level > 9)
+            throw new IllegalArgumentException ("PNG compression level must be 0 to 9: " + level);
+        pngLevel = level;
+    }
+
+    /**
+     * Turns compressing PNGs on every core (see ParallelPNGWriter) on or off. Off,
+     * they are written by ImageIO on a single thread.
+     *
+     * @param parallel  Whether to use every core
+     */
+    public void setParallelPNG (boolean parallel)
+    {
+        parallelPNG = parallel;
+    }
+
+    /**
+     * Sets the JPG quality, from 0 (smallest file) to 1 (best quality).
+     *
+     * @param quality   The quality
+     */
+    public void setJPGQuality (float quality)
+    {
+        if (quality < 0 || quality > 1)
+            throw new IllegalArgumentException ("JPG quality must be 0 to 1: " + quality);
+        jpgQuality = quality;
+    }
+
+    /**
+     * Sets whether JPGs are written progressive (a blurry version shows first while
+     * they load).
+     *
+     * @param progressive   Whether to write progressive JPGs
+     */
+    public void setProgressiveJPG (boolean progressive)
+    {
+        progressiveJPG = progressive;
+    }
+
+    /**
+     * Starts writing an image to one or more files in the background. The image may
+     * be edited straight after this returns, the files still get it as it is now.
+     *
+     * @param bi        The image to write
+     * @param targets   The files to write it to
+     * @return Job      Follows the files being written
+     */
+    public Job export (BufferedImage bi, List<Target> targets)
+    {
+        Job job = new Job (new ArrayList<Target> (targets));
+        if (targets.isEmpty())
+            return job;
+
+        ImageSnapshot snapshot = ImageSnapshot.take (bi);
+        int level = pngLevel;  // Settings as they are now, they may change before the tasks run
+        boolean parallel = parallelPNG;
+        float quality = jpgQuality;
+        boolean progressive = progressiveJPG;
+        for (Target target : job.targets)
+        {
+            ENCODERS.execute (() -> {
+                Throwable failure = null;
+                try
+                {
+                    Metrics.Sample sample = Metrics.start ("export." + target.format);
+                    long pixels = write (snapshot, target, level, parallel, quality, progressive);
+                    sample.stop (pixels);
+                }
+                catch (Throwable e)  // Errors too, like running out of memory: the file failed either way
+                {
+                    failure = e;
+                }
+                finally
+                {
+                    // The last file to finish lets go of the snapshot, however the others went
+                    if (job.finish (target, failure))
+                        snapshot.release();
+                }
+            });
+        }
+        synchronized (jobs)
+        {
+            jobs.add (job);
+        }
+        return job;
+    }
+
+    /**
+     * Returns the jobs that have finished since the last call. Call this from act().
+     *
+     * @return List<Job>    Finished jobs, usually none
+     */
+    public List<Job> update ()
+    {
+        synchronized (jobs)
+        {
+            if (jobs.isEmpty())
+                return Collections.emptyList();
+
+            List<Job> finished = new ArrayList<Job>();
+            for (Job job : jobs)
+            {
+                if (job.isDone())
+                    finished.add (job);
+            }
+            jobs.removeAll (finished);
+            return finished;
+        }
+    }
+
+    /**
+     * Returns a line of text about the exports that are running, like "Exporting: 2 files".
+     *
+     * @return String   The status, or "" if nothing is being exported
+     */
+    public String getStatus ()
+    {
+        int files = 0;
+        synchronized (jobs)
+        {
+            for (Job job : jobs)
+            {
+                files += job.getRemaining();
+            }
+        }
+        if (files == 0)
+            return "";
+        return "Exporting: " + files + ((files == 1) ? " file" : " files");
+    }
+
+    /**
+     * Writes one file. Runs on a background thread.
+     *
+     * @return long Number of pixels written
+     */
+    private static long write (ImageSnapshot snapshot, Target target, int level, boolean parallel, float quality,
+        boolean progressive) throws IOException
+    {
+        int width = snapshot.getWidth();
+        int height = snapshot.getHeight();
+        ImageExporter.RowSource rows = snapshot;
+        if (target.maxWidth > 0)
+        {
+            double scale = Math.min (1.0, Math.min (target.maxWidth / (double) width, target.maxHeight / (double) height));
+            if (scale < 1.0)
+            {
+                int newWidth = Math.max (1, (int) (width * scale));
+                int newHeight = Math.max (1, (int) (height * scale));
+                rows = shrink (snapshot, width, height, newWidth, newHeight);
+                width = newWidth;
+                height = newHeight;
+            }
+        }
+
+        if (target.format.equals ("png"))
+        {
+            if (parallel)
+                ParallelPNGWriter.write (width, height, snapshot.hasAlpha(), rows, target.file, level);
+            else
+                ImageExporter.writePNG (width, height, rows, target.file, level);
+        }
+        else if (target.format.equals ("jpg") || target.format.equals ("jpeg"))
+        {
+            ImageExporter.writeJPG (width, height, rows, target.file, quality, progressive);
+        }
+        else if (target.format.equals (RasterFile.EXTENSION))
+        {
+            RasterFile.write (width, height, rows, target.file);
+        }
+        else
+        {
+            ImageExporter.write (ImageExporter.argbView (width, height, rows), target.format, target.file);
+        }
+        return (long) width * height;
+    }
+
+    /**
+     * Returns rows of a smaller copy of an image, where each pixel is the average of
+     * the block of pixels it covers.
+     */
+    private static ImageExporter.RowSource shrink (ImageExporter.RowSource source, int width, int height,
+        int newWidth, int newHeight)
+    {
+        return (y, row) -> {
+            int firstRow = (int) ((long) y * height / newHeight);
+            int endRow = Math.max (firstRow + 1, (int) ((long) (y + 1) * height / newHeight));
+            int[] sourceRow = new int[width];
+            long[] sums = new long[newWidth * 4];  // Alpha, red, green and blue of each new pixel
+            for (int sy = firstRow; sy < endRow; sy++)
+            {
+                source.read (sy, sourceRow);
+                for (int x = 0; x < newWidth; x++)
+                {
+                    int firstColumn = (int) ((long) x * width / newWidth);
+                    int endColumn = Math.max (firstColumn + 1, (int) ((long) (x + 1) * width / newWidth));
+                    for (int sx = firstColumn; sx < endColumn; sx++)
+                    {
+                        int pixel = sourceRow[sx];
+                        sums[x * 4] += pixel >>> 24;
+                        sums[x * 4 + 1] += (pixel >> 16) & 0xFF;
+                        sums[x * 4 + 2] += (pixel >> 8) & 0xFF;
+                        sums[x * 4 + 3] += pixel & 0xFF;
+                    }
+                }
+            }
+            for (int x = 0; x < newWidth; x++)
+            {
+                int firstColumn = (int) ((long) x * width / newWidth);
+                int endColumn = Math.max (firstColumn + 1, (int) ((long) (x + 1) * width / newWidth));
+                long count = (long) (endRow - firstRow) * (endColumn - firstColumn);
+                long half = count / 2;  // Rounds to the nearest value
+                row[x] = (int) ((sums[x * 4] + half) / count) << 24 | (int) ((sums[x * 4 + 1] + half) / count) << 16
+                    | (int) ((sums[x * 4 + 2] + half) / count) << 8 | (int) ((sums[x * 4 + 3] + half) / count);
+            }
+        };
+    }
+}
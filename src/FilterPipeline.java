@@ -0,0 +1,185 @@
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A list of edits that is applied to an image as one job, with as few passes over
+ * the image as possible.
+ * <p>
+ * Every run of colour edits in a row is fused into one operation: ChannelLuts
+ * (Green-ify, Brighten, Negative, Scramble, custom curves, ...) are joined into a
+ * single lookup table, and any other PixelOps are applied one after another to a
+ * small piece of a row while it is still in the cache. The fusion only breaks at
+ * edits that move pixels around, like Flip Horizontal or Pixelate, which get a
+ * pass of their own. So Brighten x3, Green-ify, Negative is one pass, not five.
+ * <p>
+ * Images that round the colours they store (like TYPE_BYTE_GRAY) would come out
+ * differently if the rounding in between edits was skipped, so for those every
+ * edit still gets its own pass.
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public class FilterPipeline
+{
+    private final List<Object> steps = new ArrayList<Object>();  // Each is a PixelOp or a Consumer<BufferedImage>
+
+    /**
+     * Builds a pipeline from a list of edits.
+     *
+     * @param edits The edits, in the order they are applied
+     * @return FilterPipeline   The new pipeline
+     */
+    public static FilterPipeline of (Edit... edits)
+    {
+        FilterPipeline pipeline = new FilterPipeline();
+        for (Edit edit : edits)
+        {
+            pipeline.add (edit);
+        }
+        return pipeline;
+    }
+
+    /**
+     * Adds an edit to the end of the pipeline.
+     *
+     * @param edit  The edit to add
+     * @return FilterPipeline   This pipeline, so calls can be chained
+     */
+    public FilterPipeline add (Edit edit)
+    {
+        if (edit.pointOp() != null)
+            return addPointOp (edit.pointOp());
+        return addImageOp (edit::apply);
+    }
+
+    /**
+     * Adds a per-pixel operation to the end of the pipeline. It is fused with the
+     * operations next to it.
+     *
+     * @param op    The operation to add
+     * @return FilterPipeline   This pipeline, so calls can be chained
+     */
+    public FilterPipeline addPointOp (PixelOp op)
+    {
+        steps.add (op);
+        return this;
+    }
+
+    /**
+     * Adds an operation on the whole image (one that moves pixels around) to the end
+     * of the pipeline. It always gets a pass of its own.
+     *
+     * @param op    The operation to add
+     * @return FilterPipeline   This pipeline, so calls can be chained
+     */
+    public FilterPipeline addImageOp (Consumer<BufferedImage> op)
+    {
+        steps.add (op);
+        return this;
+    }
+
+    /**
+     * @return int  Number of passes over the image that apply() will make (on an image
+     *              that keeps exact colours, see PixelAccess.keepsExactColours())
+     */
+    public int getPassCount ()
+    {
+        return compile (true).size();
+    }
+
+    /**
+     * Applies every edit in the pipeline to an image, in order.
+     *
+     * @param bi    The BufferedImage (passed by reference) to change.
+     */
+    @SuppressWarnings("unchecked")
+    public void apply (BufferedImage bi)
+    {
+        Metrics.Sample sample = Metrics.start ("pipeline");
+        for (Object pass : compile (PixelAccess.keepsExactColours (bi)))
+        {
+            if (pass instanceof PixelOp)
+                PixelAccess.applyPointOp (bi, (PixelOp) pass);
+            else
+                ((Consumer<BufferedImage>) pass).accept (bi);
+        }
+        sample.stop ((long) bi.getWidth() * bi.getHeight());
+    }
+
+    /**
+     * Joins the steps into passes: if fuse is true each run of PixelOps becomes a single
+     * PixelOp, otherwise every step is a pass.
+     */
+    private List<Object> compile (boolean fuse)
+    {
+        List<Object> passes = new ArrayList<Object>();
+        List<PixelOp> run = new ArrayList<PixelOp>();
+        for (Object step : steps)
+        {
+            if (step instanceof PixelOp && fuse)
+            {
+                PixelOp op = (PixelOp) step;
+                int last = run.size() - 1;
+                if (last >= 0 && run.get (last) instanceof ChannelLut && op instanceof ChannelLut)
+                    run.set (last, ((ChannelLut) run.get (last)).then ((ChannelLut) op));  // Two tables make one table
+                else
+                    run.add (op);
+            }
+            else
+            {
+                addRun (passes, run);
+                passes.add (step);
+            }
+        }
+        addRun (passes, run);
+        return passes;
+    }
+
+    private static void addRun (List<Object> passes, List<PixelOp> run)
+    {
+        if (run.size() == 1)
+            passes.add (run.get (0));
+        else if (run.size() > 1)
+            passes.add (new FusedOp (run.toArray (new PixelOp[run.size()])));
+        run.clear();
+    }
+
+    /**
+     * Several PixelOps applied as one. Rows are cut into small pieces and every op is
+     * applied to a piece before moving on, so the pixels are only read from memory once.
+     */
+    private static class FusedOp implements PixelOp
+    {
+        private static final int CHUNK = 2048;  // 8 KB of pixels, small enough to stay in the cache
+
+        private final PixelOp[] ops;
+
+        FusedOp (PixelOp[] ops)
+        {
+            this.ops = ops;
+        }
+
+        public int apply (int argb)
+        {
+            for (PixelOp op : ops)
+            {
+                argb = op.apply (argb);
+            }
+            return argb;
+        }
+
+        public void applyRow (int[] pixels, int offset, int length)
+        {
+            for (int start = offset; start < offset + length; start += CHUNK)
+            {
+                int count = Math.min (CHUNK, offset + length - start);
+                for (PixelOp op : ops)
+                {
+                    op.applyRow (pixels, start, count);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Keeps recently decoded images in memory, so opening the same file again doesn't
+ * decode it again.
+ * <p>
+ * Images are looked up by the file's path, its modification time and its length, so
+ * a file that has been changed on disk is decoded again (and the old image dropped).
+ * A "variant" tells apart different decodes of the same file, like a preview and
+ * the full size image.
+ * <p>
+ * The cache is bounded by the bytes of pixel data it holds. When it is full, the
+ * images that were used longest ago are dropped first. Images bigger than the whole
+ * cache, and mapped images (see MappedImage), are never kept.
+ * <p>
+ * Images are edited in place, so get() hands out a copy (much quicker than decoding
+ * a JPG or PNG again). Callers that only read the image, or copy it somewhere else
+ * anyway, use getShared() and get the cached image itself, so nothing is copied twice.
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public class ImageCache
+{
+    /**
+     * Decodes an image file, for when it isn't in the cache.
+     */
+    public interface Decoder
+    {
+        BufferedImage decode (File file) throws IOException;
+    }
+
+    // Shared by every ImageHolder, a quarter of the heap at most
+    private static final ImageCache SHARED = new ImageCache (Runtime.getRuntime().maxMemory() / 4);
+
+    private final LinkedHashMap<Key, BufferedImage> images = new LinkedHashMap<Key, BufferedImage> (16, 0.75f, true);  // Least recently used first
+    private long capacity;      // Most bytes of pixels to keep
+    private long memoryUsed;
+    private long hits;
+    private long misses;
+
+    /**
+     * Construct an empty ImageCache.
+     *
+     * @param capacity  Most bytes of pixel data to keep
+     */
+    public ImageCache (long capacity)
+    {
+        setCapacity (capacity);
+    }
+
+    /**
+     * @return ImageCache   The cache every ImageHolder uses
+     */
+    public static ImageCache shared ()
+    {
+        return SHARED;
+    }
+
+    /**
+     * Returns a copy of an image file's decoded pixels, decoding it only if it isn't
+     * in the cache (or the file has changed since).
+     *
+     * @param file      The image file
+     * @param variant   Which decode of the file it is, like "full" or "preview 720x700"
+     * @param decoder   Decodes the file if it isn't in the cache
+     * @return BufferedImage    The decoded image, which the caller may change
+     * @throws IOException  If the file has to be decoded and can't be
+     */
+    public BufferedImage get (File file, String variant, Decoder decoder) throws IOException
+    {
+        return lookup (file, variant, decoder, true);
+    }
+
+    /**
+     * Like get(), but returns the image kept in the cache itself instead of a copy.
+     * It must not be changed: use it for images that are only read, or copied into
+     * another image anyway (like the one shown on screen).
+     *
+     * @param file      The image file
+     * @param variant   Which decode of the file it is, like "full" or "preview 720x700"
+     * @param decoder   Decodes the file if it isn't in the cache
+     * @return BufferedImage    The decoded image, which must not be changed
+     * @throws IOException  If the file has to be decoded and can't be
+     */
+    public BufferedImage getShared (File file, String variant, Decoder decoder) throws IOException
+    {
+        return lookup (file, variant, decoder, false);
+    }
+
+    /**
+     * Finds an image in the cache, or decodes and keeps it, copying it if asked to.
+     */
+    private BufferedImage lookup (File file, String variant, Decoder decoder, boolean copy) throws IOException
+    {
+        Key key = new Key (file.getCanonicalPath(), variant, file.lastModified(), file.length());
+        BufferedImage cached;
+        synchronized (this)
+        {
+            cached = images.get (key);
+            if (cached != null)
+                hits++;
+            else
+                misses++;
+        }
+        if (cached != null)
+            return copy ? Processor.deepCopy (cached) : cached;  // Cached images are never changed, so no need to hold the lock
+
+        BufferedImage decoded = decoder.decode (file);  // Not locked, other files can be looked up meanwhile
+        if (MappedImage.isMapped (decoded) || bytes (decoded) > getCapacity())
+            return decoded;  // Not kept, so it already belongs to the caller
+        put (key, decoded);  // The decoded image itself is kept, only callers that change it get a copy
+        return copy ? Processor.deepCopy (decoded) : decoded;
+    }
+
+    /**
+     * Sets the most bytes of pixel data to keep, dropping images if there are more
+     * than that already.
+     *
+     * @param capacity  Most bytes of pixel data to keep
+     */
+    public synchronized void setCapacity (long capacity)
+    {
+        if (capacity < 0)
+            throw new IllegalArgumentException ("Capacity can't be negative: " + capacity);
+        this.capacity = capacity;
+        evict();
+    }
+
+    public synchronized long getCapacity ()
+    {
+        return capacity;
+    }
+
+    /**
+     * @return long Bytes of pixel data held
+     */
+    public synchronized long getMemoryUsed ()
+    {
+        return memoryUsed;
+    }
+
+    /**
+     * @return long Number of get() calls that found the image in the cache
+     */
+    public synchronized long getHits ()
+    {
+        return hits;
+    }
+
+    /**
+     * @return long Number of get() calls that had to decode the file
+     */
+    public synchronized long getMisses ()
+    {
+        return misses;
+    }
+
+    /**
+     * Drops every image.
+     */
+    public synchronized void clear ()
+    {
+        images.clear();
+        memoryUsed = 0;
+    }
+
+    private synchronized void put (Key key, BufferedImage image)
+    {
+        // Older decodes of a file that has since changed will never be asked for again
+        Iterator<Map.Entry<Key, BufferedImage>> entries = images.entrySet().iterator();
+        while (entries.hasNext())
+        {
+            Map.Entry<Key, BufferedImage> entry = entries.next();
+            if (entry.getKey().path.equals (key.path) && entry.getKey().variant.equals (key.variant))
+            {
+                memoryUsed -= bytes (entry.getValue());
+                entries.remove();
+            }
+        }
+        images.put (key, image);
+        memoryUsed += bytes (image);
+        evict();
+    }
+
+    /**
+     * Drops the least recently used images until the rest fit.
+     */
+    private void evict ()
+    {
+        Iterator<BufferedImage> oldest = images.values().iterator();
+        while (memoryUsed > capacity && oldest.hasNext())
+        {
+            memoryUsed -= bytes (oldest.next());
+            oldest.remove();
+        }
+    }
+
+    /**
+     * Works out how many bytes an image's pixels take up.
+     */
+    private static long bytes (BufferedImage bi)
+    {
+        DataBuffer data = bi.getRaster().getDataBuffer();
+        return (long) data.getSize() * data.getNumBanks() * DataBuffer.getDataTypeSize (data.getDataType()) / 8;
+    }
+
+    /**
+     * Which file an image was decoded from, and how.
+     */
+    private static class Key
+    {
+        final String path;
+        final String variant;
+        final long modified;
+        final long length;
+
+        Key (String path, String variant, long modified, long length)
+        {
+            this.path = path;
+            this.variant = variant;
+            this.modified = modified;
+            this.length = length;
+        }
+
+        public boolean equals (Object other)
+        {
+            if (!(other instanceof Key))
+                return false;
+            Key key = (Key) other;
+            return path.equals (key.path) && variant.equals (key.variant) && modified == key.modified && length == key.length;
+        }
+
+        public int hashCode ()
+        {
+            return Objects.hash (path, variant, modified, length);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decodes image files at a lower resolution, or only part of them, so a huge photo
+ * can be put on screen without decoding every pixel of it first.
+ * <p>
+ * ImageReadParam lets the reader skip pixels as it goes: source subsampling keeps
+ * only every n-th pixel of every n-th row, and a source region keeps only a
+ * rectangle. The pixels that are skipped are never stored, so a preview of a 100
+ * megapixel photo needs a preview's worth of memory. (JPG readers still have to go
+ * through the whole file, so subsampling saves less time on them than memory.)
+ * <p>
+ * Everything is returned as TYPE_INT_ARGB, like the images GreenfootImage loads.
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public class ImageDecoder
+{
+    /**
+     * Reads the size of an image file without decoding its pixels.
+     *
+     * @param file  The image file
+     * @return Dimension    Width and height of the image, or null if no installed
+     *                      reader understands the file
+     * @throws IOException  If the file can't be read
+     */
+    public static Dimension readSize (File file) throws IOException
+    {
+        try (ImageInputStream in = ImageIO.createImageInputStream (file))
+        {
+            Iterator<ImageReader> readers = (in == null) ? null : ImageIO.getImageReaders (in);
+            if (readers == null || !readers.hasNext())
+                return null;
+            ImageReader reader = readers.next();
+            try
+            {
+                reader.setInput (in);
+                return new Dimension (reader.getWidth (0), reader.getHeight (0));
+            }
+            finally
+            {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Decodes a whole image file at full size.
+     *
+     * @param file  The image file
+     * @return BufferedImage    The image
+     * @throws IOException  If the file can't be read or no reader understands it
+     */
+    public static BufferedImage read (File file) throws IOException
+    {
+        return read (file, null, 1);
+    }
+
+    /**
+     * Decodes an image file small enough to fit in a box, keeping its shape. Only
+     * about as many pixels as the preview has are kept while decoding, then the
+     * nearest pixel is picked for each pixel of the preview.
+     *
+     * @param file      The image file
+     * @param maxWidth  Most width the preview may have
+     * @param maxHeight Most height the preview may have
+     * @return BufferedImage    The preview, exactly MappedImage.previewSize() big
+     * @throws IOException  If the file can't be read or no reader understands it
+     */
+    public static BufferedImage readPreview (File file, int maxWidth, int maxHeight) throws IOException
+    {
+        Dimension full = readSize (file);
+        if (full == null)
+            throw new IOException ("Unknown image format: " + file);
+        Dimension size = MappedImage.previewSize (full.width, full.height, maxWidth, maxHeight);
+        // Biggest step that still leaves at least as many pixels as the preview needs
+        int step = Math.max (1, Math.min (full.width / size.width, full.height / size.height));
+        BufferedImage decoded = read (file, null, step);
+        if (decoded.getWidth() == size.width && decoded.getHeight() == size.height)
+            return decoded;
+
+        BufferedImage preview = new BufferedImage (size.width, size.height, BufferedImage.TYPE_INT_ARGB);
+        MappedImage.drawPreview (decoded, preview);
+        return preview;
+    }
+
+    /**
+     * Decodes part of an image file, optionally skipping pixels.
+     *
+     * @param file      The image file
+     * @param region    The rectangle of the image to decode (cut down to fit the image),
+     *                  or null for all of it
+     * @param step      1 to keep every pixel, n to keep every n-th pixel of every n-th row
+     * @return BufferedImage    The decoded pixels, about region.width / step by
+     *                          region.height / step big
+     * @throws IOException  If the file can't be read, no reader understands it or the
+     *                      region is outside the image
+     */
+    public static BufferedImage read (File file, Rectangle region, int step) throws IOException
+    {
+        if (step < 1)
+            throw new IllegalArgumentException ("Subsampling step must be at least 1: " + step);
+
+        try (ImageInputStream in = ImageIO.createImageInputStream (file))
+        {
+            ImageReader reader = readerFor (in, file);
+            try
+            {
+                reader.setInput (in, true, true);  // Only forward, and metadata isn't needed
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (region != null)
+                {
+                    Rectangle inside = region.intersection (new Rectangle (reader.getWidth (0), reader.getHeight (0)));
+                    if (inside.isEmpty())
+                        throw new IOException ("Region " + region + " is outside the image");
+                    param.setSourceRegion (inside);
+                }
+                param.setSourceSubsampling (step, step, 0, 0);
+                return toARGB (reader.read (0, param));
+            }
+            finally
+            {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Returns the image as TYPE_INT_ARGB, converting it (a band of rows at a time) if it
+     * is stored some other way.
+     */
+    private static BufferedImage toARGB (BufferedImage bi)
+    {
+        if (bi.getType() == BufferedImage.TYPE_INT_ARGB)
+            return bi;
+
+        int width = bi.getWidth();
+        BufferedImage argb = new BufferedImage (width, bi.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        BandExecutor.run (bi.getHeight(), width, (start, end) -> {
+            int[] row = new int[width];
+            for (int y = start; y < end; y++)
+            {
+                PixelAccess.readRow (bi, y, row);
+                PixelAccess.writeRow (argb, y, row);
+            }
+        });
+        return argb;
+    }
+
+    private static ImageReader readerFor (ImageInputStream in, File file) throws IOException
+    {
+        Iterator<ImageReader> readers = (in == null) ? null : ImageIO.getImageReaders (in);
+        if (readers == null || !readers.hasNext())
+            throw new IOException ("Unknown image format: " + file);
+        return readers.next();
+    }
+}
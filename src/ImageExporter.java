@@ -0,0 +1,316 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Writes images to PNG and JPG files without making a converted copy first.
+ * <p>
+ * JPG can't store transparency, so Processor.makeJPGCompatible() used to copy the
+ * whole image into a TYPE_3BYTE_BGR image before it could be written - for a big
+ * photo that is a second full size image (and a third with the array it went
+ * through). Instead, the writer here is given a view of the image: it looks like an
+ * ordinary RGB (or ARGB) image, but its pixels are converted with PixelAccess a band
+ * of rows at a time, just before the encoder reads them. Only one band is converted
+ * at once, so exporting needs a few rows of extra memory whatever the image size.
+ * <p>
+ * The ImageWriteParam settings that are worth changing can be passed in: JPG quality
+ * and progressive mode, and the PNG compression level (where the Java version's PNG
+ * writer supports it - Java 8's doesn't, and just uses its default).
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public class ImageExporter
+{
+    /**
+     * Somewhere to read rows of packed ARGB pixels from, like an image.
+     */
+    public interface RowSource
+    {
+        /**
+         * Fills row with row y of the image, as getRGB() would return it.
+         */
+        void read (int y, int[] row);
+    }
+
+    public static final float DEFAULT_JPG_QUALITY = 0.75f;  // Same as ImageIO.write()
+    public static final int DEFAULT_PNG_LEVEL = 4;  // 0 (fastest, biggest) to 9 (slowest, smallest)
+
+    private static final int BAND_ROWS = 16;  // Rows converted at once, one row of JPG blocks
+
+    /**
+     * Writes an image to a PNG file.
+     *
+     * @param bi    The image to write
+     * @param file  The file to write
+     * @param level Deflate compression level, 0 (fastest) to 9 (smallest file)
+     * @throws IOException  If the file can't be written
+     */
+    public static void writePNG (BufferedImage bi, File file, int level) throws IOException
+    {
+        // Images ImageIO stores as they are can be handed over straight away, the PNG
+        // writer reads them a row at a time itself
+        BufferedImage toWrite = bi.isAlphaPremultiplied() ? argbView (bi) : bi;
+        encodePNG (toWrite, file, level);
+    }
+
+    /**
+     * Writes rows of pixels to a PNG file, reading them as the encoder gets to them.
+     *
+     * @param width     Width of the image
+     * @param height    Height of the image
+     * @param rows      Where to read the pixels from
+     * @param file      The file to write
+     * @param level     Deflate compression level, 0 (fastest) to 9 (smallest file)
+     * @throws IOException  If the file can't be written
+     */
+    public static void writePNG (int width, int height, RowSource rows, File file, int level) throws IOException
+    {
+        encodePNG (argbView (width, height, rows), file, level);
+    }
+
+    private static void encodePNG (BufferedImage bi, File file, int level) throws IOException
+    {
+        if (level < 0 || level > 9)
+            throw new IllegalArgumentException ("PNG compression level must be 0 to 9: " + level);
+        ImageWriter writer = writerFor ("png");
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (param.canWriteCompressed())
+        {
+            param.setCompressionMode (ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality (1.0f - level / 9.0f);  // Quality 1 is no compression
+        }
+        write (writer, param, bi, file);
+    }
+
+    /**
+     * Writes an image to a JPG file. Transparency is dropped, leaving the colour
+     * underneath (like makeJPGCompatible()).
+     *
+     * @param bi            The image to write
+     * @param file          The file to write
+     * @param quality       Quality from 0 (smallest file) to 1 (best quality)
+     * @param progressive   Whether to write a progressive JPG, which shows a blurry version
+     *                      first while it loads
+     * @throws IOException  If the file can't be written
+     */
+    public static void writeJPG (BufferedImage bi, File file, float quality, boolean progressive) throws IOException
+    {
+        writeJPG (bi.getWidth(), bi.getHeight(), rowsOf (bi), file, quality, progressive);
+    }
+
+    /**
+     * Writes rows of pixels to a JPG file, reading them as the encoder gets to them.
+     *
+     * @param width         Width of the image
+     * @param height        Height of the image
+     * @param rows          Where to read the pixels from
+     * @param file          The file to write
+     * @param quality       Quality from 0 (smallest file) to 1 (best quality)
+     * @param progressive   Whether to write a progressive JPG
+     * @throws IOException  If the file can't be written
+     */
+    public static void writeJPG (int width, int height, RowSource rows, File file, float quality, boolean progressive) throws IOException
+    {
+        if (quality < 0 || quality > 1)
+            throw new IllegalArgumentException ("JPG quality must be 0 to 1: " + quality);
+        ImageWriter writer = writerFor ("jpg");
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode (ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality (quality);
+        if (progressive && param.canWriteProgressive())
+            param.setProgressiveMode (ImageWriteParam.MODE_DEFAULT);
+        write (writer, param, rgbView (width, height, rows), file);
+    }
+
+    /**
+     * Writes an image in a format picked by name, with the default settings.
+     *
+     * @param bi        The image to write
+     * @param format    "png", "jpg" or "jpeg", "raw" (see RasterFile), or any other
+     *                  format ImageIO can write
+     * @param file      The file to write
+     * @throws IOException  If the file can't be written, or there is no writer for the format
+     */
+    public static void write (BufferedImage bi, String format, File file) throws IOException
+    {
+        String name = format.toLowerCase();
+        if (name.equals (RasterFile.EXTENSION))
+            RasterFile.write (bi, file);
+        else if (name.equals ("png"))
+            writePNG (bi, file, DEFAULT_PNG_LEVEL);
+        else if (name.equals ("jpg") || name.equals ("jpeg"))
+            writeJPG (bi, file, DEFAULT_JPG_QUALITY, false);
+        else if (!ImageIO.write (bi, name, file))
+            throw new IOException ("No writer for " + format);
+    }
+
+    private static ImageWriter writerFor (String format) throws IOException
+    {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName (format);
+        if (!writers.hasNext())
+            throw new IOException ("No writer for " + format);
+        return writers.next();
+    }
+
+    private static void write (ImageWriter writer, ImageWriteParam param, BufferedImage bi, File file) throws IOException
+    {
+        file.delete();  // ImageIO doesn't shorten a file that is already there
+        try (ImageOutputStream out = ImageIO.createImageOutputStream (file))
+        {
+            if (out == null)
+                throw new IOException ("Can't write to " + file);
+            writer.setOutput (out);
+            writer.write (null, new IIOImage (bi, null, null), param);
+        }
+        finally
+        {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Returns a view of the image with three 8 bit bands, red, green and blue, that
+     * converts its pixels as they are read.
+     *
+     * @param bi    The image to view
+     * @return BufferedImage    An RGB image sharing bi's pixels
+     */
+    public static BufferedImage rgbView (BufferedImage bi)
+    {
+        return rgbView (bi.getWidth(), bi.getHeight(), rowsOf (bi));
+    }
+
+    /**
+     * Returns an RGB image that reads its pixels from rows as they are needed.
+     *
+     * @param width     Width of the image
+     * @param height    Height of the image
+     * @param rows      Where to read the pixels from
+     * @return BufferedImage    A read only RGB image
+     */
+    public static BufferedImage rgbView (int width, int height, RowSource rows)
+    {
+        return view (width, height, rows, new DirectColorModel (24, 0xFF0000, 0xFF00, 0xFF),
+            new int[] {0xFF0000, 0xFF00, 0xFF});
+    }
+
+    /**
+     * Returns a view of the image as non premultiplied ARGB (the same as getRGB()),
+     * that converts its pixels as they are read.
+     *
+     * @param bi    The image to view
+     * @return BufferedImage    An ARGB image sharing bi's pixels
+     */
+    public static BufferedImage argbView (BufferedImage bi)
+    {
+        return argbView (bi.getWidth(), bi.getHeight(), rowsOf (bi));
+    }
+
+    /**
+     * Returns a non premultiplied ARGB image that reads its pixels from rows as they
+     * are needed.
+     *
+     * @param width     Width of the image
+     * @param height    Height of the image
+     * @param rows      Where to read the pixels from
+     * @return BufferedImage    A read only ARGB image
+     */
+    public static BufferedImage argbView (int width, int height, RowSource rows)
+    {
+        return view (width, height, rows, ColorModel.getRGBdefault(), new int[] {0xFF0000, 0xFF00, 0xFF, 0xFF000000});
+    }
+
+    private static RowSource rowsOf (BufferedImage bi)
+    {
+        return (y, row) -> PixelAccess.readRow (bi, y, row);
+    }
+
+    private static BufferedImage view (int width, int height, RowSource rows, ColorModel colours, int[] masks)
+    {
+        SinglePixelPackedSampleModel layout = new SinglePixelPackedSampleModel (DataBuffer.TYPE_INT, width, height, masks);
+        WritableRaster raster = Raster.createWritableRaster (layout, new ConvertingBuffer (width, height, rows), null);
+        return new BufferedImage (colours, raster, false, null);
+    }
+
+    /**
+     * Pretends to hold the image's pixels as packed ARGB ints, like TYPE_INT_ARGB,
+     * reading a band of rows from the RowSource when the reader moves into it. Read
+     * only: writing to it does nothing.
+     */
+    private static class ConvertingBuffer extends DataBuffer
+    {
+        private final RowSource source;
+        private final int width;
+        private final int height;
+        private volatile Band band = new Band (-BAND_ROWS, new int[0]);  // Last band converted
+
+        ConvertingBuffer (int width, int height, RowSource source)
+        {
+            super (DataBuffer.TYPE_INT, width * height);
+            this.source = source;
+            this.width = width;
+            this.height = height;
+        }
+
+        public int getElem (int bank, int i)
+        {
+            Band current = band;  // Read once, another thread may swap it
+            int offset = i - current.firstRow * width;
+            if (offset < 0 || offset >= current.pixels.length)
+            {
+                current = convert (i / width);
+                offset = i - current.firstRow * width;
+            }
+            return current.pixels[offset];
+        }
+
+        public void setElem (int bank, int i, int val)
+        {
+            // The view is only read by image writers
+        }
+
+        private Band convert (int y)
+        {
+            int firstRow = y - y % BAND_ROWS;
+            int rows = Math.min (BAND_ROWS, height - firstRow);
+            int[] pixels = new int[rows * width];
+            int[] row = new int[width];
+            for (int r = 0; r < rows; r++)
+            {
+                source.read (firstRow + r, row);
+                System.arraycopy (row, 0, pixels, r * width, width);
+            }
+            Band converted = new Band (firstRow, pixels);
+            band = converted;
+            return converted;
+        }
+    }
+
+    /**
+     * Some rows of pixels, converted to packed ARGB.
+     */
+    private static class Band
+    {
+        final int firstRow;
+        final int[] pixels;
+
+        Band (int firstRow, int[] pixels)
+        {
+            this.firstRow = firstRow;
+            this.pixels = pixels;
+        }
+    }
+}
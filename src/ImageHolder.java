@@ -1,9 +1,11 @@
 import greenfoot.*;  // (World, Actor, GreenfootImage, Greenfoot and MouseInfo)
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.File;
+import java.io.UncheckedIOException;
+import java.util.function.Supplier;
 import javax.swing.JOptionPane;
-import javax.imageio.ImageIO;
 
 /**
  * Simple class that serves to be an Actor to display the image.
@@ -16,8 +18,14 @@ import javax.imageio.ImageIO;
  */
 public class ImageHolder extends Actor
 {
+    // Images with more pixels than this are kept in a scratch file, and only a preview is shown
+    private static final long LARGE_IMAGE_PIXELS = 40000000;
+    private static final int PREVIEW_WIDTH = 720;
+    private static final int PREVIEW_HEIGHT = 700;
+
     private GreenfootImage imageToDisplay;
-    private BufferedImage imageToJPG;  // Adapted image on canvas for compatibility with JPG file limitations
+    private FullImage fullImage;  // Full size image behind the preview, or null if the image is shown as it is
+    private boolean proxyPreview;  // Whether every image bigger than the preview box is shown as a preview
 
     /**
      * Construct an ImageHolder with a file name. If there is an error, 
@@ -27,11 +35,29 @@ public class ImageHolder extends Actor
      */
     public ImageHolder (String fileName)
     {
+        this (fileName, false);
+    }
+
+    /**
+     * Construct an ImageHolder with a file name, which may show big images as a
+     * preview to edit (see ProxyEditor). If there is an error, show a blank GreenfootImage.
+     * 
+     * @param fileName      Name of image file to be displayed.
+     * @param proxyPreview  True to show any image bigger than the preview box as a
+     *                      preview, false to only do so for images too big for the heap
+     */
+    public ImageHolder (String fileName, boolean proxyPreview)
+    {
+        this.proxyPreview = proxyPreview;
         openFile (fileName);
     }
 
     /**
-     * Attempt to open a file and assign it as this Actor's image
+     * Attempt to open a file and assign it as this Actor's image. Images bigger than
+     * the preview box (in proxy preview mode), or too big for the heap, are decoded at
+     * preview size straight away, and in full only when the full size image is
+     * first needed (see getBufferedImage()). Files opened before are copied from
+     * ImageCache instead of being decoded again.
      * 
      * @param fileName  Name of the image file to open (must be in this directory)
      * @return boolean  True if operation successful, otherwise false
@@ -41,8 +67,47 @@ public class ImageHolder extends Actor
         try {
             if (fileName != null)
             {
-                imageToDisplay = new GreenfootImage (fileName);
+                Metrics.Sample sample = Metrics.start ("decode");
+                File file = findFile (fileName);
+                Dimension size = (file == null) ? null : ImageDecoder.readSize (file);
+                long pixels = (size == null) ? -1 : (long) size.width * size.height;
+                if (file != null && RasterFile.isRasterFile (file))
+                {
+                    // Already raw pixels, mapped rather than decoded (edits stay in memory, the file isn't changed)
+                    BufferedImage raster = RasterFile.open (file, false);
+                    Dimension previewSize = MappedImage.previewSize (raster, PREVIEW_WIDTH, PREVIEW_HEIGHT);
+                    imageToDisplay = new GreenfootImage (previewSize.width, previewSize.height);
+                    MappedImage.drawPreview (raster, imageToDisplay.getAwtImage());
+                    fullImage = new FullImage (file, f -> raster);
+                }
+                else if (pixels > LARGE_IMAGE_PIXELS
+                    || (proxyPreview && size != null && (size.width > PREVIEW_WIDTH || size.height > PREVIEW_HEIGHT)))
+                {
+                    // Show a smaller copy, decoded without going through every pixel
+                    BufferedImage preview = ImageCache.shared().getShared (file, "preview " + PREVIEW_WIDTH + "x" + PREVIEW_HEIGHT,
+                        f -> ImageDecoder.readPreview (f, PREVIEW_WIDTH, PREVIEW_HEIGHT));
+                    imageToDisplay = new GreenfootImage (preview.getWidth(), preview.getHeight());
+                    Processor.undoEdit (imageToDisplay.getAwtImage(), preview);
+                    if (pixels > LARGE_IMAGE_PIXELS)
+                        fullImage = new FullImage (file, MappedImage::read);  // Too big for the heap, decode into a scratch file
+                    else
+                        fullImage = new FullImage (file, f -> ImageCache.shared().get (f, "full", ImageDecoder::read));
+                }
+                else if (size != null)
+                {
+                    // Opened before? Then it is still decoded in the cache
+                    BufferedImage decoded = ImageCache.shared().getShared (file, "full", ImageDecoder::read);  // Only copied onto the screen
+                    imageToDisplay = new GreenfootImage (size.width, size.height);
+                    Processor.undoEdit (imageToDisplay.getAwtImage(), decoded);
+                    fullImage = null;
+                }
+                else
+                {
+                    imageToDisplay = new GreenfootImage (fileName);  // Not a plain file, or a format only Greenfoot knows
+                    fullImage = null;
+                }
                 setImage(imageToDisplay);
+                sample.stop ((long) imageToDisplay.getWidth() * imageToDisplay.getHeight());
             }
             else
                 return false;
@@ -52,9 +117,90 @@ public class ImageHolder extends Actor
             JOptionPane.showMessageDialog(null, "File name invalid or not found. Please make sure full extension is included");
             return false;
         }
+        catch (IOException e)  // If the image can't be decoded
+        {
+            JOptionPane.showMessageDialog(null, "Sorry, there was an error opening the image.");
+            return false;
+        }
         return true;
     }
 
+    /**
+     * Checks whether only a preview of the image is on screen.
+     * 
+     * @return boolean  True if the image is larger than the preview being shown
+     */
+    public boolean isLarge ()
+    {
+        return fullImage != null;
+    }
+
+    /**
+     * Redraws the preview after the full size image has been changed. Does nothing
+     * for images that are edited on screen directly.
+     */
+    public void refreshPreview ()
+    {
+        if (fullImage != null)
+            MappedImage.drawPreview (fullImage.get(), imageToDisplay.getAwtImage());
+    }
+
+    /**
+     * Allows access to the image on screen, which is only a preview if isLarge().
+     * 
+     * @return BufferedImage    The backing image of the GreenfootImage being shown
+     */
+    public BufferedImage getPreviewImage ()
+    {
+        return imageToDisplay.getAwtImage();
+    }
+
+    /**
+     * Returns an image that edits can be made to without changing the picture on
+     * screen (see EditRunner). Large images are already off screen, so they are
+     * returned as they are.
+     * 
+     * @return BufferedImage    Copy of the image, or the full size image if it is large
+     */
+    public BufferedImage getWorkingCopy ()
+    {
+        if (fullImage != null)
+            return fullImage.get();
+        return Processor.deepCopy (this.getImage().getAwtImage());
+    }
+
+    /**
+     * Puts the edited working copy on screen, all at once.
+     * 
+     * @param working   The image returned by getWorkingCopy(), after editing
+     */
+    public void showWorkingCopy (BufferedImage working)
+    {
+        if (fullImage != null)
+            refreshPreview();
+        else
+        {
+            ImageSnapshot.beforeChange (this.getImage().getAwtImage());  // An export may still be reading it
+            Processor.undoEdit (this.getImage().getAwtImage(), working);
+        }
+    }
+
+    /**
+     * Looks for an image file the way GreenfootImage does: in the program directory,
+     * then in its images folder.
+     * 
+     * @param fileName  Name of the image file
+     * @return File     The file, or null if it isn't in either place
+     */
+    private File findFile (String fileName)
+    {
+        File file = new File (fileName);
+        if (file.isFile())
+            return file;
+        file = new File ("images", fileName);
+        return file.isFile() ? file : null;
+    }
+
     /**
      * Attempt to create a new PNG file in the program directory
      * 
@@ -62,11 +208,26 @@ public class ImageHolder extends Actor
      * @return boolean  True if operation successful, otherwise false
      */
     public boolean exportPNG (String fileName)
+    {
+        return exportPNG (fileName, this.getBufferedImage());
+    }
+
+    /**
+     * Attempt to create a new PNG file of a given image in the program directory, e.g.
+     * the full size render of a preview (see ProxyEditor)
+     * 
+     * @param fileName  Name of the image file to be created
+     * @param bi        The image to write
+     * @return boolean  True if operation successful, otherwise false
+     */
+    public boolean exportPNG (String fileName, BufferedImage bi)
     {
         try {
             if (fileName != null)
             {
-                ImageIO.write(this.getBufferedImage(), "png", new File(fileName + ".png"));
+                Metrics.Sample sample = Metrics.start ("encode.png");
+                ImageExporter.writePNG (bi, new File(fileName + ".png"), ImageExporter.DEFAULT_PNG_LEVEL);
+                sample.stop ((long) bi.getWidth() * bi.getHeight());
             }
             else
                 return false;
@@ -86,12 +247,27 @@ public class ImageHolder extends Actor
      * @return boolean  True if operation successful, otherwise false
      */
     public boolean exportJPG (String fileName)
+    {
+        return exportJPG (fileName, this.getBufferedImage());
+    }
+
+    /**
+     * Attempt to create a new JPG file of a given image in the program directory, e.g.
+     * the full size render of a preview (see ProxyEditor)
+     * 
+     * @param fileName  Name of the image file to be created
+     * @param bi        The image to write
+     * @return boolean  True if operation successful, otherwise false
+     */
+    public boolean exportJPG (String fileName, BufferedImage bi)
     {
         try {
             if (fileName != null)
             {
-                imageToJPG = Processor.makeJPGCompatible(this.getBufferedImage());  // Changes type of BufferedImage to prevent corruption when exporting file as JPG
-                ImageIO.write(imageToJPG, "jpg", new File(fileName + ".jpg"));
+                Metrics.Sample sample = Metrics.start ("encode.jpg");
+                // Converted to JPG's colours a few rows at a time as it is written, rather than copied first
+                ImageExporter.writeJPG (bi, new File(fileName + ".jpg"), ImageExporter.DEFAULT_JPG_QUALITY, false);
+                sample.stop ((long) bi.getWidth() * bi.getHeight());
             }
             else
                 return false;
@@ -106,12 +282,66 @@ public class ImageHolder extends Actor
 
     /**
      * Allows access to my awtImage - the backing data underneath the GreenfootImage class.
+     * For large images this is the full size image instead (decoded now if it hasn't
+     * been yet), call refreshPreview() after changing it.
      * 
      * @return BufferedImage returns the backing image for this Actor as an AwtImage
+     * @throws UncheckedIOException If the full size image can't be decoded
      */
     public BufferedImage getBufferedImage ()
     {
+        if (fullImage != null)
+            return fullImage.get();
         return this.getImage().getAwtImage();
     }
 
+    /**
+     * Returns something that gives the full size image when it is asked for, decoding
+     * it then if needed. It keeps giving this image even after another file is opened.
+     * 
+     * @return Supplier<BufferedImage>  Gives the same image as getBufferedImage() does now
+     */
+    public Supplier<BufferedImage> getFullImageSource ()
+    {
+        if (fullImage != null)
+            return fullImage::get;
+        BufferedImage shown = this.getImage().getAwtImage();
+        return () -> shown;
+    }
+
+    /**
+     * The full size image behind a preview, decoded from its file the first time it
+     * is asked for (on whichever thread asks).
+     */
+    private static class FullImage
+    {
+        private final File file;
+        private final ImageCache.Decoder decoder;
+        private BufferedImage image;    // null until decoded, guarded by this
+
+        FullImage (File file, ImageCache.Decoder decoder)
+        {
+            this.file = file;
+            this.decoder = decoder;
+        }
+
+        synchronized BufferedImage get ()
+        {
+            if (image == null)
+            {
+                try
+                {
+                    Metrics.Sample sample = Metrics.start ("decode.full");
+                    image = decoder.decode (file);
+                    sample.stop ((long) image.getWidth() * image.getHeight());
+                }
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException (e);
+                }
+            }
+            return image;
+        }
+    }
+
 }
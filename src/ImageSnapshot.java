@@ -0,0 +1,134 @@
+import java.awt.image.BufferedImage;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A frozen copy of an image for exporting in the background, that usually costs
+ * nothing to make (copy on write).
+ * <p>
+ * Taking a snapshot doesn't copy anything: it just reads the image itself. Code that
+ * is about to change an image calls beforeChange() first, and only then, if a snapshot
+ * of that image is still being read, is the image copied and the snapshot moved over
+ * to the copy. Exports that finish before the next edit never copy at all.
+ * <p>
+ * Snapshots must be taken while nothing is changing the image (from act(), with no
+ * edit running on it). Rows can be read from any number of threads at once.
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public class ImageSnapshot implements ImageExporter.RowSource
+{
+    // Snapshots still reading the image they were taken of, guarded by itself
+    private static final Map<BufferedImage, ImageSnapshot> shared = new IdentityHashMap<BufferedImage, ImageSnapshot>();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();  // Readers share, moving to a copy waits for them
+    private final int width;
+    private final int height;
+    private final boolean alpha;
+    private volatile BufferedImage image;  // The image, or a private copy of it once it has been changed
+    private int users;  // Number of take() calls not yet released, guarded by shared
+
+    private ImageSnapshot (BufferedImage image)
+    {
+        this.image = image;
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        this.alpha = image.getColorModel().hasAlpha();
+    }
+
+    /**
+     * Takes a snapshot of an image as it is now. Call release() when done reading it.
+     *
+     * @param bi    The image
+     * @return ImageSnapshot    The snapshot (the same one as an earlier take() if the
+     *                          image hasn't changed since)
+     */
+    public static ImageSnapshot take (BufferedImage bi)
+    {
+        synchronized (shared)
+        {
+            ImageSnapshot snapshot = shared.get (bi);
+            if (snapshot == null)
+            {
+                snapshot = new ImageSnapshot (bi);
+                shared.put (bi, snapshot);
+            }
+            snapshot.users++;
+            return snapshot;
+        }
+    }
+
+    /**
+     * Must be called before changing an image. Snapshots still reading it are given a
+     * copy of it first, which can take a moment for a big image; otherwise it returns
+     * straight away.
+     *
+     * @param bi    The image about to be changed
+     */
+    public static void beforeChange (BufferedImage bi)
+    {
+        ImageSnapshot snapshot;
+        synchronized (shared)
+        {
+            snapshot = shared.remove (bi);
+        }
+        if (snapshot == null)
+            return;
+
+        snapshot.lock.writeLock().lock();  // Let rows being read finish first
+        try
+        {
+            snapshot.image = Processor.deepCopy (bi);
+        }
+        finally
+        {
+            snapshot.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Says that a user of the snapshot (one take()) is done with it.
+     */
+    public void release ()
+    {
+        synchronized (shared)
+        {
+            if (--users == 0 && shared.get (image) == this)
+                shared.remove (image);  // Changing the image no longer needs a copy
+        }
+    }
+
+    public void read (int y, int[] row)
+    {
+        lock.readLock().lock();
+        try
+        {
+            PixelAccess.readRow (image, y, row);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getWidth ()
+    {
+        return width;
+    }
+
+    public int getHeight ()
+    {
+        return height;
+    }
+
+    /**
+     * @return boolean  Whether the image has an alpha channel
+     */
+    public boolean hasAlpha ()
+    {
+        return alpha;
+    }
+}
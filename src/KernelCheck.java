@@ -0,0 +1,165 @@
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that every kernel in PackedKernels gives exactly the same pixels as the
+ * lookup tables of the Processor edit it stands in for. Run it from the command line:
+ * <pre>
+ *   java KernelCheck [-exhaustive | -random N]
+ * </pre>
+ * By default 16 million random pixels (and every pixel whose channels are all 0, 1,
+ * 49, 50, 253, 254 or 255, where the edits change what they do) go through each
+ * kernel, one at a time with apply() and in rows with applyRow(), and are compared
+ * with the tables. -exhaustive tries all 2^32 pixels instead, spread over every core
+ * (about five minutes on a single core).
+ * <p>
+ * It also checks that each Processor edit really is using its kernel. Run with
+ * -Dphotoedit.checkKernels=true, ChannelLut.withKernel() quietly keeps the tables if
+ * it finds a kernel that is wrong, which would otherwise only show up as a slower
+ * filter.
+ * <p>
+ * Prints a line for each kernel and exits with 1 if any of them failed.
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public class KernelCheck
+{
+    private static final int ROW = 1 << 16;  // Pixels checked at a time
+    private static final int[] EDGES = { 0, 1, 49, 50, 253, 254, 255 };  // Channel values where the edits change
+
+    // Each kernel and the edit it stands in for
+    private static final PixelOp[] KERNELS = { PackedKernels.GREENIFY, PackedKernels.REDIFY, PackedKernels.BLUEIFY,
+        PackedKernels.NEGATIVE, PackedKernels.BRIGHTEN, PackedKernels.SCRAMBLE };
+    private static final ChannelLut[] EDITS = { Processor.GREENIFY, Processor.REDIFY, Processor.BLUEIFY,
+        Processor.NEGATIVE, Processor.BRIGHTEN, Processor.SCRAMBLE };
+
+    /**
+     * Checks one kernel against a table on every pixel from 0 to 2^32 - 1.
+     *
+     * @param kernel    The kernel to check
+     * @param table     The table it should match
+     * @return long     Number of pixels the kernel got wrong
+     */
+    public static long checkAll (PixelOp kernel, ChannelLut table)
+    {
+        ChannelLut tables = table.withoutKernel();
+        AtomicLong wrong = new AtomicLong();
+        // Band number b holds the pixels whose top 16 bits are b
+        BandExecutor.run (1 << 16, ROW, (start, end) -> {
+            int[] pixels = new int[ROW];
+            int[] changed = new int[ROW];
+            for (int top = start; top < end; top++)
+            {
+                for (int low = 0; low < ROW; low++)
+                {
+                    pixels[low] = (top << 16) | low;
+                }
+                wrong.addAndGet (compare (kernel, tables, pixels, changed, ROW));
+            }
+        });
+        return wrong.get();
+    }
+
+    /**
+     * Checks one kernel against a table on random pixels, and on every pixel made of
+     * the values in EDGES.
+     *
+     * @param kernel    The kernel to check
+     * @param table     The table it should match
+     * @param count     Number of random pixels
+     * @return long     Number of pixels the kernel got wrong
+     */
+    public static long checkRandom (PixelOp kernel, ChannelLut table, long count)
+    {
+        ChannelLut tables = table.withoutKernel();
+        int[] pixels = new int[ROW];
+        int[] changed = new int[ROW];
+        long wrong = 0;
+
+        int n = 0;
+        for (int a : EDGES)
+        {
+            for (int r : EDGES)
+            {
+                for (int g : EDGES)
+                {
+                    for (int b : EDGES)
+                    {
+                        pixels[n++] = (a << 24) | (r << 16) | (g << 8) | b;
+                    }
+                }
+            }
+        }
+        wrong += compare (kernel, tables, pixels, changed, n);
+
+        Random random = new Random (42);
+        for (long done = 0; done < count; done += ROW)
+        {
+            int length = (int) Math.min (ROW, count - done);
+            for (int i = 0; i < length; i++)
+            {
+                pixels[i] = random.nextInt();
+            }
+            wrong += compare (kernel, tables, pixels, changed, length);
+        }
+        return wrong;
+    }
+
+    /**
+     * Runs length pixels through the kernel and the tables, counting the differences.
+     * The first one found is printed.
+     */
+    private static long compare (PixelOp kernel, ChannelLut tables, int[] pixels, int[] changed, int length)
+    {
+        System.arraycopy (pixels, 0, changed, 0, length);
+        kernel.applyRow (changed, 0, length);
+        long wrong = 0;
+        for (int i = 0; i < length; i++)
+        {
+            int expected = tables.apply (pixels[i]);
+            int one = kernel.apply (pixels[i]);
+            if (changed[i] != expected || one != expected)
+            {
+                if (wrong == 0)
+                    System.out.println ("  " + kernel + ": " + Integer.toHexString (pixels[i]) + " should be "
+                        + Integer.toHexString (expected) + ", applyRow gave " + Integer.toHexString (changed[i])
+                        + ", apply gave " + Integer.toHexString (one));
+                wrong++;
+            }
+        }
+        return wrong;
+    }
+
+    /**
+     * Command line entry point, see the class comment for the arguments.
+     *
+     * @param args  The command line arguments
+     */
+    public static void main (String[] args)
+    {
+        boolean exhaustive = false;
+        long count = 1 << 24;
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals ("-exhaustive"))
+                exhaustive = true;
+            else if (args[i].equals ("-random") && i + 1 < args.length)
+                count = Long.parseLong (args[++i]);
+            else
+                throw new IllegalArgumentException ("Unknown option: " + args[i]);
+        }
+
+        boolean passed = true;
+        for (int k = 0; k < KERNELS.length; k++)
+        {
+            long start = System.nanoTime();
+            long wrong = exhaustive ? checkAll (KERNELS[k], EDITS[k]) : checkRandom (KERNELS[k], EDITS[k], count);
+            boolean used = EDITS[k].hasKernel() || !PackedKernels.isEnabled();
+            System.out.printf ("%-4s %-10s %12d wrong%s %8.1f s%n", (wrong == 0 && used) ? "ok" : "FAIL", KERNELS[k],
+                wrong, used ? "" : ", Processor is using the tables", (System.nanoTime() - start) / 1e9);
+            passed &= wrong == 0 && used;
+        }
+        System.exit (passed ? 0 : 1);
+    }
+}
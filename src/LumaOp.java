@@ -0,0 +1,125 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+
+/**
+ * Greyscale worked out straight from the red, green and blue of each pixel, as a
+ * weighted sum (the luma). The weights are whole numbers out of 65536, so each pixel
+ * is three multiplies and a shift, with no colour space conversion at all.
+ * <p>
+ * REC_601 uses the weights of standard definition video (0.299, 0.587, 0.114), the
+ * usual "greyscale" in most programs. REC_709 uses those of HD video and sRGB
+ * (0.2126, 0.7152, 0.0722), which suits photos from cameras and phones better.
+ * <p>
+ * As a PixelOp it sets red, green and blue to the luma and keeps alpha. toGrey()
+ * instead makes an 8-bit image with one byte per pixel, a quarter of the memory of
+ * an ARGB image; PixelAccess reads and writes its rows directly, so the edits and
+ * undo copies that follow are cheaper too. Unlike TYPE_BYTE_GRAY (whose grey is
+ * linear, so getRGB() brightens it) the grey values read back exactly as written.
+ * <p>
+ * Processor.GREYSCALE is the original greyscale, kept as it was.
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public class LumaOp implements PixelOp
+{
+    /** Standard definition video weights: 0.299 red, 0.587 green, 0.114 blue */
+    public static final LumaOp REC_601 = new LumaOp (19595, 38470, 7471);
+
+    /** HD video and sRGB weights: 0.2126 red, 0.7152 green, 0.0722 blue */
+    public static final LumaOp REC_709 = new LumaOp (13933, 46871, 4732);
+
+    // 256 shades of grey, each stored as its own value: pixel v reads back as (v, v, v)
+    static final IndexColorModel GREY_MODEL = greyModel();
+
+    // Weights out of 65536, adding up to 65536 so white stays 255
+    private final int redWeight;
+    private final int greenWeight;
+    private final int blueWeight;
+
+    private LumaOp (int redWeight, int greenWeight, int blueWeight)
+    {
+        this.redWeight = redWeight;
+        this.greenWeight = greenWeight;
+        this.blueWeight = blueWeight;
+    }
+
+    /**
+     * Works out the luma of a pixel.
+     *
+     * @param argb  The value of a single pixel as an integer (alpha, red, green, blue)
+     * @return int  The luma, 0-255
+     */
+    public int luma (int argb)
+    {
+        return (redWeight * ((argb >> 16) & 0xFF) + greenWeight * ((argb >> 8) & 0xFF)
+            + blueWeight * (argb & 0xFF) + 32768) >> 16;  // Adding half rounds to the nearest value
+    }
+
+    public int apply (int argb)
+    {
+        return (argb & 0xFF000000) | (luma (argb) * 0x010101);
+    }
+
+    public void applyRow (int[] pixels, int offset, int length)
+    {
+        int r = redWeight;
+        int g = greenWeight;
+        int b = blueWeight;
+        int end = offset + length;
+        for (int i = offset; i < end; i++)
+        {
+            int p = pixels[i];
+            int luma = (r * ((p >> 16) & 0xFF) + g * ((p >> 8) & 0xFF) + b * (p & 0xFF) + 32768) >> 16;
+            pixels[i] = (p & 0xFF000000) | (luma * 0x010101);
+        }
+    }
+
+    /**
+     * Makes an 8-bit greyscale copy of an image, one byte per pixel. Alpha is dropped:
+     * the copy is fully opaque.
+     *
+     * @param bi    The image to copy (not changed)
+     * @return BufferedImage    A TYPE_BYTE_INDEXED image of the luma, the same size as bi
+     */
+    public BufferedImage toGrey (BufferedImage bi)
+    {
+        int width = bi.getWidth();
+        BufferedImage grey = new BufferedImage (width, bi.getHeight(), BufferedImage.TYPE_BYTE_INDEXED, GREY_MODEL);
+        byte[] data = ((DataBufferByte) grey.getRaster().getDataBuffer()).getData();
+        BandExecutor.run (bi.getHeight(), width, (start, end) -> {
+            int[] row = new int[width];
+            for (int y = start; y < end; y++)
+            {
+                PixelAccess.readRow (bi, y, row);
+                for (int x = 0, i = y * width; x < width; x++, i++)
+                {
+                    data[i] = (byte) luma (row[x]);
+                }
+            }
+        });
+        return grey;
+    }
+
+    /**
+     * Checks whether an image was made by toGrey() (or uses the same colours).
+     *
+     * @param bi    The BufferedImage to look at
+     * @return boolean  True if each pixel is one byte holding its grey value
+     */
+    public static boolean isGrey (BufferedImage bi)
+    {
+        return bi.getColorModel() == GREY_MODEL;
+    }
+
+    private static IndexColorModel greyModel ()
+    {
+        byte[] shades = new byte[256];
+        for (int i = 0; i < 256; i++)
+        {
+            shades[i] = (byte) i;
+        }
+        return new IndexColorModel (8, 256, shades, shades, shades);
+    }
+}
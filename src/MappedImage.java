@@ -0,0 +1,525 @@
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Images too big for the Java heap, kept in a memory-mapped scratch file instead.
+ * <p>
+ * The pixels are packed ARGB integers, split into bands of whole rows (one mapping
+ * each, so no single mapping goes over the 2 GB limit). The operating system pages
+ * them in and out of memory as they are used. They are wrapped in an ordinary
+ * BufferedImage, so every Processor method, FilterPipeline and the undo histories
+ * work on them unchanged; PixelAccess reads and writes their rows in bulk, so the
+ * kernels stream through the file one band at a time.
+ * <p>
+ * Only a small on-heap preview (see drawPreview()) is ever shown on screen. The same
+ * mapping is used to open RasterFiles, which keep the pixels in a file on purpose.
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public class MappedImage
+{
+    private static final int BAND_PIXELS = 1 << 26;     // Pixels in one mapping (256 MB)
+    private static final int DECODE_PIXELS = 1 << 24;   // Pixels decoded onto the heap at a time (64 MB)
+
+    /**
+     * Creates a see-through TYPE_CUSTOM image whose pixels live in a new scratch file.
+     * The file is deleted again as soon as it is mapped (or when the program ends, on
+     * systems that don't allow that), and the memory goes when the image is garbage collected.
+     *
+     * @param width     Width of the image, in pixels
+     * @param height    Height of the image, in pixels
+     * @return BufferedImage    New image, every pixel 0 (transparent black)
+     * @throws IOException  If the scratch file can't be created
+     */
+    public static BufferedImage create (int width, int height) throws IOException
+    {
+        if ((long) width * height > Integer.MAX_VALUE)
+            throw new IllegalArgumentException ("Image too big: " + width + "x" + height);
+
+        File file = File.createTempFile ("photo-edit", ".pixels");
+        try (RandomAccessFile raf = new RandomAccessFile (file, "rw"))
+        {
+            raf.setLength (4L * width * height);
+            return map (raf.getChannel(), 0, width, height, FileChannel.MapMode.READ_WRITE, ByteOrder.nativeOrder());
+        }
+        finally
+        {
+            // The mappings stay valid after the file is closed
+            if (!file.delete())
+                file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Maps packed ARGB pixels that are already in a file (see RasterFile) as a
+     * TYPE_CUSTOM image. The mappings stay valid after the channel is closed.
+     *
+     * @param channel   The open file
+     * @param offset    Where in the file the first pixel is
+     * @param width     Width of the image, in pixels
+     * @param height    Height of the image, in pixels
+     * @param mode      READ_WRITE to write changes to the file, PRIVATE to keep them in memory
+     * @param order     Byte order of the pixels in the file
+     * @return BufferedImage    Image over the file's pixels
+     * @throws IOException  If the file can't be mapped
+     */
+    static BufferedImage map (FileChannel channel, long offset, int width, int height, FileChannel.MapMode mode,
+        ByteOrder order) throws IOException
+    {
+        if ((long) width * height > Integer.MAX_VALUE)
+            throw new IllegalArgumentException ("Image too big: " + width + "x" + height);
+
+        int rowsPerBand = Math.max (1, BAND_PIXELS / width);
+        int bandCount = (height + rowsPerBand - 1) / rowsPerBand;
+        IntBuffer[] bands = new IntBuffer[bandCount];
+        for (int i = 0; i < bandCount; i++)
+        {
+            int rows = Math.min (rowsPerBand, height - i * rowsPerBand);
+            long start = offset + 4L * i * rowsPerBand * width;
+            bands[i] = channel.map (mode, start, 4L * rows * width).order (order).asIntBuffer();
+        }
+
+        PixelBuffer buffer = new PixelBuffer (bands, rowsPerBand * width, width * height);
+        DirectColorModel cm = (DirectColorModel) ColorModel.getRGBdefault();
+        SinglePixelPackedSampleModel sm = new SinglePixelPackedSampleModel (DataBuffer.TYPE_INT, width, height, cm.getMasks());
+        WritableRaster raster = Raster.createWritableRaster (sm, buffer, null);
+        return new BufferedImage (cm, raster, false, null);
+    }
+
+    /**
+     * Checks whether the image was made by this class.
+     *
+     * @param bi    The BufferedImage to look at
+     * @return boolean  True if the pixels live in a mapped file (a scratch file or a RasterFile)
+     */
+    public static boolean isMapped (BufferedImage bi)
+    {
+        return bi.getRaster().getDataBuffer() instanceof PixelBuffer;
+    }
+
+    /**
+     * Copies an image into a new mapped image, one band of rows at a time.
+     *
+     * @param bi    The BufferedImage to copy
+     * @return BufferedImage    Copy of bi in a new scratch file
+     */
+    public static BufferedImage copy (BufferedImage bi)
+    {
+        int width = bi.getWidth();
+        BufferedImage copy;
+        try
+        {
+            copy = create (width, bi.getHeight());
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException (e);
+        }
+
+        BandExecutor.run (bi.getHeight(), width, (start, end) -> {
+            int[] row = new int[width];
+            for (int y = start; y < end; y++)
+            {
+                PixelAccess.readRow (bi, y, row);
+                PixelAccess.writeRow (copy, y, row);
+            }
+        });
+        return copy;
+    }
+
+    /**
+     * Decodes an image file straight into a mapped image.
+     * <p>
+     * The reader decodes the whole file in one pass, from the top, into a second
+     * scratch file laid out the way it likes (three bytes a pixel for most JPGs and
+     * PNGs). That is then turned into packed ARGB pixels a band of rows at a time, and
+     * the second file goes. Other formats, and images with more samples than one
+     * scratch file holds (over 2^31), are decoded a band of rows at a time instead,
+     * which costs more: most readers decode from the top of the file for every band.
+     *
+     * @param file  The image file
+     * @return BufferedImage    The decoded image, in a scratch file
+     * @throws IOException  If the file can't be read or no reader understands it
+     */
+    public static BufferedImage read (File file) throws IOException
+    {
+        try (ImageInputStream in = ImageIO.createImageInputStream (file))
+        {
+            ImageReader reader = (in == null) ? null : readerFor (in);
+            if (reader == null)
+                throw new IOException ("Unknown image format: " + file);
+            try
+            {
+                reader.setInput (in);
+                int width = reader.getWidth (0);
+                int height = reader.getHeight (0);
+                BufferedImage bi = create (width, height);
+
+                Iterator<ImageTypeSpecifier> types = reader.getImageTypes (0);
+                BufferedImage decoded = (decodesAnywhere (reader) && types.hasNext())
+                    ? createScratch (types.next(), width, height) : null;
+                if (decoded != null)
+                {
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setDestination (decoded);
+                    reader.read (0, param);
+                    convert (decoded, bi);
+                    return bi;
+                }
+
+                int rowsPerBand = Math.max (1, DECODE_PIXELS / width);
+                int[] row = new int[width];
+                for (int y0 = 0; y0 < height; y0 += rowsPerBand)
+                {
+                    int rows = Math.min (rowsPerBand, height - y0);
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceRegion (new Rectangle (0, y0, width, rows));
+                    BufferedImage band = reader.read (0, param);
+                    for (int r = 0; r < rows; r++)
+                    {
+                        PixelAccess.readRow (band, r, row);
+                        PixelAccess.writeRow (bi, y0 + r, row);
+                    }
+                }
+                return bi;
+            }
+            finally
+            {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Creates an image of the given type whose samples live in a new scratch file, for
+     * a reader to decode into.
+     *
+     * @return BufferedImage    The image, or null if its samples can't be held in one scratch file
+     */
+    private static BufferedImage createScratch (ImageTypeSpecifier type, int width, int height) throws IOException
+    {
+        SampleModel sm = type.getSampleModel (1, 1);  // Checked before asking for the real size, which may overflow
+        if ((long) width * height * sm.getNumDataElements() > Integer.MAX_VALUE)
+            return null;
+        sm = type.getSampleModel (width, height);
+
+        long stride;
+        if (sm instanceof ComponentSampleModel && oneBank ((ComponentSampleModel) sm))
+            stride = ((ComponentSampleModel) sm).getScanlineStride();
+        else if (sm instanceof MultiPixelPackedSampleModel)
+            stride = ((MultiPixelPackedSampleModel) sm).getScanlineStride();
+        else if (sm instanceof SinglePixelPackedSampleModel)
+            stride = ((SinglePixelPackedSampleModel) sm).getScanlineStride();
+        else
+            return null;  // Several banks, or a layout we don't know the size of
+        int bytes = SampleBuffer.bytesPer (sm.getDataType());
+        if (bytes == 0 || stride * height > Integer.MAX_VALUE)
+            return null;
+
+        File scratch = File.createTempFile ("photo-edit", ".samples");
+        try (RandomAccessFile raf = new RandomAccessFile (scratch, "rw"))
+        {
+            SampleBuffer buffer = new SampleBuffer (raf.getChannel(), sm.getDataType(), (int) (stride * height));
+            WritableRaster raster = Raster.createWritableRaster (sm, buffer, null);
+            ColorModel cm = type.getColorModel();
+            return new BufferedImage (cm, raster, cm.isAlphaPremultiplied(), null);
+        }
+        finally
+        {
+            if (!scratch.delete())
+                scratch.deleteOnExit();
+        }
+    }
+
+    /**
+     * Copies a decoded image made by createScratch() into a mapped image, a band of rows
+     * at a time. 8-bit RGB and RGBA (what most JPGs and PNGs decode to) are put
+     * together straight from the bytes; anything else goes through its ColorModel.
+     */
+    private static void convert (BufferedImage decoded, BufferedImage bi)
+    {
+        int width = bi.getWidth();
+        SampleModel sm = decoded.getSampleModel();
+        ColorModel cm = decoded.getColorModel();
+        int bands = sm.getNumBands();
+        boolean bytes = sm instanceof PixelInterleavedSampleModel && sm.getDataType() == DataBuffer.TYPE_BYTE
+            && cm instanceof ComponentColorModel && cm.getColorSpace().isCS_sRGB() && !cm.isAlphaPremultiplied()
+            && (bands == 3 || (bands == 4 && cm.hasAlpha()));
+
+        BandExecutor.run (bi.getHeight(), width, (start, end) -> {
+            int[] row = new int[width];
+            if (!bytes)
+            {
+                for (int y = start; y < end; y++)
+                {
+                    PixelAccess.readRow (decoded, y, row);
+                    PixelAccess.writeRow (bi, y, row);
+                }
+                return;
+            }
+
+            PixelInterleavedSampleModel layout = (PixelInterleavedSampleModel) sm;
+            SampleBuffer samples = (SampleBuffer) decoded.getRaster().getDataBuffer();
+            int pixelStride = layout.getPixelStride();
+            int[] offsets = layout.getBandOffsets();
+            int red = offsets[0];
+            int green = offsets[1];
+            int blue = offsets[2];
+            int alpha = (bands == 4) ? offsets[3] : -1;
+            byte[] line = new byte[width * pixelStride];
+            for (int y = start; y < end; y++)
+            {
+                samples.read (y * layout.getScanlineStride(), line, line.length);
+                for (int x = 0, i = 0; x < width; x++, i += pixelStride)
+                {
+                    int a = (alpha < 0) ? 0xFF000000 : (line[i + alpha] & 0xFF) << 24;
+                    row[x] = a | ((line[i + red] & 0xFF) << 16) | ((line[i + green] & 0xFF) << 8) | (line[i + blue] & 0xFF);
+                }
+                PixelAccess.writeRow (bi, y, row);
+            }
+        });
+    }
+
+    /**
+     * Checks whether a reader writes pixels through the Raster methods, so it can decode
+     * into a scratch file (others expect the array behind an ordinary image).
+     */
+    private static boolean decodesAnywhere (ImageReader reader) throws IOException
+    {
+        String format = reader.getFormatName();
+        return format.equalsIgnoreCase ("png") || format.equalsIgnoreCase ("jpeg");
+    }
+
+    private static boolean oneBank (ComponentSampleModel sm)
+    {
+        for (int bank : sm.getBankIndices())
+        {
+            if (bank != 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Works out the size of a preview that fits in a box, keeping the shape of the image.
+     *
+     * @param bi        The BufferedImage to shrink
+     * @param maxWidth  Most width the preview may have
+     * @param maxHeight Most height the preview may have
+     * @return Dimension    Size of the preview, never bigger than the image itself
+     */
+    public static Dimension previewSize (BufferedImage bi, int maxWidth, int maxHeight)
+    {
+        return previewSize (bi.getWidth(), bi.getHeight(), maxWidth, maxHeight);
+    }
+
+    /**
+     * Works out the size of a preview that fits in a box, keeping the shape of an image
+     * of the given size.
+     *
+     * @param width     Width of the image
+     * @param height    Height of the image
+     * @param maxWidth  Most width the preview may have
+     * @param maxHeight Most height the preview may have
+     * @return Dimension    Size of the preview, never bigger than the image itself
+     */
+    public static Dimension previewSize (int width, int height, int maxWidth, int maxHeight)
+    {
+        double scale = Math.min (1.0, Math.min (maxWidth / (double) width, maxHeight / (double) height));
+        return new Dimension (Math.max (1, (int) (width * scale)), Math.max (1, (int) (height * scale)));
+    }
+
+    /**
+     * Draws an image into a smaller one, picking the nearest pixel. Only the rows
+     * that are picked are read.
+     *
+     * @param bi        The BufferedImage to shrink
+     * @param preview   The BufferedImage (passed by reference) to draw into
+     */
+    public static void drawPreview (BufferedImage bi, BufferedImage preview)
+    {
+        int width = bi.getWidth();
+        int height = bi.getHeight();
+        int smallWidth = preview.getWidth();
+        int smallHeight = preview.getHeight();
+
+        BandExecutor.run (smallHeight, width, (start, end) -> {
+            int[] row = new int[width];
+            int[] smallRow = new int[smallWidth];
+            for (int y = start; y < end; y++)
+            {
+                PixelAccess.readRow (bi, (int) ((long) y * height / smallHeight), row);
+                for (int x = 0; x < smallWidth; x++)
+                {
+                    smallRow[x] = row[(int) ((long) x * width / smallWidth)];
+                }
+                PixelAccess.writeRow (preview, y, smallRow);
+            }
+        });
+    }
+
+    private static ImageReader readerFor (ImageInputStream in)
+    {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders (in);
+        return readers.hasNext() ? readers.next() : null;
+    }
+
+    /**
+     * DataBuffer over the mapped bands. Pixel i is at i % bandPixels of band
+     * i / bandPixels; a row never crosses from one band to the next.
+     */
+    static class PixelBuffer extends DataBuffer
+    {
+        private final IntBuffer[] bands;
+        private final int bandPixels;
+
+        PixelBuffer (IntBuffer[] bands, int bandPixels, int size)
+        {
+            super (DataBuffer.TYPE_INT, size);
+            this.bands = bands;
+            this.bandPixels = bandPixels;
+        }
+
+        public int getElem (int bank, int i)
+        {
+            return bands[i / bandPixels].get (i % bandPixels);
+        }
+
+        public void setElem (int bank, int i, int val)
+        {
+            bands[i / bandPixels].put (i % bandPixels, val);
+        }
+
+        /**
+         * Copies length pixels starting at index into row. They must all be in one row.
+         */
+        void read (int index, int[] row, int length)
+        {
+            IntBuffer band = bands[index / bandPixels].duplicate();  // Own position, so threads don't clash
+            band.position (index % bandPixels);
+            band.get (row, 0, length);
+        }
+
+        /**
+         * Copies length pixels from row into the buffer starting at index. They must all be in one row.
+         */
+        void write (int index, int[] row, int length)
+        {
+            IntBuffer band = bands[index / bandPixels].duplicate();
+            band.position (index % bandPixels);
+            band.put (row, 0, length);
+        }
+    }
+
+    /**
+     * Samples of any whole-number type (bytes, shorts or ints) in a scratch file, for
+     * a reader to decode into (see read()).
+     */
+    private static class SampleBuffer extends DataBuffer
+    {
+        private static final int BAND_BITS = 28;  // Each mapping is 2^28 bytes (256 MB)
+
+        private final ByteBuffer[] bands;
+        private final int shift;        // log2 of the bytes in a sample
+        private final int sampleBits;   // log2 of the samples in a band
+        private final int sampleMask;
+
+        SampleBuffer (FileChannel channel, int dataType, int size) throws IOException
+        {
+            super (dataType, size);
+            shift = Integer.numberOfTrailingZeros (bytesPer (dataType));
+            sampleBits = BAND_BITS - shift;
+            sampleMask = (1 << sampleBits) - 1;
+            bands = new ByteBuffer[(int) (((long) size + sampleMask) >> sampleBits)];
+            for (int i = 0; i < bands.length; i++)
+            {
+                long start = (long) i << sampleBits;
+                long samples = Math.min (1L << sampleBits, size - start);
+                bands[i] = channel.map (FileChannel.MapMode.READ_WRITE, start << shift, samples << shift)
+                    .order (ByteOrder.nativeOrder());
+            }
+        }
+
+        /**
+         * @return int  Bytes in one sample of the given DataBuffer type, or 0 if it isn't supported
+         */
+        static int bytesPer (int dataType)
+        {
+            switch (dataType)
+            {
+                case DataBuffer.TYPE_BYTE: return 1;
+                case DataBuffer.TYPE_USHORT: return 2;
+                case DataBuffer.TYPE_INT: return 4;
+                default: return 0;
+            }
+        }
+
+        public int getElem (int bank, int i)
+        {
+            ByteBuffer band = bands[i >>> sampleBits];
+            int at = (i & sampleMask) << shift;
+            switch (shift)
+            {
+                case 0: return band.get (at) & 0xFF;
+                case 1: return band.getShort (at) & 0xFFFF;
+                default: return band.getInt (at);
+            }
+        }
+
+        public void setElem (int bank, int i, int val)
+        {
+            ByteBuffer band = bands[i >>> sampleBits];
+            int at = (i & sampleMask) << shift;
+            switch (shift)
+            {
+                case 0: band.put (at, (byte) val); break;
+                case 1: band.putShort (at, (short) val); break;
+                default: band.putInt (at, val); break;
+            }
+        }
+
+        /**
+         * Copies length byte samples starting at index into line, which may cross from one
+         * band into the next.
+         */
+        void read (int index, byte[] line, int length)
+        {
+            for (int done = 0; done < length; )
+            {
+                int i = index + done;
+                ByteBuffer band = bands[i >>> sampleBits].duplicate();  // Own position, so threads don't clash
+                band.position (i & sampleMask);
+                int count = Math.min (length - done, band.remaining());
+                band.get (line, done, count);
+                done += count;
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Records where the time goes: decoding, every edit, undo history and encoding.
+ * <p>
+ * Code that does something worth measuring wraps it like this:
+ * <pre>
+ *   Metrics.Sample sample = Metrics.start ("decode");
+ *   ... decode the file ...
+ *   sample.stop (width * height);
+ * </pre>
+ * Each name gets an OperationMetrics with a latency histogram, pixel count and
+ * allocated bytes. Allocation is counted over every thread (so bands run by
+ * BandExecutor count too), which means operations that overlap are counted in each other.
+ * <p>
+ * Everything is published over JMX: PhotoEdit:type=Metrics for the editor as a whole
+ * (including undo history memory and compression) and PhotoEdit:type=Operation,name=... for each
+ * operation, so jconsole or any JMX scraper can watch it. dumpTo() writes it all to a
+ * text file, and starting Java with -Dphotoedit.metrics=file.txt does that when the
+ * program ends.
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public class Metrics implements MetricsMBean
+{
+    private static final String DOMAIN = "PhotoEdit";
+    private static final Metrics INSTANCE = new Metrics();
+    private static final Map<String, OperationMetrics> operations = new ConcurrentSkipListMap<String, OperationMetrics>();  // By name
+
+    private static final Sample NOT_RECORDING = new Sample (null);
+
+    private volatile boolean enabled = true;
+    private volatile LongSupplier historyMemory;  // Asks the current undo history how much it keeps, may be null
+    private volatile DoubleSupplier historyCompression;  // Asks it how well it compresses, null unless it does
+
+    static
+    {
+        register ("type=Metrics", INSTANCE);
+        String dumpFile = System.getProperty ("photoedit.metrics");
+        if (dumpFile != null)
+            Runtime.getRuntime().addShutdownHook (new Thread (() -> INSTANCE.dump (dumpFile)));
+    }
+
+    private Metrics ()
+    {
+    }
+
+    /**
+     * Starts timing one run of an operation.
+     *
+     * @param name  Name of the operation, like "decode" or "edit.greyScale"
+     * @return Sample   Call stop() on it when the operation is done
+     */
+    public static Sample start (String name)
+    {
+        if (!INSTANCE.enabled)
+            return NOT_RECORDING;
+        return new Sample (operation (name));
+    }
+
+    /**
+     * Returns the metrics of one operation, making (and publishing) them the first time.
+     *
+     * @param name  Name of the operation
+     * @return OperationMetrics The metrics recorded for it
+     */
+    public static OperationMetrics operation (String name)
+    {
+        OperationMetrics metrics = operations.get (name);
+        if (metrics != null)
+            return metrics;
+
+        synchronized (operations)
+        {
+            metrics = operations.get (name);
+            if (metrics == null)
+            {
+                metrics = new OperationMetrics (name);
+                operations.put (name, metrics);
+                register ("type=Operation,name=" + ObjectName.quote (name), metrics);
+            }
+            return metrics;
+        }
+    }
+
+    /**
+     * Tells the metrics where to find out how much memory the undo history uses.
+     *
+     * @param memoryUsed    Returns the bytes of pixel data kept, or null if there is no history
+     */
+    public static void setHistoryMemory (LongSupplier memoryUsed)
+    {
+        INSTANCE.historyMemory = memoryUsed;
+    }
+
+    /**
+     * Tells the metrics where to find out how well the undo history compresses the
+     * states it keeps (see CompressedHistory).
+     *
+     * @param ratio Returns the raw size of the states over their compressed size, or
+     *              null if the history doesn't compress
+     */
+    public static void setHistoryCompressionRatio (DoubleSupplier ratio)
+    {
+        INSTANCE.historyCompression = ratio;
+    }
+
+    /**
+     * Writes every metric to a text file, one operation per line.
+     *
+     * @param file  The file to write
+     * @throws IOException  If the file can't be written
+     */
+    public static void dumpTo (File file) throws IOException
+    {
+        try (PrintWriter out = new PrintWriter (file, "UTF-8"))
+        {
+            out.printf ("history memory used: %d bytes%n", INSTANCE.getHistoryMemoryUsed());
+            out.printf ("history compression ratio: %.2f%n", INSTANCE.getHistoryCompressionRatio());
+            out.printf ("%-24s %8s %12s %10s %10s %10s %10s %14s %12s %16s%n", "operation", "count", "total ms",
+                "mean ms", "median ms", "p99 ms", "max ms", "pixels", "MP/s", "allocated bytes");
+            for (OperationMetrics metrics : operations.values())
+            {
+                out.printf ("%-24s %8d %12.2f %10.3f %10.3f %10.3f %10.3f %14d %12.1f %16d%n", metrics.getName(),
+                    metrics.getCount(), metrics.getTotalMillis(), metrics.getMeanMillis(), metrics.getMedianMillis(),
+                    metrics.getP99Millis(), metrics.getMaxMillis(), metrics.getPixels(),
+                    metrics.getMegapixelsPerSecond(), metrics.getAllocatedBytes());
+            }
+        }
+    }
+
+    /**
+     * Adds up the bytes every live thread has allocated so far.
+     *
+     * @return long Bytes allocated, or 0 if this JVM can't count them
+     */
+    public static long allocatedBytes ()
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return 0;
+        long total = 0;
+        for (long bytes : ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes (threads.getAllThreadIds()))
+        {
+            if (bytes > 0)
+                total += bytes;
+        }
+        return total;
+    }
+
+    public boolean isEnabled ()
+    {
+        return enabled;
+    }
+
+    public void setEnabled (boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    public String[] getOperationNames ()
+    {
+        return operations.keySet().toArray (new String[0]);
+    }
+
+    public long getHistoryMemoryUsed ()
+    {
+        LongSupplier memory = historyMemory;
+        return (memory == null) ? -1 : memory.getAsLong();
+    }
+
+    public double getHistoryCompressionRatio ()
+    {
+        DoubleSupplier ratio = historyCompression;
+        return (ratio == null) ? -1 : ratio.getAsDouble();
+    }
+
+    public void dump (String fileName)
+    {
+        try
+        {
+            dumpTo (new File (fileName));
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException (e);
+        }
+    }
+
+    public void reset ()
+    {
+        for (OperationMetrics metrics : operations.values())
+        {
+            metrics.reset();
+        }
+    }
+
+    /**
+     * Publishes an MBean, replacing one left over from an earlier run (Greenfoot
+     * reloads the classes every time the scenario is compiled).
+     */
+    private static void register (String properties, Object bean)
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName (DOMAIN + ":" + properties);
+            try
+            {
+                server.registerMBean (bean, name);
+            }
+            catch (InstanceAlreadyExistsException e)
+            {
+                server.unregisterMBean (name);
+                server.registerMBean (bean, name);
+            }
+        }
+        catch (JMException | SecurityException e)
+        {
+            // Metrics still work without JMX, they just can't be watched from outside
+        }
+    }
+
+    /**
+     * One run of an operation being timed.
+     */
+    public static class Sample
+    {
+        private final OperationMetrics metrics;  // null if metrics are turned off
+        private final long startNanos;
+        private final long startAllocated;
+
+        Sample (OperationMetrics metrics)
+        {
+            this.metrics = metrics;
+            this.startAllocated = (metrics == null) ? 0 : allocatedBytes();
+            this.startNanos = System.nanoTime();
+        }
+
+        /**
+         * Records the run as finished.
+         *
+         * @param pixels    Number of pixels the operation went through
+         */
+        public void stop (long pixels)
+        {
+            if (metrics == null)
+                return;
+            long nanos = System.nanoTime() - startNanos;
+            metrics.record (nanos, pixels, allocatedBytes() - startAllocated);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * What JMX shows about the editor as a whole (see Metrics).
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public interface MetricsMBean
+{
+    boolean isEnabled ();
+
+    void setEnabled (boolean enabled);
+
+    /**
+     * @return String[] Names of the operations recorded so far
+     */
+    String[] getOperationNames ();
+
+    /**
+     * @return long Bytes of pixel data kept by the undo history, or -1 if there is none
+     */
+    long getHistoryMemoryUsed ();
+
+    /**
+     * @return double   Raw size of the undo history's states over their compressed size
+     *                  (0 until one is compressed), or -1 if the history doesn't compress
+     */
+    double getHistoryCompressionRatio ();
+
+    /**
+     * Writes every metric to a text file.
+     *
+     * @param fileName  Name of the file to write
+     */
+    void dump (String fileName);
+
+    /**
+     * Forgets everything recorded so far.
+     */
+    void reset ();
+}
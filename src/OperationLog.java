@@ -0,0 +1,263 @@
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Undo history that remembers which edits were made instead of what the image
+ * looked like after each one.
+ * <p>
+ * A full copy of the image (a keyframe) is only kept for the starting image and
+ * then every few edits. An edit that can be reversed exactly (a flip, Negative or
+ * Scramble, see Edit.inverse()) is undone by applying its inverse. Any other edit
+ * is undone by going back to the nearest keyframe before it and making the edits
+ * since then again. Redo simply makes the edit again.
+ * <p>
+ * Like the other histories there is a memory budget for the keyframes (kept in
+ * scratch files for large images, see MappedImage, but counted all the same). When
+ * they go over it, states that could be redone are dropped first, and then the oldest
+ * keyframe: the log is cut down to start at the next keyframe, so the edits before
+ * it can no longer be undone. The keyframe at or before the current state is always
+ * kept.
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public class OperationLog implements EditHistory
+{
+    private final int keyframeInterval;  // A keyframe is kept after every this many edits
+    private long memoryBudget;  // Most bytes of keyframes to keep
+
+    private final List<Entry> log = new ArrayList<Entry>();  // log.get(i) turns state i into state i + 1
+    private final TreeMap<Integer, BufferedImage> keyframes = new TreeMap<Integer, BufferedImage>();  // Copies of some states, by state number
+    private int position;  // Number of the state that matches the image, later states can be redone
+
+    /**
+     * Construct an OperationLog that keeps a keyframe every 8 edits, and may use up to
+     * a quarter of the maximum heap for them.
+     */
+    public OperationLog ()
+    {
+        this (8, Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /**
+     * Construct an OperationLog that may use up to a quarter of the maximum heap for
+     * keyframes.
+     *
+     * @param keyframeInterval  Number of edits between keyframes (at least 1)
+     */
+    public OperationLog (int keyframeInterval)
+    {
+        this (keyframeInterval, Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /**
+     * Construct an OperationLog.
+     *
+     * @param keyframeInterval  Number of edits between keyframes (at least 1). More
+     *                          means less memory but slower undo of lossy edits.
+     * @param memoryBudget      Most bytes of keyframes to keep
+     */
+    public OperationLog (int keyframeInterval, long memoryBudget)
+    {
+        if (keyframeInterval < 1)
+            throw new IllegalArgumentException ("Keyframe interval must be at least 1: " + keyframeInterval);
+        this.keyframeInterval = keyframeInterval;
+        this.memoryBudget = memoryBudget;
+    }
+
+    public synchronized void reset (BufferedImage bi)
+    {
+        log.clear();
+        keyframes.clear();
+        position = 0;
+        keyframes.put (0, Processor.deepCopy (bi));  // Everything can be replayed from the starting image
+    }
+
+    public synchronized void commit (BufferedImage bi, Edit edit)
+    {
+        if (keyframes.isEmpty())
+        {
+            reset (bi);
+            return;
+        }
+
+        // Undone edits can't be redone any more
+        while (log.size() > position)
+        {
+            log.remove (log.size() - 1);
+        }
+        keyframes.tailMap (position, false).clear();
+
+        log.add (new Entry (edit, isExactlyInvertible (bi, edit)));
+        position++;
+
+        // Edits that aren't known can't be replayed, so the result is kept instead
+        if (edit == null || position % keyframeInterval == 0)
+        {
+            keyframes.put (position, Processor.deepCopy (bi));
+            evict();
+        }
+    }
+
+    public synchronized boolean undo (BufferedImage bi)
+    {
+        if (position == 0)
+            return false;
+
+        Entry last = log.get (position - 1);
+        if (last.invertible)
+        {
+            for (Edit inverse : last.edit.inverse())
+            {
+                inverse.apply (bi);
+            }
+        }
+        else
+        {
+            restoreState (bi, position - 1);
+        }
+        position--;
+        return true;
+    }
+
+    public synchronized boolean redo (BufferedImage bi)
+    {
+        if (position >= log.size())
+            return false;
+
+        Entry next = log.get (position);
+        if (next.edit != null)
+            next.edit.apply (bi);
+        else
+            Processor.undoEdit (bi, keyframes.get (position + 1));  // Always kept for unknown edits
+        position++;
+        return true;
+    }
+
+    public synchronized void revert (BufferedImage bi)
+    {
+        if (!keyframes.isEmpty())
+            restoreState (bi, position);
+    }
+
+    /**
+     * @return int  Number of edits that can be undone
+     */
+    public synchronized int getUndoCount ()
+    {
+        return position;
+    }
+
+    public synchronized long getMemoryUsed ()
+    {
+        long used = 0;
+        for (BufferedImage keyframe : keyframes.values())
+        {
+            used += 4L * keyframe.getWidth() * keyframe.getHeight();  // Roughly, grey images keep less
+        }
+        return used;
+    }
+
+    /**
+     * @return long Most bytes of keyframes the log will keep
+     */
+    public synchronized long getMemoryBudget ()
+    {
+        return memoryBudget;
+    }
+
+    /**
+     * Changes the memory budget, dropping states straight away (redo states first, then
+     * the oldest) if the keyframes no longer fit.
+     *
+     * @param memoryBudget  Most bytes of keyframes to keep
+     */
+    public synchronized void setMemoryBudget (long memoryBudget)
+    {
+        this.memoryBudget = memoryBudget;
+        evict();
+    }
+
+    /**
+     * @return int  Number of full copies of the image being kept
+     */
+    public synchronized int getKeyframeCount ()
+    {
+        return keyframes.size();
+    }
+
+    /**
+     * Drops the states that could be redone until the keyframes fit in the memory
+     * budget, then the oldest keyframes if they still don't fit. The log is moved
+     * along so that it starts at the oldest keyframe left, which becomes state 0.
+     */
+    private void evict ()
+    {
+        if (getMemoryUsed() > memoryBudget && keyframes.lastKey() > position)
+        {
+            log.subList (position, log.size()).clear();
+            keyframes.tailMap (position, false).clear();
+        }
+
+        while (getMemoryUsed() > memoryBudget && keyframes.size() > 1)
+        {
+            int base = keyframes.higherKey (keyframes.firstKey());
+            if (base > position)
+                break;  // Never happens after the redo states are gone, the current state needs a keyframe
+            keyframes.pollFirstEntry();
+            log.subList (0, base).clear();
+            position -= base;
+            TreeMap<Integer, BufferedImage> moved = new TreeMap<Integer, BufferedImage>();
+            for (Map.Entry<Integer, BufferedImage> keyframe : keyframes.entrySet())
+            {
+                moved.put (keyframe.getKey() - base, keyframe.getValue());
+            }
+            keyframes.clear();
+            keyframes.putAll (moved);
+        }
+    }
+
+    /**
+     * Changes the image to the given state by copying in the nearest keyframe before
+     * it and making the edits in between again.
+     */
+    private void restoreState (BufferedImage bi, int state)
+    {
+        Map.Entry<Integer, BufferedImage> keyframe = keyframes.floorEntry (state);
+        Processor.undoEdit (bi, keyframe.getValue());
+        for (int i = keyframe.getKey(); i < state; i++)
+        {
+            log.get (i).edit.apply (bi);  // Never null, unknown edits always end in a keyframe
+        }
+    }
+
+    /**
+     * Checks whether applying the inverse of edit to the image gives back exactly the
+     * image from before the edit.
+     */
+    private static boolean isExactlyInvertible (BufferedImage bi, Edit edit)
+    {
+        if (edit == null || edit.inverse() == null || !PixelAccess.keepsExactColours (bi))
+            return false;
+        // Flips round see-through pixels (alpha is the same before and after, so check now)
+        return edit.pointOp() != null || PixelAccess.isOpaque (bi);
+    }
+
+    /**
+     * One edit in the log.
+     */
+    private static class Entry
+    {
+        final Edit edit;            // null if the edit isn't known
+        final boolean invertible;   // Whether the edit can be undone by applying its inverse
+
+        Entry (Edit edit, boolean invertible)
+        {
+            this.edit = edit;
+            this.invertible = invertible;
+        }
+    }
+}
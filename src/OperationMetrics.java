@@ -0,0 +1,169 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Running totals for one kind of operation, like "decode" or "edit.greyScale": how
+ * many times it ran, how long it took (as a histogram), how many pixels it went
+ * through and how many bytes it allocated. Safe to record from several threads.
+ * <p>
+ * Latencies go into power-of-two buckets of microseconds, so recording is just an
+ * increment. Percentiles are worked out within their bucket by taking the runs in it
+ * to be spread evenly, and never come out above the slowest run, so they are correct
+ * to within a factor of two.
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public class OperationMetrics implements OperationMetricsMBean
+{
+    private static final int BUCKETS = 40;  // Up to 2^39 microseconds, about six days
+
+    private final String name;
+    private final AtomicLongArray histogram = new AtomicLongArray (BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLong pixels = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    /**
+     * Construct an empty OperationMetrics.
+     *
+     * @param name  Name of the operation
+     */
+    public OperationMetrics (String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * Records one run of the operation.
+     *
+     * @param nanos     How long it took
+     * @param pixels    How many pixels it went through
+     * @param allocated How many bytes it allocated
+     */
+    public void record (long nanos, long pixels, long allocated)
+    {
+        long micros = Math.max (0, nanos / 1000);
+        int bucket = Math.min (BUCKETS - 1, 64 - Long.numberOfLeadingZeros (micros));
+        histogram.incrementAndGet (bucket);
+        count.incrementAndGet();
+        totalNanos.addAndGet (nanos);
+        this.pixels.addAndGet (pixels);
+        allocatedBytes.addAndGet (Math.max (0, allocated));
+
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet (max, nanos))
+        {
+            max = maxNanos.get();
+        }
+    }
+
+    public String getName ()
+    {
+        return name;
+    }
+
+    public long getCount ()
+    {
+        return count.get();
+    }
+
+    public double getTotalMillis ()
+    {
+        return totalNanos.get() / 1e6;
+    }
+
+    public double getMeanMillis ()
+    {
+        long n = count.get();
+        return (n == 0) ? 0 : totalNanos.get() / 1e6 / n;
+    }
+
+    public double getMaxMillis ()
+    {
+        return maxNanos.get() / 1e6;
+    }
+
+    public double getMedianMillis ()
+    {
+        return percentile (0.5);
+    }
+
+    public double getP99Millis ()
+    {
+        return percentile (0.99);
+    }
+
+    public long getPixels ()
+    {
+        return pixels.get();
+    }
+
+    public double getMegapixelsPerSecond ()
+    {
+        long nanos = totalNanos.get();
+        return (nanos == 0) ? 0 : pixels.get() * 1000.0 / nanos;
+    }
+
+    public long getAllocatedBytes ()
+    {
+        return allocatedBytes.get();
+    }
+
+    public long[] getHistogram ()
+    {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            counts[i] = histogram.get (i);
+        }
+        return counts;
+    }
+
+    public void reset ()
+    {
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            histogram.set (i, 0);
+        }
+        count.set (0);
+        totalNanos.set (0);
+        maxNanos.set (0);
+        pixels.set (0);
+        allocatedBytes.set (0);
+    }
+
+    /**
+     * Returns the time the given fraction of runs took at most, in milliseconds: the
+     * place in its bucket that fraction falls at, no more than the slowest run.
+     */
+    private double percentile (double fraction)
+    {
+        long[] counts = getHistogram();
+        long total = 0;
+        for (long n : counts)
+        {
+            total += n;
+        }
+        if (total == 0)
+            return 0;
+
+        long wanted = (long) Math.ceil (total * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts[i];
+            if (seen >= wanted)
+            {
+                // Bucket i holds times from 2^(i-1) up to 2^i microseconds (bucket 0 is just 0)
+                double lower = (i == 0) ? 0 : (1L << (i - 1));
+                double upper = (i == 0) ? 0 : (1L << i);
+                double position = (wanted - (seen - counts[i])) / (double) counts[i];
+                return Math.min (getMaxMillis(), (lower + (upper - lower) * position) / 1000.0);
+            }
+        }
+        return getMaxMillis();
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * What JMX shows about one kind of operation (see OperationMetrics). Times are in
+ * milliseconds.
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public interface OperationMetricsMBean
+{
+    String getName ();
+
+    long getCount ();
+
+    double getTotalMillis ();
+
+    double getMeanMillis ();
+
+    double getMaxMillis ();
+
+    /**
+     * @return double   Time that half of the operations took less than (to the next power of two microseconds)
+     */
+    double getMedianMillis ();
+
+    /**
+     * @return double   Time that 99% of the operations took less than (to the next power of two microseconds)
+     */
+    double getP99Millis ();
+
+    long getPixels ();
+
+    /**
+     * @return double   Pixels processed per second of operation time, in millions
+     */
+    double getMegapixelsPerSecond ();
+
+    long getAllocatedBytes ();
+
+    /**
+     * @return long[]   Number of operations that took less than 1, 2, 4, 8, ... microseconds
+     *                  (and at least half that)
+     */
+    long[] getHistogram ();
+
+    /**
+     * Forgets everything recorded so far.
+     */
+    void reset ();
+}
@@ -0,0 +1,184 @@
+/**
+ * Colour edits worked out on all three channels of a pixel at once, using plain
+ * integer arithmetic on the packed ARGB value instead of a table lookup per channel.
+ * <p>
+ * A packed pixel is split into two words with a channel in the low byte of each
+ * 16 bits (red and blue in one, alpha and green in the other). That leaves 8 spare
+ * bits above every channel, so one addition adds to two channels at the same time,
+ * and whether a channel went past 255 shows up as a carry bit in its spare bits
+ * rather than spilling into the next channel. Comparisons like "at least 50" are
+ * made the same way: 206 is added, and the channels that carried are the ones that
+ * were at least 50. Negative and Scramble don't even need that, they are a single
+ * XOR and a few shifts.
+ * <p>
+ * Every kernel here gives exactly the same pixels as the ChannelLut it stands in for,
+ * which KernelCheck tests (see also ChannelLut.withKernel()). Setting the
+ * system property photoedit.scalarKernels to true turns them all off, leaving the
+ * lookup tables.
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public class PackedKernels
+{
+    // What a Green-ify style kernel does to each channel
+    private static final int UP = 1;     // Up by 2, unless already 254 or 255
+    private static final int DOWN = 2;   // Down by 1, if at least 50
+
+    private static final boolean DISABLED = Boolean.getBoolean ("photoedit.scalarKernels");
+
+    /** Green up by 2, red and blue down by 1 */
+    public static final PixelOp GREENIFY = new StepKernel ("GREENIFY", DOWN, UP, DOWN);
+
+    /** Red up by 2, green and blue down by 1 */
+    public static final PixelOp REDIFY = new StepKernel ("REDIFY", UP, DOWN, DOWN);
+
+    /** Blue up by 2, red and green down by 1 */
+    public static final PixelOp BLUEIFY = new StepKernel ("BLUEIFY", DOWN, DOWN, UP);
+
+    /** Every colour up by 2 */
+    public static final PixelOp BRIGHTEN = new StepKernel ("BRIGHTEN", UP, UP, UP);
+
+    /** 255 - value for every colour, which just flips their bits */
+    public static final PixelOp NEGATIVE = new PixelOp()
+    {
+        public String toString ()
+        {
+            return "NEGATIVE";
+        }
+
+        public int apply (int argb)
+        {
+            return argb ^ 0x00FFFFFF;
+        }
+
+        public void applyRow (int[] pixels, int offset, int length)
+        {
+            int end = offset + length;
+            for (int i = offset; i < end; i++)
+            {
+                pixels[i] ^= 0x00FFFFFF;
+            }
+        }
+    };
+
+    /** Red takes the old blue, green takes the old red and blue takes the old green */
+    public static final PixelOp SCRAMBLE = new PixelOp()
+    {
+        public String toString ()
+        {
+            return "SCRAMBLE";
+        }
+
+        public int apply (int argb)
+        {
+            // Blue moves up two channels, red and green move down one together
+            return (argb & 0xFF000000) | ((argb & 0xFF) << 16) | ((argb >> 8) & 0xFFFF);
+        }
+
+        public void applyRow (int[] pixels, int offset, int length)
+        {
+            int end = offset + length;
+            for (int i = offset; i < end; i++)
+            {
+                int p = pixels[i];
+                pixels[i] = (p & 0xFF000000) | ((p & 0xFF) << 16) | ((p >> 8) & 0xFFFF);
+            }
+        }
+    };
+
+    /**
+     * @return boolean  False if the kernels have been turned off with photoedit.scalarKernels
+     */
+    public static boolean isEnabled ()
+    {
+        return !DISABLED;
+    }
+
+    /**
+     * Moves channels up by 2 or down by 1, two channels per addition.
+     */
+    private static class StepKernel implements PixelOp
+    {
+        private final String name;  // Name of the constant, for messages
+
+        // For the red/blue word (red at bit 16, blue at bit 0) and the alpha/green word
+        // (alpha at bit 16, green at bit 0): what to add so that UP channels at 254 or
+        // more, and DOWN channels at 50 or more, set the carry bit above them...
+        private final int rbAdd;
+        private final int agAdd;
+        // ...and the carry bits of the channels that move up or down
+        private final int rbUp;
+        private final int rbDown;
+        private final int agUp;
+        private final int agDown;
+
+        StepKernel (String name, int red, int green, int blue)
+        {
+            this.name = name;
+            rbAdd = (add (red) << 16) | add (blue);
+            agAdd = add (green);
+            rbUp = (carryIf (red, UP) << 16) | carryIf (blue, UP);
+            rbDown = (carryIf (red, DOWN) << 16) | carryIf (blue, DOWN);
+            agUp = carryIf (green, UP);
+            agDown = carryIf (green, DOWN);
+        }
+
+        public String toString ()
+        {
+            return name;
+        }
+
+        public int apply (int argb)
+        {
+            int rb = argb & 0x00FF00FF;
+            int ag = (argb >>> 8) & 0x00FF00FF;
+            rb = step (rb, rbAdd, rbUp, rbDown);
+            ag = step (ag, agAdd, agUp, agDown);
+            return rb | (ag << 8);
+        }
+
+        public void applyRow (int[] pixels, int offset, int length)
+        {
+            int rbAdd = this.rbAdd;
+            int agAdd = this.agAdd;
+            int rbUp = this.rbUp;
+            int rbDown = this.rbDown;
+            int agUp = this.agUp;
+            int agDown = this.agDown;
+            int end = offset + length;
+            for (int i = offset; i < end; i++)
+            {
+                int p = pixels[i];
+                int rb = step (p & 0x00FF00FF, rbAdd, rbUp, rbDown);
+                int ag = step ((p >>> 8) & 0x00FF00FF, agAdd, agUp, agDown);
+                pixels[i] = rb | (ag << 8);
+            }
+        }
+
+        /**
+         * UP channels carry when they are 254 or 255 (and stay put), DOWN channels carry
+         * when they are at least 50 (and go down by 1). No channel leaves 0-255, so
+         * nothing spills into the next one.
+         */
+        private static int step (int lanes, int add, int up, int down)
+        {
+            int carry = ((lanes + add) >>> 8) & 0x00010001;
+            return lanes + ((~carry & up) << 1) - (carry & down);
+        }
+
+        private static int add (int mode)
+        {
+            if (mode == UP)
+                return 2;       // 254 + 2 = 256
+            if (mode == DOWN)
+                return 256 - 50;
+            return 0;
+        }
+
+        private static int carryIf (int mode, int wanted)
+        {
+            return (mode == wanted) ? 1 : 0;
+        }
+    }
+}
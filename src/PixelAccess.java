@@ -0,0 +1,365 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Fast, row-major access to the pixels of a BufferedImage.
+ * <p>
+ * getRGB() and setRGB() go through the image's ColorModel for every single pixel,
+ * which is very slow on big photos, and walking the image one column at a time
+ * jumps all over memory. When the image is backed by a packed int or byte array
+ * (TYPE_INT_ARGB, TYPE_INT_RGB, TYPE_3BYTE_BGR, TYPE_4BYTE_ABGR, or the 8-bit
+ * grey images made by LumaOp) this class reads and writes that array directly,
+ * one row after another. Every other type
+ * falls back to the bulk getRGB()/setRGB() methods, still one whole row at a time,
+ * so the pixels that come out are exactly the same as before. Images kept in a
+ * scratch file by MappedImage are also read and written a whole row at a time.
+ * <p>
+ * Rows are always handed out as packed ARGB integers, the same values that
+ * getRGB() would return.
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public class PixelAccess
+{
+    /**
+     * Applies a PixelOp to every pixel of the image, in place. Big images are split
+     * into bands of rows that run in parallel (see BandExecutor).
+     *
+     * @param bi    The BufferedImage (passed by reference) to change.
+     * @param op    The operation to apply to each pixel
+     */
+    public static void applyPointOp (BufferedImage bi, PixelOp op)
+    {
+        BandExecutor.run (bi.getHeight(), bi.getWidth(), (start, end) -> applyPointOp (bi, op, start, end));
+    }
+
+    /**
+     * Applies a PixelOp to the rows yStart (inclusive) to yEnd (exclusive) of the image.
+     *
+     * @param bi        The BufferedImage (passed by reference) to change.
+     * @param op        The operation to apply to each pixel
+     * @param yStart    First row to change
+     * @param yEnd      Row after the last row to change
+     */
+    public static void applyPointOp (BufferedImage bi, PixelOp op, int yStart, int yEnd)
+    {
+        int width = bi.getWidth();
+        int[] argb = argbPixels (bi);
+        if (argb != null)
+        {
+            // The array already holds ARGB values, so change it where it is
+            op.applyRow (argb, yStart * width, (yEnd - yStart) * width);
+            return;
+        }
+
+        if (LumaOp.isGrey (bi) && isStandardLayout (bi))
+        {
+            // Only 256 different pixels can be stored, so change each of them once and look the rest up
+            int[] shades = new int[256];
+            for (int v = 0; v < 256; v++)
+            {
+                shades[v] = 0xFF000000 | (v * 0x010101);
+            }
+            op.applyRow (shades, 0, 256);
+            byte[] changed = new byte[256];
+            for (int v = 0; v < 256; v++)
+            {
+                changed[v] = greyByte (bi, shades[v]);
+            }
+            byte[] data = byteData (bi);
+            for (int i = yStart * width; i < yEnd * width; i++)
+            {
+                data[i] = changed[data[i] & 0xFF];
+            }
+            return;
+        }
+
+        int[] row = new int[width];
+        for (int y = yStart; y < yEnd; y++)
+        {
+            readRow (bi, y, row);
+            op.applyRow (row, 0, width);
+            writeRow (bi, y, row);
+        }
+    }
+
+    /**
+     * Copies one row of the image into an array of packed ARGB pixels, exactly as
+     * getRGB() would return them.
+     *
+     * @param bi    The BufferedImage to read from
+     * @param y     The row to read
+     * @param row   Array of at least bi.getWidth() ints to fill
+     */
+    public static void readRow (BufferedImage bi, int y, int[] row)
+    {
+        int width = bi.getWidth();
+        int type = bi.getType();
+        if (isStandardLayout (bi))
+        {
+            if (type == BufferedImage.TYPE_INT_ARGB)
+            {
+                System.arraycopy (intData (bi), y * width, row, 0, width);
+                return;
+            }
+            else if (MappedImage.isMapped (bi))
+            {
+                ((MappedImage.PixelBuffer) bi.getRaster().getDataBuffer()).read (y * width, row, width);
+                return;
+            }
+            else if (type == BufferedImage.TYPE_INT_RGB)
+            {
+                int[] data = intData (bi);
+                int start = y * width;
+                for (int x = 0; x < width; x++)
+                {
+                    row[x] = 0xFF000000 | data[start + x];  // No alpha stored, getRGB() reports opaque
+                }
+                return;
+            }
+            else if (type == BufferedImage.TYPE_3BYTE_BGR)
+            {
+                byte[] data = byteData (bi);
+                int i = y * width * 3;
+                for (int x = 0; x < width; x++, i += 3)
+                {
+                    row[x] = 0xFF000000 | ((data[i + 2] & 0xFF) << 16) | ((data[i + 1] & 0xFF) << 8) | (data[i] & 0xFF);
+                }
+                return;
+            }
+            else if (LumaOp.isGrey (bi))
+            {
+                byte[] data = byteData (bi);
+                int start = y * width;
+                for (int x = 0; x < width; x++)
+                {
+                    row[x] = 0xFF000000 | ((data[start + x] & 0xFF) * 0x010101);  // Byte v is the grey (v, v, v)
+                }
+                return;
+            }
+            else if (type == BufferedImage.TYPE_4BYTE_ABGR)
+            {
+                byte[] data = byteData (bi);
+                int i = y * width * 4;
+                for (int x = 0; x < width; x++, i += 4)
+                {
+                    row[x] = ((data[i] & 0xFF) << 24) | ((data[i + 3] & 0xFF) << 16) | ((data[i + 2] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+                }
+                return;
+            }
+        }
+        // Anything else has to go through the ColorModel
+        bi.getRGB (0, y, width, 1, row, 0, width);
+    }
+
+    /**
+     * Writes an array of packed ARGB pixels into one row of the image, exactly as
+     * setRGB() would store them.
+     *
+     * @param bi    The BufferedImage (passed by reference) to change.
+     * @param y     The row to write
+     * @param row   Array of at least bi.getWidth() packed ARGB pixels
+     */
+    public static void writeRow (BufferedImage bi, int y, int[] row)
+    {
+        int width = bi.getWidth();
+        int type = bi.getType();
+        if (isStandardLayout (bi))
+        {
+            if (type == BufferedImage.TYPE_INT_ARGB)
+            {
+                System.arraycopy (row, 0, intData (bi), y * width, width);
+                return;
+            }
+            else if (MappedImage.isMapped (bi))
+            {
+                ((MappedImage.PixelBuffer) bi.getRaster().getDataBuffer()).write (y * width, row, width);
+                return;
+            }
+            else if (type == BufferedImage.TYPE_INT_RGB)
+            {
+                int[] data = intData (bi);
+                int start = y * width;
+                for (int x = 0; x < width; x++)
+                {
+                    data[start + x] = row[x] & 0x00FFFFFF;  // Alpha is dropped, like setRGB() does
+                }
+                return;
+            }
+            else if (type == BufferedImage.TYPE_3BYTE_BGR)
+            {
+                byte[] data = byteData (bi);
+                int i = y * width * 3;
+                for (int x = 0; x < width; x++, i += 3)
+                {
+                    int p = row[x];
+                    data[i] = (byte) p;
+                    data[i + 1] = (byte) (p >> 8);
+                    data[i + 2] = (byte) (p >> 16);
+                }
+                return;
+            }
+            else if (LumaOp.isGrey (bi))
+            {
+                byte[] data = byteData (bi);
+                int start = y * width;
+                for (int x = 0; x < width; x++)
+                {
+                    data[start + x] = greyByte (bi, row[x]);
+                }
+                return;
+            }
+            else if (type == BufferedImage.TYPE_4BYTE_ABGR)
+            {
+                byte[] data = byteData (bi);
+                int i = y * width * 4;
+                for (int x = 0; x < width; x++, i += 4)
+                {
+                    int p = row[x];
+                    data[i] = (byte) (p >> 24);
+                    data[i + 1] = (byte) p;
+                    data[i + 2] = (byte) (p >> 8);
+                    data[i + 3] = (byte) (p >> 16);
+                }
+                return;
+            }
+        }
+        bi.setRGB (0, y, width, 1, row, 0, width);
+    }
+
+    /**
+     * Checks whether the image stores 8 bits of red, green and blue (and alpha, if it
+     * has any) for every pixel, so a row that is written and read back comes out the
+     * same. Grey, premultiplied and 16-bit images round the colours they are given.
+     *
+     * @param bi    The BufferedImage to look at
+     * @return boolean  True if the image keeps colours exactly as they are written
+     */
+    public static boolean keepsExactColours (BufferedImage bi)
+    {
+        int type = bi.getType();
+        return type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_RGB
+            || type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR
+            || MappedImage.isMapped (bi);  // Packed ARGB, just not on the heap
+    }
+
+    /**
+     * Checks whether every pixel of the image is fully opaque (alpha 255).
+     *
+     * @param bi    The BufferedImage to look at
+     * @return boolean  True if no pixel is see-through at all
+     */
+    public static boolean isOpaque (BufferedImage bi)
+    {
+        if (!bi.getColorModel().hasAlpha())
+            return true;
+
+        int width = bi.getWidth();
+        int[] row = new int[width];
+        for (int y = 0; y < bi.getHeight(); y++)
+        {
+            readRow (bi, y, row);
+            for (int x = 0; x < width; x++)
+            {
+                if ((row[x] >>> 24) != 255)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the array behind a TYPE_INT_ARGB image, where every element is already
+     * the packed ARGB value that getRGB() would return.
+     *
+     * @param bi    The BufferedImage to look at
+     * @return int[]    The backing array (row-major, width ints per row), or null if
+     *                  the image is not a plain TYPE_INT_ARGB image
+     */
+    public static int[] argbPixels (BufferedImage bi)
+    {
+        if (bi.getType() == BufferedImage.TYPE_INT_ARGB && isStandardLayout (bi))
+            return intData (bi);
+        return null;
+    }
+
+    /**
+     * Returns the array behind a TYPE_INT_ARGB or TYPE_INT_RGB image. The raw values
+     * can be moved around freely (flips, copies) but for TYPE_INT_RGB they carry no
+     * alpha, so use argbPixels() when the colour values themselves are changed.
+     *
+     * @param bi    The BufferedImage to look at
+     * @return int[]    The backing array (row-major, width ints per row), or null if
+     *                  the image is not packed into one int per pixel
+     */
+    public static int[] intPixels (BufferedImage bi)
+    {
+        int type = bi.getType();
+        if ((type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_RGB) && isStandardLayout (bi))
+            return intData (bi);
+        return null;
+    }
+
+    /**
+     * Returns the array behind an image that keeps each pixel in its own run of bytes,
+     * like TYPE_3BYTE_BGR or an 8-bit grey image. As with intPixels(), the raw bytes
+     * can be moved around freely but they aren't ARGB values.
+     *
+     * @param bi    The BufferedImage to look at
+     * @return byte[]   The backing array (row-major, width * getNumDataElements() bytes
+     *                  per row), or null if the image isn't laid out like that
+     */
+    public static byte[] bytePixels (BufferedImage bi)
+    {
+        WritableRaster raster = bi.getRaster();
+        if (raster.getDataBuffer() instanceof DataBufferByte && raster.getSampleModel() instanceof PixelInterleavedSampleModel
+            && isStandardLayout (bi))
+            return byteData (bi);
+        return null;
+    }
+
+    /**
+     * Checks that the raster starts at the beginning of its own DataBuffer and has no
+     * padding between rows, so pixel (x, y) is simply element y * width + x (times
+     * the number of bytes per pixel). Sub-images share their parent's buffer and
+     * fail this test.
+     */
+    private static boolean isStandardLayout (BufferedImage bi)
+    {
+        WritableRaster raster = bi.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+        if (raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0)
+            return false;
+        if (buffer.getNumBanks() != 1 || buffer.getOffset() != 0)
+            return false;
+        int pixelSize = (buffer instanceof DataBufferByte) ? raster.getNumDataElements() : 1;
+        return buffer.getSize() == bi.getWidth() * bi.getHeight() * pixelSize;
+    }
+
+    /**
+     * Returns the byte that an 8-bit grey image from LumaOp stores for a pixel, the
+     * same one setRGB() would store.
+     */
+    private static byte greyByte (BufferedImage bi, int argb)
+    {
+        int blue = argb & 0xFF;
+        if ((argb >>> 8) == (0xFF0000 | (blue << 8) | blue))
+            return (byte) blue;  // Opaque grey is stored as it is
+        return ((byte[]) bi.getColorModel().getDataElements (argb, null))[0];  // Nearest grey
+    }
+
+    private static int[] intData (BufferedImage bi)
+    {
+        return ((DataBufferInt) bi.getRaster().getDataBuffer()).getData();
+    }
+
+    private static byte[] byteData (BufferedImage bi)
+    {
+        return ((DataBufferByte) bi.getRaster().getDataBuffer()).getData();
+    }
+}
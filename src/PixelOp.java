@@ -0,0 +1,37 @@
+/**
+ * A colour change that is applied to every pixel on its own, without looking at
+ * any of the neighbouring pixels (Blue-ify, Negative, Brighten, ...).
+ * <p>
+ * Operations like this can be run by PixelAccess straight on the array behind a
+ * BufferedImage, one row after another.
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public interface PixelOp
+{
+    /**
+     * Changes a single pixel.
+     *
+     * @param argb  The value of a single pixel as an integer (alpha, red, green, blue)
+     * @return int  The changed pixel, packed the same way
+     */
+    int apply (int argb);
+
+    /**
+     * Changes a run of pixels in place. Override this if the operation can do a
+     * whole row faster than one pixel at a time.
+     *
+     * @param pixels    Array of packed ARGB pixels
+     * @param offset    Index of the first pixel to change
+     * @param length    Number of pixels to change
+     */
+    default void applyRow (int[] pixels, int offset, int length)
+    {
+        int end = offset + length;
+        for (int i = offset; i < end; i++)
+        {
+            pixels[i] = apply (pixels[i]);
+        }
+    }
+}
@@ -8,8 +8,15 @@
  * you don't have to. These methods are unpackPixel() and packagePixel() and do
  * exactly what they say - extract red, green, blue and alpha values out of an
  * int, and put the same four integers back into a special packed integer. 
+ * unpackPixel() creates a new array every time, so per-pixel code uses getRed(),
+ * getGreen(), getBlue() and getAlpha() instead, which don't allocate anything.
  * 
  * Included is a deepCopy method to produce an exact copy of a BufferedImage.
+ * <p>
+ * The filters work on the image one row at a time through PixelAccess, which
+ * reads the array behind the BufferedImage directly when it can. Big images are
+ * split into bands of rows that are processed in parallel by BandExecutor; the
+ * result is exactly the same as processing them one after another.
  * 
  * Original author is Jordan Cohen.
  * @author David Yao
@@ -19,13 +26,74 @@
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
 import java.awt.image.WritableRaster;
+import java.util.Arrays;
 
 public class Processor  
 {   
+    // The colour filters below only change each channel on its own, so they are lookup tables
+    // (three lookups per pixel) worked out once from the rules in the comments. Where the rule
+    // can be done to all three channels at once with integer maths, that is used instead
+    // (see PackedKernels); KernelCheck makes sure it matches the table.
+
+    /** make the pic GREEN-er: green up by 2, red and blue down by 1 (if at least 50) */
+    public static final ChannelLut GREENIFY = ChannelLut.of (
+        red -> (red >= 50) ? red - 1 : red,
+        green -> (green < 254) ? green + 2 : green,
+        blue -> (blue >= 50) ? blue - 1 : blue).withKernel (PackedKernels.GREENIFY);
+
+    /** make the pic RED-er: red up by 2, green and blue down by 1 (if at least 50) */
+    public static final ChannelLut REDIFY = ChannelLut.of (
+        red -> (red < 254) ? red + 2 : red,
+        green -> (green >= 50) ? green - 1 : green,
+        blue -> (blue >= 50) ? blue - 1 : blue).withKernel (PackedKernels.REDIFY);
+
+    /** make the pic BLUE-er: blue up by 2, red and green down by 1 (if at least 50) */
+    public static final ChannelLut BLUEIFY = ChannelLut.of (
+        red -> (red >= 50) ? red - 1 : red,
+        green -> (green >= 50) ? green - 1 : green,
+        blue -> (blue < 254) ? blue + 2 : blue).withKernel (PackedKernels.BLUEIFY);
+
+    /** Changing all colours to negatives (255 - value) */
+    public static final ChannelLut NEGATIVE = ChannelLut.of (value -> 255 - value).withKernel (PackedKernels.NEGATIVE);
+
+    /** make the pic WHITE-er: every colour up by 2 (unless already 254 or 255) */
+    public static final ChannelLut BRIGHTEN = ChannelLut.of (value -> (value < 254) ? value + 2 : value)
+        .withKernel (PackedKernels.BRIGHTEN);
+
+    /** Red takes the old blue, green takes the old red and blue takes the old green */
+    public static final ChannelLut SCRAMBLE = ChannelLut.rearrange (ChannelLut.BLUE, ChannelLut.RED, ChannelLut.GREEN)
+        .withKernel (PackedKernels.SCRAMBLE);
+
+    /** Pixels pass through a TYPE_BYTE_GRAY image, which decolourizes them */
+    public static final PixelOp GREYSCALE = new GreyScaleOp();
+
+    private static final int MOSAIC_BLOCK = 16;  // Block size of mosaic(), in pixels
+    private static final double BLUR_SIGMA = 2.0;  // Spread of blur(), in pixels
+
+    private static int[] premultiplied;  // Colour rounding of see-through pixels, see premultipliedTable()
+
+    // Rounds see-through pixels after a flip, see roundToPremultiplied()
+    private static final PixelOp ROUND_PREMULTIPLIED = new PixelOp()
+    {
+        public int apply (int argb)
+        {
+            int[] pixel = { argb };
+            roundToPremultiplied (pixel, 0, 1);
+            return pixel [0];
+        }
+
+        public void applyRow (int[] pixels, int offset, int length)
+        {
+            roundToPremultiplied (pixels, offset, length);
+        }
+    };
+
     /**
      * Takes the integer value of only every fourth pixel, and applies it to all pixels that are skipped.
      * Produces a blocky (pixelated) effect.
      * 
+     * Kept exactly as it always was; see pixelate (bi, blockSize, average) for any block size.
+     * 
      * @param bi    The BufferedImage (passed by reference) to change.
      */
     public static void pixelate (BufferedImage bi)
@@ -34,74 +102,146 @@ public class Processor
         int xSize = bi.getWidth();
         int ySize = bi.getHeight();
 
-        int[][] pixels = new int[xSize][ySize];  // Stores all pixels
-
-        // Filling array
-        for (int x = 0; x < xSize - 4; x += 4)
-        {
-            for (int y = 0; y < ySize - 4; y += 4) // for loop y
+        // Samples are taken every four pixels, but never from the last four rows or columns.
+        // Every pixel gets the colour of the nearest sample above and to the left of it, and
+        // the last samples stretch over the rest of the image (8 pixels across, 6 pixels down).
+        int lastX = ((xSize - 5) / 4) * 4;
+        int lastY = ((ySize - 5) / 4) * 4;
+        int sampleRows = (xSize > 4 && ySize > 4) ? lastY / 4 + 1 : 0;
+        int filledRows = (sampleRows > 0) ? Math.min (lastY + 6, ySize) : 0;
+
+        // Each band owns whole blocks of rows, so no thread reads a sample row another one is writing
+        BandExecutor.run (sampleRows, 4L * xSize, (start, end) -> {
+            int[] row = new int[xSize];  // One row of the image
+            int[] blocks = new int[xSize];  // One row of the pixelated result
+            for (int sampleY = start * 4; sampleY < end * 4; sampleY += 4)
             {
-                pixels [x][y] = bi.getRGB(x, y);  // Only getRGB every four pixels, both horizontally and vertically
-                for (int i = 0; i < 8; i++)
+                PixelAccess.readRow (bi, sampleY, row);
+                for (int x = 0; x < xSize; x++)
                 {
-                    for (int j = 0; j < 6; j++)
-                    {
-                        pixels [x + i][y + j] = bi.getRGB(x, y);  // Pixels in the rectangle specified are all set to the pixel extrated in for loop y
-                    }
+                    blocks [x] = row [Math.min (x & ~3, lastX)];  // Round x down to the column that was sampled
+                }
+
+                // Every row up to the next sample row gets the same pixels
+                int blockEnd = (sampleY == lastY) ? filledRows : sampleY + 4;
+                for (int y = sampleY; y < blockEnd; y++)
+                {
+                    PixelAccess.writeRow (bi, y, blocks);
                 }
             }
-        }
-        // Applying array to image
-        for (int x = 0; x < xSize; x++)
+        });
+
+        // Rows that no sample reaches are left empty
+        int[] empty = new int[xSize];
+        for (int y = filledRows; y < ySize; y++)
         {
-            for (int y = 0; y < ySize; y++)
-            {
-                bi.setRGB(x, y, pixels [x][y]);
-            }
+            PixelAccess.writeRow (bi, y, empty);
         }
     }
 
     /**
-     * This method will increase the green value while reducing the red and blue values.
+     * Mosaic: Pixelate with 16 pixel blocks, each the average colour of the pixels it covers.
      * 
      * @param bi    The BufferedImage (passed by reference) to change.
      */
-    public static void greenify (BufferedImage bi)
+    public static void mosaic (BufferedImage bi)
     {
-        // Get image size to use in for loops
+        pixelate (bi, MOSAIC_BLOCK, true);
+    }
+
+    /**
+     * Splits the image into square blocks and fills each block with one colour: the
+     * average of every pixel in the block, or the colour of its top left pixel. Blocks
+     * at the right and bottom edges are cut short, and cover the edge exactly.
+     * 
+     * Averages come from a summed-area table of each strip of blocks (the sums of every
+     * column, added up left to right), so working out a block's average takes the same
+     * time however big the block is, and every pixel is read once and written once.
+     * 
+     * @param bi        The BufferedImage (passed by reference) to change.
+     * @param blockSize Width and height of each block, in pixels (1 or more)
+     * @param average   True to use each block's average colour, false to use its top left pixel
+     */
+    public static void pixelate (BufferedImage bi, int blockSize, boolean average)
+    {
+        if (blockSize < 1)
+            throw new IllegalArgumentException ("Block size must be at least 1: " + blockSize);
+
         int xSize = bi.getWidth();
         int ySize = bi.getHeight();
-
-        // Using array size as limit
-        for (int x = 0; x < xSize; x++)
-        {
-            for (int y = 0; y < ySize; y++)
+        int blockRows = (ySize + blockSize - 1) / blockSize;
+        int blockColumns = (xSize + blockSize - 1) / blockSize;
+
+        // Each band owns whole strips of blocks, so no thread reads a row another one is writing
+        BandExecutor.run (blockRows, (long) blockSize * xSize, (start, end) -> {
+            int[] row = new int[xSize];
+            int[] blocks = new int[xSize];  // One row of the pixelated result
+            long[] sums = average ? new long[4 * (xSize + 1)] : null;  // Alpha, red, green and blue, see below
+            for (int strip = start; strip < end; strip++)
             {
-                // Calls method in BufferedImage that returns R G B and alpha values
-                // encoded together in an integer
-                int rgb = bi.getRGB(x, y);
-
-                // Call the unpackPixel method to retrieve the four integers for
-                // R, G, B and alpha and assign them each to their own integer
-                int[] rgbValues = unpackPixel (rgb);
-                int alpha = rgbValues[0];
-                int red = rgbValues[1];
-                int green = rgbValues[2];
-                int blue = rgbValues[3];
-
-                // make the pic BLUE-er
-                if (green < 254)
-                    green += 2;
-                if (red >= 50)
-                    red--;
-                if (blue >= 50)
-                    blue--;
-
-                int newColour = packagePixel (red, green, blue, alpha);
-                bi.setRGB (x, y, newColour);
+                int firstRow = strip * blockSize;
+                int endRow = Math.min (ySize, firstRow + blockSize);
+                if (average)
+                {
+                    // Add up each column of the strip, then add the columns up left to right, so
+                    // sums[4 * x + c] is the total of channel c over columns 0 to x - 1
+                    Arrays.fill (sums, 0);
+                    for (int y = firstRow; y < endRow; y++)
+                    {
+                        PixelAccess.readRow (bi, y, row);
+                        for (int x = 0, i = 4; x < xSize; x++, i += 4)
+                        {
+                            int p = row [x];
+                            sums [i] += p >>> 24;
+                            sums [i + 1] += (p >> 16) & 0xFF;
+                            sums [i + 2] += (p >> 8) & 0xFF;
+                            sums [i + 3] += p & 0xFF;
+                        }
+                    }
+                    for (int i = 4; i < sums.length; i++)
+                    {
+                        sums [i] += sums [i - 4];
+                    }
+
+                    for (int block = 0; block < blockColumns; block++)
+                    {
+                        int left = block * blockSize;
+                        int right = Math.min (xSize, left + blockSize);
+                        long count = (long) (endRow - firstRow) * (right - left);
+                        long half = count / 2;  // Rounds to the nearest value
+                        int a = (int) ((sums [4 * right] - sums [4 * left] + half) / count);
+                        int r = (int) ((sums [4 * right + 1] - sums [4 * left + 1] + half) / count);
+                        int g = (int) ((sums [4 * right + 2] - sums [4 * left + 2] + half) / count);
+                        int b = (int) ((sums [4 * right + 3] - sums [4 * left + 3] + half) / count);
+                        Arrays.fill (blocks, left, right, (a << 24) | (r << 16) | (g << 8) | b);
+                    }
+                }
+                else
+                {
+                    PixelAccess.readRow (bi, firstRow, row);
+                    for (int left = 0; left < xSize; left += blockSize)
+                    {
+                        Arrays.fill (blocks, left, Math.min (xSize, left + blockSize), row [left]);
+                    }
+                }
+
+                // Every row of the strip gets the same pixels
+                for (int y = firstRow; y < endRow; y++)
+                {
+                    PixelAccess.writeRow (bi, y, blocks);
+                }
             }
-        }
+        });
+    }
 
+    /**
+     * This method will increase the green value while reducing the red and blue values.
+     * 
+     * @param bi    The BufferedImage (passed by reference) to change.
+     */
+    public static void greenify (BufferedImage bi)
+    {
+        PixelAccess.applyPointOp (bi, GREENIFY);
     }
 
     /**
@@ -111,118 +251,33 @@ public class Processor
      */
     public static void redify (BufferedImage bi)
     {
-        // Get image size to use in for loops
-        int xSize = bi.getWidth();
-        int ySize = bi.getHeight();
-
-        // Using array size as limit
-        for (int x = 0; x < xSize; x++)
-        {
-            for (int y = 0; y < ySize; y++)
-            {
-                // Calls method in BufferedImage that returns R G B and alpha values
-                // encoded together in an integer
-                int rgb = bi.getRGB(x, y);
-
-                // Call the unpackPixel method to retrieve the four integers for
-                // R, G, B and alpha and assign them each to their own integer
-                int[] rgbValues = unpackPixel (rgb);
-                int alpha = rgbValues[0];
-                int red = rgbValues[1];
-                int green = rgbValues[2];
-                int blue = rgbValues[3];
-
-                // make the pic RED-er
-                if (red < 254)
-                    red += 2;
-                if (blue >= 50)
-                    blue--;
-                if (green >= 50)
-                    green--;
-
-                int newColour = packagePixel (red, green, blue, alpha);
-                bi.setRGB (x, y, newColour);
-            }
-        }
-
+        PixelAccess.applyPointOp (bi, REDIFY);
     }
 
     /**
      * Example colour altering method by Mr. Cohen. This method will
      * increase the blue value while reducing the red and green values.
      * 
-     * Demonstrates use of packagePixel() and unpackPixel() methods.
+     * Now a lookup table, see BLUEIFY.
      * 
      * @param bi    The BufferedImage (passed by reference) to change.
      */
     public static void blueify (BufferedImage bi)
     {
-        // Get image size to use in for loops
-        int xSize = bi.getWidth();
-        int ySize = bi.getHeight();
-
-        // Using array size as limit
-        for (int x = 0; x < xSize; x++)
-        {
-            for (int y = 0; y < ySize; y++)
-            {
-                // Calls method in BufferedImage that returns R G B and alpha values
-                // encoded together in an integer
-                int rgb = bi.getRGB(x, y);
-
-                // Call the unpackPixel method to retrieve the four integers for
-                // R, G, B and alpha and assign them each to their own integer
-                int[] rgbValues = unpackPixel (rgb);
-                int alpha = rgbValues[0];
-                int red = rgbValues[1];
-                int green = rgbValues[2];
-                int blue = rgbValues[3];
-
-                // make the pic BLUE-er
-                if (blue < 254)
-                    blue += 2;
-                if (red >= 50)
-                    red--;
-                if (green >= 50)
-                    green--;
-
-                int newColour = packagePixel (red, green, blue, alpha);
-                bi.setRGB (x, y, newColour);
-            }
-        }
-
+        PixelAccess.applyPointOp (bi, BLUEIFY);
     }
 
     /**
      * Reverses x-axis of 2D array to flip the image horizontally.
      * 
+     * Now done in place, see Transforms.
+     * 
      * @param bi    The BufferedImage (passed by reference) to change.
      */
     public static void flipHorizontal (BufferedImage bi)
     {
-        // Get image size to use in for loops
-        int xSize = bi.getWidth();
-        int ySize = bi.getHeight();
-
-        // Temp image, to store pixels as we reverse everything
-        BufferedImage newBi = new BufferedImage (xSize, ySize, 3);
-        int[][] pixels = new int[xSize][ySize];
-
-        for (int x = 0; x < xSize; x++)
-        {
-            for (int y = 0; y < ySize; y++)
-            {
-                pixels [x][y] = bi.getRGB(x, y);
-                newBi.setRGB (xSize - x - 1, y, pixels [x][y]);  // 'Drawing' new image by placing pixels starting from the right instead of the left
-            }
-        }
-        for (int x = 0; x < xSize; x++)
-        {
-            for (int y = 0; y < ySize; y++)
-            {
-                bi.setRGB(x, y, newBi.getRGB(x, y));  // Applying new image to image
-            }
-        }
+        // Pixels pass through premultiplied alpha on the way, like they did through the old temp image
+        Transforms.flipHorizontal (bi, bi.getColorModel().hasAlpha() ? ROUND_PREMULTIPLIED : null);
     }
 
     /**
@@ -232,28 +287,7 @@ public class Processor
      */
     public static void flipVertical (BufferedImage bi)
     {
-        int xSize = bi.getWidth();
-        int ySize = bi.getHeight();
-
-        // Temp image, to store pixels as we reverse everything
-        BufferedImage newBi = new BufferedImage (xSize, ySize, 3);
-        int[][] pixels = new int[xSize][ySize];
-
-        for (int x = 0; x < xSize; x++)
-        {
-            for (int y = 0; y < ySize; y++)
-            {
-                pixels [x][y] = bi.getRGB(x, y);
-                newBi.setRGB (x, ySize - y - 1, pixels [x][y]);
-            }
-        }
-        for (int x = 0; x < xSize; x++)
-        {
-            for (int y = 0; y < ySize; y++)
-            {
-                bi.setRGB(x, y, newBi.getRGB(x, y));
-            }
-        }
+        Transforms.flipVertical (bi, bi.getColorModel().hasAlpha() ? ROUND_PREMULTIPLIED : null);
     }
 
     /**
@@ -263,28 +297,29 @@ public class Processor
      */
     public static void greyScale (BufferedImage bi)
     {
-        int xSize = bi.getWidth();
-        int ySize = bi.getHeight();
+        PixelAccess.applyPointOp (bi, GREYSCALE);
+    }
 
-        // Temp image, to store pixels as we reverse everything
-        BufferedImage newBi = new BufferedImage (xSize, ySize, 10);  // Type 10 (TYPE_BYTE_GRAY) is grayscale only
-        int[][] pixels = new int[xSize][ySize];
+    /**
+     * Luma: greyscale from a weighted sum of red, green and blue (Rec. 709 weights, see LumaOp).
+     * 
+     * @param bi    The BufferedImage (passed by reference) to change.
+     */
+    public static void luma (BufferedImage bi)
+    {
+        greyScale (bi, LumaOp.REC_709);
+    }
 
-        for (int x = 0; x < xSize; x++)
-        {
-            for (int y = 0; y < ySize; y++)
-            {
-                pixels [x][y] = bi.getRGB(x, y);
-                newBi.setRGB (x, y, pixels [x][y]);  // Populating array with old image then feeding it into new image, decolourizing in process
-            }
-        }
-        for (int x = 0; x < xSize; x++)
-        {
-            for (int y = 0; y < ySize; y++)
-            {
-                bi.setRGB(x, y, newBi.getRGB(x, y));
-            }
-        }
+    /**
+     * Shifts the image to greyscale with the chosen luma weights, keeping alpha. Much
+     * quicker than greyScale (bi), which goes through Java2D's colour conversion.
+     * 
+     * @param bi    The BufferedImage (passed by reference) to change.
+     * @param luma  LumaOp.REC_601 or LumaOp.REC_709
+     */
+    public static void greyScale (BufferedImage bi, LumaOp luma)
+    {
+        PixelAccess.applyPointOp (bi, luma);
     }
 
     /**
@@ -294,29 +329,7 @@ public class Processor
      */
     public static void negative (BufferedImage bi)
     {
-        int xSize = bi.getWidth();
-        int ySize = bi.getHeight();
-
-        for (int x = 0; x < xSize; x++)
-        {
-            for (int y = 0; y < ySize; y++)
-            {
-                int rgb = bi.getRGB(x, y);
-
-                // Call the unpackPixel method to retrieve the four integers for
-                // R, G, B and alpha and assign them each to their own integer
-                int[] rgbValues = unpackPixel (rgb);
-
-                int alpha = rgbValues[0];
-                // Changing all colours to negatives
-                int red = 255 - rgbValues[1];
-                int green = 255 - rgbValues[2];
-                int blue = 255 - rgbValues[3];
-
-                int newColour = packagePixel (red, green, blue, alpha);
-                bi.setRGB(x, y, newColour);
-            }
-        }
+        PixelAccess.applyPointOp (bi, NEGATIVE);
     }
 
     /**
@@ -326,39 +339,7 @@ public class Processor
      */
     public static void brighten (BufferedImage bi)
     {
-        // Get image size to use in for loops
-        int xSize = bi.getWidth();
-        int ySize = bi.getHeight();
-
-        // Using array size as limit
-        for (int x = 0; x < xSize; x++)
-        {
-            for (int y = 0; y < ySize; y++)
-            {
-                // Calls method in BufferedImage that returns R G B and alpha values
-                // encoded together in an integer
-                int rgb = bi.getRGB(x, y);
-
-                // Call the unpackPixel method to retrieve the four integers for
-                // R, G, B and alpha and assign them each to their own integer
-                int[] rgbValues = unpackPixel (rgb);
-                int alpha = rgbValues[0];
-                int red = rgbValues[1];
-                int green = rgbValues[2];
-                int blue = rgbValues[3];
-
-                // make the pic WHITE-er
-                if (green < 254)
-                    green += 2;
-                if (red < 254)
-                    red += 2;
-                if (blue < 254)
-                    blue += 2;
-
-                int newColour = packagePixel (red, green, blue, alpha);
-                bi.setRGB (x, y, newColour);
-            }
-        }
+        PixelAccess.applyPointOp (bi, BRIGHTEN);
     }
 
     /**
@@ -368,25 +349,37 @@ public class Processor
      */
     public static void scramble (BufferedImage bi)
     {
-        int xSize = bi.getWidth();
-        int ySize = bi.getHeight();
-        for (int x = 0; x < xSize; x++)
-        {
-            for (int y = 0; y < ySize; y++)
-            {
-                int rgb = bi.getRGB(x, y);
+        PixelAccess.applyPointOp (bi, SCRAMBLE);
+    }
 
-                int[] rgbValues = unpackPixel (rgb);
+    /**
+     * Blurs the image, like a Gaussian blur spreading 2 pixels (three box blurs, see Convolution).
+     * 
+     * @param bi    The BufferedImage (passed by reference) to change.
+     */
+    public static void blur (BufferedImage bi)
+    {
+        Convolution.gaussianBlur (bi, BLUR_SIGMA);
+    }
 
-                int alpha = rgbValues[0];
-                int red = rgbValues[3]; // normally rgbValues[1]
-                int green = rgbValues[1]; // normally rgbValues[2]
-                int blue = rgbValues[2]; // normally rgbValues[3]
+    /**
+     * Sharpens the image by taking away some of each pixel's neighbours.
+     * 
+     * @param bi    The BufferedImage (passed by reference) to change.
+     */
+    public static void sharpen (BufferedImage bi)
+    {
+        Convolution.SHARPEN.apply (bi);
+    }
 
-                int newColour = packagePixel (red, green, blue, alpha);
-                bi.setRGB(x, y, newColour);
-            }
-        }
+    /**
+     * Turns flat areas black and leaves only the edges, where colours change quickly.
+     * 
+     * @param bi    The BufferedImage (passed by reference) to change.
+     */
+    public static void edges (BufferedImage bi)
+    {
+        Convolution.EDGES.apply (bi);
     }
 
     /**
@@ -400,21 +393,38 @@ public class Processor
         int xSize = bi.getWidth();
         int ySize = bi.getHeight();
 
-        // Temp image, to store pixels as we reverse everything
-        int[][] pixels = new int[xSize][ySize];
+        int[] pixels = PixelAccess.intPixels (bi);
+        int[] oldPixels = PixelAccess.intPixels (oldBi);
+        boolean sameLayout = pixels != null && oldPixels != null && bi.getType() == oldBi.getType() && pixels.length == oldPixels.length;
+        boolean sameType = bi.getType() == oldBi.getType() && bi.getType() != BufferedImage.TYPE_CUSTOM
+            && oldBi.getWidth() == xSize && oldBi.getHeight() == ySize;
 
-        for (int x = 0; x < xSize; x++)
-        {
-            for (int y = 0; y < ySize; y++)
+        BandExecutor.run (ySize, xSize, (start, end) -> {
+            if (sameLayout)
             {
-                pixels [x][y] = oldBi.getRGB(x, y);  // Populate array with pixels of old image
-                bi.setRGB (x, y, pixels [x][y]);  // Feed pixels into current image
+                System.arraycopy (oldPixels, start * xSize, pixels, start * xSize, (end - start) * xSize);  // Copy whole rows at once
+                return;
             }
-        }
+            if (sameType)
+            {
+                // Copy the stored values as they are, without converting them to ARGB and back
+                Object data = oldBi.getRaster().getDataElements (0, start, xSize, end - start, null);
+                bi.getRaster().setDataElements (0, start, xSize, end - start, data);
+                return;
+            }
+
+            int[] row = new int[xSize];
+            for (int y = start; y < end; y++)
+            {
+                PixelAccess.readRow (oldBi, y, row);  // Row of pixels from old image
+                PixelAccess.writeRow (bi, y, row);  // Feed pixels into current image
+            }
+        });
     }
 
     /**
-     * Changes BufferedImage type to TYPE_3BYTE_BGR, no alpha to facilitate compatibility with JPG format which is incompatible with transparency
+     * Changes BufferedImage type to TYPE_3BYTE_BGR, no alpha to facilitate compatibility with JPG format which is incompatible with transparency.
+     * To write a JPG file, ImageExporter.writeJPG() does the same without making a copy.
      * 
      * @param bi    The BufferedImage (passed by reference) to change.
      * @return BufferedImage Returns image that is compatible with JPG.
@@ -424,17 +434,15 @@ public class Processor
         int xSize = bi.getWidth();
         int ySize = bi.getHeight();
 
-        // Temp image, to store pixels as we reverse everything
         BufferedImage newBi = new BufferedImage (xSize, ySize, 5);  // Type 5 is TYPE_3BYTE_BGR
-        int[][] pixels = new int[xSize][ySize];
-        for (int x = 0; x < xSize; x++)
-        {
-            for (int y = 0; y < ySize; y++)
+        BandExecutor.run (ySize, xSize, (start, end) -> {
+            int[] row = new int[xSize];
+            for (int y = start; y < end; y++)
             {
-                pixels [x][y] = bi.getRGB(x, y);
-                newBi.setRGB (x, y, pixels [x][y]);
+                PixelAccess.readRow (bi, y, row);
+                PixelAccess.writeRow (newBi, y, row);
             }
-        }
+        });
         return newBi;
     }
 
@@ -468,6 +476,52 @@ public class Processor
         return unpackedValues;
     }
 
+    /**
+     * Returns the alpha value (0-255) of a packed pixel. Unlike unpackPixel(), the
+     * channel methods don't create an array, so they are safe to call for every
+     * pixel of a big image.
+     * 
+     * @param rgbaValue The value of a single pixel as an integer, as returned by getRGB()
+     * @return int      Alpha value (0-255)
+     */
+    public static int getAlpha (int rgbaValue)
+    {
+        return rgbaValue >>> 24;
+    }
+
+    /**
+     * Returns the red value (0-255) of a packed pixel.
+     * 
+     * @param rgbaValue The value of a single pixel as an integer, as returned by getRGB()
+     * @return int      Red value (0-255)
+     */
+    public static int getRed (int rgbaValue)
+    {
+        return (rgbaValue >> 16) & 0xFF;
+    }
+
+    /**
+     * Returns the green value (0-255) of a packed pixel.
+     * 
+     * @param rgbaValue The value of a single pixel as an integer, as returned by getRGB()
+     * @return int      Green value (0-255)
+     */
+    public static int getGreen (int rgbaValue)
+    {
+        return (rgbaValue >> 8) & 0xFF;
+    }
+
+    /**
+     * Returns the blue value (0-255) of a packed pixel.
+     * 
+     * @param rgbaValue The value of a single pixel as an integer, as returned by getRGB()
+     * @return int      Blue value (0-255)
+     */
+    public static int getBlue (int rgbaValue)
+    {
+        return rgbaValue & 0xFF;
+    }
+
     /**
      * Takes in a red, green, blue and alpha integer and uses bit-shifting
      * to package all of the data into a single integer.
@@ -495,9 +549,105 @@ public class Processor
      */
     public static BufferedImage deepCopy(BufferedImage bi) 
     {
-        ColorModel cm = bi.getColorModel();
-        boolean isAlphaPremultip = cm.isAlphaPremultiplied();
-        WritableRaster raster = bi.copyData(null);
-        return new BufferedImage(cm, raster, isAlphaPremultip, null);
+        Metrics.Sample sample = Metrics.start ("deepCopy");
+        BufferedImage copy;
+        if (MappedImage.isMapped (bi))
+        {
+            copy = MappedImage.copy (bi);  // Keep big images off the heap
+        }
+        else
+        {
+            ColorModel cm = bi.getColorModel();
+            boolean isAlphaPremultip = cm.isAlphaPremultiplied();
+            WritableRaster raster = bi.copyData(null);
+            copy = new BufferedImage(cm, raster, isAlphaPremultip, null);
+        }
+        sample.stop ((long) bi.getWidth() * bi.getHeight());
+        return copy;
+    }
+
+    /**
+     * The flips used to copy the image through a temporary TYPE_INT_ARGB_PRE image (type 3), which
+     * rounds the colour of every see-through pixel. This does the same rounding to length packed
+     * ARGB pixels so the flips still give exactly the same result. Opaque pixels are not changed.
+     */
+    private static void roundToPremultiplied (int[] pixels, int start, int length)
+    {
+        int[] table = premultipliedTable();
+        for (int i = start; i < start + length; i++)
+        {
+            int p = pixels [i];
+            int alpha = p >>> 24;
+            if (alpha != 255)
+            {
+                int base = alpha << 8;
+                pixels [i] = (alpha << 24) | (table [base | ((p >> 16) & 0xFF)] << 16)
+                    | (table [base | ((p >> 8) & 0xFF)] << 8) | table [base | (p & 0xFF)];
+            }
+        }
+    }
+
+    /**
+     * Builds (once) the rounded value of every colour at every alpha, indexed by (alpha << 8) | colour,
+     * by letting a TYPE_INT_ARGB_PRE image do the conversion itself.
+     */
+    private static synchronized int[] premultipliedTable ()
+    {
+        if (premultiplied == null)
+        {
+            int[] pixels = new int[256 * 256];
+            for (int i = 0; i < pixels.length; i++)
+            {
+                int alpha = i >> 8;
+                int colour = i & 0xFF;
+                pixels [i] = packagePixel (colour, colour, colour, alpha);
+            }
+            BufferedImage temp = new BufferedImage (256, 256, 3);
+            temp.setRGB (0, 0, 256, 256, pixels, 0, 256);
+            temp.getRGB (0, 0, 256, 256, pixels, 0, 256);
+
+            int[] table = new int[pixels.length];
+            for (int i = 0; i < pixels.length; i++)
+            {
+                table [i] = pixels [i] & 0xFF;  // Red, green and blue are rounded the same way
+            }
+            premultiplied = table;
+        }
+        return premultiplied;
+    }
+
+    /**
+     * Greyscale as a PixelOp. Pixels are fed through a TYPE_BYTE_GRAY image one piece of
+     * a row at a time, so they come out exactly as they would from setRGB() and getRGB()
+     * on a full-size grey image. Each thread keeps its own small grey image to do this.
+     */
+    private static class GreyScaleOp implements PixelOp
+    {
+        private static final int CHUNK = 4096;  // Most pixels passed through the grey image at once
+
+        private final ThreadLocal<BufferedImage> greyRow = new ThreadLocal<BufferedImage>();
+
+        public int apply (int argb)
+        {
+            int[] pixel = { argb };
+            applyRow (pixel, 0, 1);
+            return pixel [0];
+        }
+
+        public void applyRow (int[] pixels, int offset, int length)
+        {
+            BufferedImage grey = greyRow.get();
+            if (grey == null)
+            {
+                grey = new BufferedImage (CHUNK, 1, 10);  // Type 10 (TYPE_BYTE_GRAY) is grayscale only
+                greyRow.set (grey);
+            }
+            for (int start = offset; start < offset + length; start += CHUNK)
+            {
+                int count = Math.min (CHUNK, offset + length - start);
+                grey.setRGB (0, 0, count, 1, pixels, start, count);  // Feeding pixels into grey image, decolourizing in process
+                grey.getRGB (0, 0, count, 1, pixels, start, count);
+            }
+        }
     }
 }
@@ -0,0 +1,208 @@
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * Times every Processor operation so a change can be checked for speed-ups and
+ * slow-downs. Run it from the command line:
+ * <pre>
+ *   java -Xmx4g ProcessorBenchmark [-sizes 1,8,50] [-types INT_ARGB,INT_RGB,3BYTE_BGR,BYTE_GRAY]
+ *                                  [-ops greyScale,deepCopy,...] [-warmup 3] [-iterations 5]
+ * </pre>
+ * Sizes are in megapixels (4:3 images). Every operation runs warmup times first, so
+ * the JIT compiler has done its work, then iterations times while being timed. For
+ * each one it prints the average time, the throughput in megapixels per second,
+ * and the bytes allocated per run (by every thread, so the bands BandExecutor hands
+ * to other threads count too).
+ * <p>
+ * Each edit (see Edit) is timed, plus undoEdit, deepCopy, makeJPGCompatible, and
+ * unpackPixel/packagePixel called once for every pixel. The image is edited over and
+ * over in place, so some edits (Brighten, Pixelate) do the same work on a different
+ * picture each time; that doesn't change their speed.
+ * <p>
+ * A size that doesn't fit in the heap is skipped with a message; 50 MP needs about
+ * -Xmx2g.
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public class ProcessorBenchmark
+{
+    private static volatile int sink;  // Keeps the JIT from throwing away unused results
+
+    private int warmup = 3;
+    private int iterations = 5;
+
+    /**
+     * Times one operation on one image and prints a line of results.
+     *
+     * @param name  Name of the operation
+     * @param bi    The image to run it on (it may be changed)
+     * @param op    The operation
+     */
+    public void measure (String name, BufferedImage bi, Consumer<BufferedImage> op)
+    {
+        for (int i = 0; i < warmup; i++)
+        {
+            op.accept (bi);
+        }
+
+        long allocatedBefore = Metrics.allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            op.accept (bi);
+        }
+        long nanos = System.nanoTime() - start;
+        long allocated = Metrics.allocatedBytes() - allocatedBefore;
+
+        double seconds = nanos / 1e9 / iterations;
+        double megapixels = bi.getWidth() * (double) bi.getHeight() / 1e6;
+        System.out.printf ("%-20s %-10s %6.1f MP %10.2f ms %10.1f MP/s %12.1f KB/op%n",
+            name, typeName (bi.getType()), megapixels, seconds * 1000, megapixels / seconds,
+            allocated / 1024.0 / iterations);
+    }
+
+    /**
+     * Runs every operation on one image.
+     *
+     * @param bi    The image to run them on
+     * @param ops   Names of the operations to run, or null for all of them
+     */
+    public void measureAll (BufferedImage bi, List<String> ops)
+    {
+        for (Map.Entry<String, Consumer<BufferedImage>> entry : operations (bi).entrySet())
+        {
+            if (ops == null || ops.contains (entry.getKey()))
+                measure (entry.getKey(), bi, entry.getValue());
+        }
+    }
+
+    /**
+     * Every operation that can be timed, by name.
+     */
+    private static Map<String, Consumer<BufferedImage>> operations (BufferedImage bi)
+    {
+        Map<String, Consumer<BufferedImage>> ops = new LinkedHashMap<String, Consumer<BufferedImage>>();
+        for (Edit edit : Edit.values())
+        {
+            ops.put (edit.getName(), edit::apply);
+        }
+
+        BufferedImage copy = Processor.deepCopy (bi);
+        ops.put ("undoEdit", image -> Processor.undoEdit (image, copy));
+        ops.put ("deepCopy", image -> sink += Processor.deepCopy (image).getWidth());
+        ops.put ("makeJPGCompatible", image -> sink += Processor.makeJPGCompatible (image).getWidth());
+        ops.put ("unpack/packagePixel", image -> {
+            int[] row = new int[image.getWidth()];
+            int total = 0;
+            for (int y = 0; y < image.getHeight(); y++)
+            {
+                PixelAccess.readRow (image, y, row);
+                for (int x = 0; x < row.length; x++)
+                {
+                    int[] rgba = Processor.unpackPixel (row[x]);
+                    total += Processor.packagePixel (rgba[1], rgba[2], rgba[3], rgba[0]);
+                }
+            }
+            sink += total;
+        });
+        return ops;
+    }
+
+    /**
+     * Makes a 4:3 image of random pixels.
+     *
+     * @param megapixels    Size of the image
+     * @param type          BufferedImage type, like BufferedImage.TYPE_INT_ARGB
+     * @return BufferedImage    The new image
+     */
+    public static BufferedImage randomImage (double megapixels, int type)
+    {
+        int width = (int) Math.round (Math.sqrt (megapixels * 1e6 * 4 / 3));
+        int height = (int) Math.round (megapixels * 1e6 / width);
+        BufferedImage bi = new BufferedImage (width, height, type);
+        Random random = new Random (42);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                row[x] = random.nextInt();
+            }
+            PixelAccess.writeRow (bi, y, row);
+        }
+        return bi;
+    }
+
+    private static String typeName (int type)
+    {
+        switch (type)
+        {
+            case BufferedImage.TYPE_INT_ARGB: return "INT_ARGB";
+            case BufferedImage.TYPE_INT_RGB: return "INT_RGB";
+            case BufferedImage.TYPE_3BYTE_BGR: return "3BYTE_BGR";
+            case BufferedImage.TYPE_4BYTE_ABGR: return "4BYTE_ABGR";
+            case BufferedImage.TYPE_BYTE_GRAY: return "BYTE_GRAY";
+            default: return "type " + type;
+        }
+    }
+
+    private static int typeFor (String name)
+    {
+        for (int type = 1; type <= 13; type++)
+        {
+            if (typeName (type).equalsIgnoreCase (name))
+                return type;
+        }
+        throw new IllegalArgumentException ("Unknown image type: " + name);
+    }
+
+    /**
+     * Command line entry point, see the class comment for the arguments.
+     *
+     * @param args  The command line arguments
+     */
+    public static void main (String[] args)
+    {
+        ProcessorBenchmark benchmark = new ProcessorBenchmark();
+        String sizes = "1,8,50";
+        String types = "INT_ARGB,INT_RGB,3BYTE_BGR,BYTE_GRAY";
+        List<String> ops = null;
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            if (args[i].equals ("-sizes"))
+                sizes = args[i + 1];
+            else if (args[i].equals ("-types"))
+                types = args[i + 1];
+            else if (args[i].equals ("-ops"))
+                ops = Arrays.asList (args[i + 1].split (","));
+            else if (args[i].equals ("-warmup"))
+                benchmark.warmup = Integer.parseInt (args[i + 1]);
+            else if (args[i].equals ("-iterations"))
+                benchmark.iterations = Integer.parseInt (args[i + 1]);
+            else
+                throw new IllegalArgumentException ("Unknown option: " + args[i]);
+        }
+
+        System.out.println ("Threads: " + BandExecutor.getParallelism());
+        for (String size : sizes.split (","))
+        {
+            for (String type : types.split (","))
+            {
+                try
+                {
+                    benchmark.measureAll (randomImage (Double.parseDouble (size), typeFor (type)), ops);
+                }
+                catch (OutOfMemoryError e)  // The image (or a copy of it) is too big, the rest may still fit
+                {
+                    System.out.println ("Skipped " + size + " MP " + type + ": not enough heap");
+                }
+            }
+        }
+    }
+}
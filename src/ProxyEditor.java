@@ -0,0 +1,265 @@
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Edits a big image through the small preview on screen, so every click is instant
+ * however big the image is.
+ * <p>
+ * Edits are made straight away to the preview only, and remembered in a list. The
+ * full size image is brought up to date from that list later, on a background
+ * thread: once no button has been clicked for a while, or when the image is
+ * exported. A new click stops an idle render that is still running once the edit it
+ * is making is finished (an edit stopped half way would have to be made again from
+ * the start), and the render picks up from the next edit next time. Renders for
+ * an export aren't stopped: export() hands the image to an ExportService as soon as
+ * it is up to date, and the finished files come back through ExportService.update().
+ * The full size image itself isn't even decoded until the first render (see
+ * ImageHolder.getFullImageSource()), so opening a big photo only costs a preview.
+ * <p>
+ * Undo and redo only move through the list. Undo makes the preview again from an
+ * unedited copy, which is cheap at preview size.
+ * <p>
+ * Edits that look at neighbouring pixels (Pixelate) look coarser on the preview than
+ * on the full size image, since the preview's pixels are bigger.
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public class ProxyEditor
+{
+    private static final int IDLE_FRAMES = 30;  // act() calls without a click before rendering in the background
+
+    // One background thread renders for every editor
+    private static final ExecutorService RENDERER = Executors.newSingleThreadExecutor (task -> {
+        Thread thread = new Thread (task, "ProxyEditor");
+        thread.setDaemon (true);
+        return thread;
+    });
+
+    private final Supplier<BufferedImage> source;  // Full size image as it was opened, never changed (decoded when first needed)
+    private final BufferedImage previewSource;  // Preview as it was opened, never changed
+    private final BufferedImage preview;        // Preview on screen
+
+    private final List<Edit> edits = new ArrayList<Edit>();  // Every edit made, including ones that were undone
+    private int applied;    // Number of edits in effect, the rest can be redone
+    private int idleFrames;
+
+    // Full size render, only changed by the thread that holds the lock on this
+    private BufferedImage rendered;     // null until the first render
+    private List<Edit> renderedEdits;   // Edits made to rendered, or null if it was left half-edited
+    private Future<?> job;              // Background render, null if none was started
+    private EditProgress jobProgress;   // Only reports how far it has got, never cancelled
+    private AtomicBoolean jobStopped;   // Set by a click, the render stops before its next edit
+
+    private final AtomicInteger exporting = new AtomicInteger();  // Renders for exports not yet handed over
+    private volatile RuntimeException exportError;  // Thrown by the last failed render for an export, until update()
+
+    /**
+     * Construct a ProxyEditor for an image that only has a preview on screen (see
+     * ImageHolder.isLarge()).
+     *
+     * @param image The ImageHolder showing the preview
+     */
+    public ProxyEditor (ImageHolder image)
+    {
+        this.source = image.getFullImageSource();  // Not decoded until the first render
+        this.preview = image.getPreviewImage();
+        this.previewSource = Processor.deepCopy (preview);
+        Metrics.setHistoryMemory (null);  // Only a list of edits, no copies of the image
+        Metrics.setHistoryCompressionRatio (null);
+    }
+
+    /**
+     * Makes an edit to the preview. Any undone edits can no longer be redone.
+     *
+     * @param edit  The edit to make
+     */
+    public void edit (Edit edit)
+    {
+        stopRender();
+        while (edits.size() > applied)
+        {
+            edits.remove (edits.size() - 1);
+        }
+        edits.add (edit);
+        applied++;
+        edit.apply (preview);
+    }
+
+    /**
+     * Changes the preview back to how it was before the last edit.
+     *
+     * @return boolean  True if there was an edit to undo, otherwise false
+     */
+    public boolean undo ()
+    {
+        if (applied == 0)
+            return false;
+        stopRender();
+        applied--;
+        Processor.undoEdit (preview, previewSource);
+        for (int i = 0; i < applied; i++)
+        {
+            edits.get (i).apply (preview);
+        }
+        return true;
+    }
+
+    /**
+     * Makes the last undone edit to the preview again.
+     *
+     * @return boolean  True if there was an edit to redo, otherwise false
+     */
+    public boolean redo ()
+    {
+        if (applied >= edits.size())
+            return false;
+        stopRender();
+        edits.get (applied).apply (preview);
+        applied++;
+        return true;
+    }
+
+    /**
+     * Counts the act() calls since the last click, and starts rendering the full size
+     * image in the background once the user has stopped clicking for a while.
+     *
+     * @throws RuntimeException If a render for an export failed since the last call
+     *                          (UncheckedIOException if the full size image couldn't be decoded)
+     */
+    public void update ()
+    {
+        RuntimeException failure = exportError;
+        if (failure != null)
+        {
+            exportError = null;
+            throw failure;
+        }
+
+        idleFrames++;
+        // A running render holds the lock, so check for one before isRendered()
+        if (idleFrames < IDLE_FRAMES || exporting.get() > 0 || (job != null && !job.isDone())
+            || isRendered (edits.subList (0, applied)))
+            return;
+
+        List<Edit> target = new ArrayList<Edit> (edits.subList (0, applied));
+        EditProgress progress = new EditProgress();
+        AtomicBoolean stopped = new AtomicBoolean();
+        jobProgress = progress;
+        jobStopped = stopped;
+        job = RENDERER.submit (() -> progress.run (() -> render (target, stopped)));  // Carries on from its last edit next time
+    }
+
+    /**
+     * Brings the full size image up to date with every edit made to the preview so far,
+     * on the background thread, and then starts exporting it. Returns straight away:
+     * edits made after this aren't in the export.
+     *
+     * @param exports   The ExportService to write the files with
+     * @param targets   The files to write
+     */
+    public void export (ExportService exports, List<ExportService.Target> targets)
+    {
+        List<Edit> target = new ArrayList<Edit> (edits.subList (0, applied));
+        exporting.incrementAndGet();
+        RENDERER.execute (() -> {
+            try
+            {
+                synchronized (this)
+                {
+                    // Given nothing to stop it with, so clicks can't. The snapshot is
+                    // taken before the lock is let go, so the next render copies rather than changes it.
+                    render (target, null);
+                    exports.export (rendered, targets);
+                }
+            }
+            catch (RuntimeException e)
+            {
+                exportError = e;  // Thrown by update() on the next act()
+            }
+            finally
+            {
+                exporting.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * @return String   What the editor is doing, like "Rendering: 40%", or an empty
+     *                  String if it is waiting
+     */
+    public String getStatus ()
+    {
+        if (exporting.get() > 0)
+            return "Rendering for export";
+        if (job == null || job.isDone())
+            return "";
+        return "Rendering: " + Math.round (jobProgress.getFraction() * 100) + "%";
+    }
+
+    /**
+     * Cancels the background render, if one is running, and restarts the idle count.
+     */
+    private void stopRender ()
+    {
+        idleFrames = 0;
+        if (jobStopped != null)
+            jobStopped.set (true);
+    }
+
+    private synchronized boolean isRendered (List<Edit> target)
+    {
+        return rendered != null && target.equals (renderedEdits);
+    }
+
+    /**
+     * Brings the full size image up to date with a list of edits. Only the edits it is
+     * missing are made, unless it has edits that aren't in the list (after undo), in
+     * which case it starts again from the source image.
+     * <p>
+     * Once stopped is set no more edits are started, but the one being made is
+     * finished, so the edits done so far are kept for the next render.
+     *
+     * @param target    The edits the full size image should have
+     * @param stopped   Set to stop the render between edits, or null if it can't be stopped
+     */
+    private synchronized void render (List<Edit> target, AtomicBoolean stopped)
+    {
+        if (rendered == null)
+        {
+            rendered = Processor.deepCopy (source.get());
+            renderedEdits = new ArrayList<Edit>();
+        }
+        else
+        {
+            if (!isRendered (target))
+                ImageSnapshot.beforeChange (rendered);  // An export may still be reading the last render
+
+            if (renderedEdits == null || renderedEdits.size() > target.size()
+                || !renderedEdits.equals (target.subList (0, renderedEdits.size())))
+            {
+                renderedEdits = null;
+                Processor.undoEdit (rendered, source.get());
+                renderedEdits = new ArrayList<Edit>();
+            }
+        }
+
+        List<Edit> done = renderedEdits;
+        for (int i = done.size(); i < target.size(); i++)
+        {
+            if (stopped != null && stopped.get())
+                return;  // Stopped by a click, renderedEdits holds the edits finished so far
+            renderedEdits = null;  // Half-edited until this edit is finished (only left like that if it throws)
+            target.get (i).apply (rendered);
+            done.add (target.get (i));
+            renderedEdits = done;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * A simple uncompressed image file for passing images between steps of a longer job,
+ * without paying for PNG compression (or JPG's loss of quality) in between.
+ * <p>
+ * The file is a 64 byte header followed by every pixel as a packed ARGB int, one row
+ * after another:
+ * <pre>
+ *   0  "PERASTER"    magic, 8 ASCII bytes
+ *   8  int version   1
+ *  12  int width
+ *  16  int height
+ *  20  int type      layout of the pixels, BufferedImage.TYPE_INT_ARGB
+ *  24  int order     byte order of the pixels: 0 big-endian, 1 little-endian
+ *  28  (zeros up to byte 64)
+ * </pre>
+ * The header is big-endian; the pixels are written in the computer's own byte order,
+ * so open() can map them straight into memory (see MappedImage) and Processor can
+ * edit the file in place, with nothing decoded or copied. Files from a computer with
+ * the other byte order still open, just a little slower.
+ * <p>
+ * New files are written under a scratch name next to the file and then moved into
+ * place, never truncated where they are: cutting short a file that is mapped (say
+ * the input of a batch run writing back to its own folder) crashes the JVM.
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public class RasterFile
+{
+    public static final String EXTENSION = "raw";
+
+    private static final byte[] MAGIC = "PERASTER".getBytes (StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 64;
+    private static final int WRITE_PIXELS = 1 << 20;  // Pixels written to the file at a time (4 MB)
+    private static final Random RANDOM = new Random();  // Scratch file names
+
+    /**
+     * Writes an image to a raster file.
+     *
+     * @param bi    The image to write
+     * @param file  The file to write (it may be the file bi was opened from, which is
+     *              replaced, not overwritten; use open() with writable true to change a
+     *              raster file in place)
+     * @throws IOException  If the file can't be written
+     */
+    public static void write (BufferedImage bi, File file) throws IOException
+    {
+        write (bi.getWidth(), bi.getHeight(), (y, row) -> PixelAccess.readRow (bi, y, row), file);
+    }
+
+    /**
+     * Writes rows of pixels to a raster file.
+     *
+     * @param width     Width of the image
+     * @param height    Height of the image
+     * @param rows      Where to read the pixels from
+     * @param file      The file to write
+     * @throws IOException  If the file can't be written
+     */
+    public static void write (int width, int height, ImageExporter.RowSource rows, File file) throws IOException
+    {
+        Path scratch = scratchFile (file);
+        try
+        {
+            try (FileChannel channel = FileChannel.open (scratch, StandardOpenOption.WRITE))
+            {
+                writeHeader (channel, width, height);
+                int rowsAtOnce = Math.max (1, WRITE_PIXELS / width);
+                ByteBuffer buffer = ByteBuffer.allocateDirect (4 * rowsAtOnce * width).order (ByteOrder.nativeOrder());
+                IntBuffer pixels = buffer.asIntBuffer();
+                int[] row = new int[width];
+                for (int y0 = 0; y0 < height; y0 += rowsAtOnce)
+                {
+                    int count = Math.min (rowsAtOnce, height - y0);
+                    pixels.clear();
+                    for (int y = y0; y < y0 + count; y++)
+                    {
+                        rows.read (y, row);
+                        pixels.put (row);
+                    }
+                    buffer.position (0).limit (4 * count * width);
+                    while (buffer.hasRemaining())
+                    {
+                        channel.write (buffer);
+                    }
+                }
+            }
+            moveIntoPlace (scratch, file);
+        }
+        finally
+        {
+            Files.deleteIfExists (scratch);  // Only still there if something went wrong
+        }
+    }
+
+    /**
+     * Creates a raster file of a new, fully transparent image and opens it for editing.
+     *
+     * @param file      The file to create (replacing it if it is there, even if it is mapped)
+     * @param width     Width of the image
+     * @param height    Height of the image
+     * @return BufferedImage    The image, changes to which go straight to the file
+     * @throws IOException  If the file can't be created
+     */
+    public static BufferedImage create (File file, int width, int height) throws IOException
+    {
+        if (width < 1 || height < 1 || (long) width * height > Integer.MAX_VALUE)
+            throw new IllegalArgumentException ("Bad image size: " + width + "x" + height);
+        Path scratch = scratchFile (file);
+        try
+        {
+            BufferedImage bi;
+            try (FileChannel channel = FileChannel.open (scratch, StandardOpenOption.READ, StandardOpenOption.WRITE))
+            {
+                writeHeader (channel, width, height);
+                bi = MappedImage.map (channel, HEADER_BYTES, width, height, FileChannel.MapMode.READ_WRITE,
+                    ByteOrder.nativeOrder());  // Mapping past the end makes the file long enough
+            }
+            moveIntoPlace (scratch, file);  // The mapping follows the file to its new name
+            return bi;
+        }
+        finally
+        {
+            Files.deleteIfExists (scratch);
+        }
+    }
+
+    /**
+     * Opens a raster file, mapping its pixels into memory without reading them.
+     *
+     * @param file      The file to open
+     * @param writable  True to write changes to the image back to the file, false to
+     *                  keep them in memory and leave the file as it is (if the file is
+     *                  read-only, it is copied into a scratch file)
+     * @return BufferedImage    The image in the file
+     * @throws IOException  If the file can't be read, or isn't a raster file
+     */
+    public static BufferedImage open (File file, boolean writable) throws IOException
+    {
+        // A private (copy on write) mapping still needs the file open for writing
+        boolean canMap = writable || file.canWrite();
+        StandardOpenOption[] options = canMap
+            ? new StandardOpenOption[] {StandardOpenOption.READ, StandardOpenOption.WRITE}
+            : new StandardOpenOption[] {StandardOpenOption.READ};
+        try (FileChannel channel = FileChannel.open (file.toPath(), options))
+        {
+            ByteBuffer header = ByteBuffer.allocate (HEADER_BYTES);
+            while (header.hasRemaining() && channel.read (header) >= 0)
+            {
+                // Keep reading until the header is full or the file ends
+            }
+            header.flip();
+            if (!isHeader (header))
+                throw new IOException ("Not a raster file: " + file);
+            int version = header.getInt (8);
+            int width = header.getInt (12);
+            int height = header.getInt (16);
+            int type = header.getInt (20);
+            ByteOrder order = (header.getInt (24) == 0) ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+            if (version != VERSION || type != BufferedImage.TYPE_INT_ARGB)
+                throw new IOException ("Unsupported raster file version " + version + ", type " + type + ": " + file);
+            if (width < 1 || height < 1 || (long) width * height > Integer.MAX_VALUE
+                || channel.size() < HEADER_BYTES + 4L * width * height)
+                throw new IOException ("Raster file is cut short or damaged: " + file);
+
+            if (!canMap)
+            {
+                // Read-only file: copy it into a scratch file that can be edited
+                return MappedImage.copy (MappedImage.map (channel, HEADER_BYTES, width, height,
+                    FileChannel.MapMode.READ_ONLY, order));
+            }
+            return MappedImage.map (channel, HEADER_BYTES, width, height,
+                writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.PRIVATE, order);
+        }
+    }
+
+    /**
+     * Checks whether a file starts like a raster file.
+     *
+     * @param file  The file to look at
+     * @return boolean  True if it has a raster file header
+     */
+    public static boolean isRasterFile (File file)
+    {
+        if (!file.isFile())
+            return false;
+        try (FileChannel channel = FileChannel.open (file.toPath(), StandardOpenOption.READ))
+        {
+            ByteBuffer header = ByteBuffer.allocate (MAGIC.length);
+            channel.read (header);
+            header.flip();
+            return isHeader (header);
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    private static boolean isHeader (ByteBuffer header)
+    {
+        if (header.remaining() < MAGIC.length)
+            return false;
+        for (int i = 0; i < MAGIC.length; i++)
+        {
+            if (header.get (i) != MAGIC[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Makes an empty scratch file in the same folder as file, so it can be moved over
+     * file without copying.
+     */
+    private static Path scratchFile (File file) throws IOException
+    {
+        Path folder = file.getAbsoluteFile().toPath().getParent();
+        while (true)
+        {
+            // Not Files.createTempFile(), which makes files only their owner can read
+            Path scratch = folder.resolve ("." + file.getName() + "." + Long.toHexString (RANDOM.nextLong()) + ".tmp");
+            try
+            {
+                return Files.createFile (scratch);
+            }
+            catch (FileAlreadyExistsException e)
+            {
+                // Try another name
+            }
+        }
+    }
+
+    /**
+     * Moves a finished scratch file over file in one step, so anything that has file
+     * open (or mapped) keeps the old contents rather than seeing them change.
+     */
+    private static void moveIntoPlace (Path scratch, File file) throws IOException
+    {
+        try
+        {
+            Files.move (scratch, file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            Files.move (scratch, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void writeHeader (FileChannel channel, int width, int height) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate (HEADER_BYTES);  // Big-endian, zeros after the fields
+        header.put (MAGIC);
+        header.putInt (VERSION);
+        header.putInt (width);
+        header.putInt (height);
+        header.putInt (BufferedImage.TYPE_INT_ARGB);
+        header.putInt ((ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN) ? 0 : 1);
+        header.clear();
+        channel.position (0);
+        while (header.hasRemaining())
+        {
+            channel.write (header);
+        }
+    }
+}
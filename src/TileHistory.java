@@ -0,0 +1,314 @@
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Undo history that splits the image into square tiles and only keeps a new copy
+ * of the tiles an edit actually changed. A state whose tile is the same as in the
+ * state before it just points at the same array (copy-on-write), so a small edit
+ * on a huge image only costs the tiles it touched.
+ * <p>
+ * The history has a memory budget. When the tiles kept go over it, states that
+ * could be redone are dropped first, newest first, and then the oldest states, until
+ * it fits again (the current state is always kept).
+ * Undo and redo only write back the tiles that differ between the two states.
+ * <p>
+ * Tiles hold ARGB pixels, so images that round the colours they store (grey or
+ * premultiplied images) come back the way setRGB() would store them.
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public class TileHistory implements EditHistory
+{
+    private static final int TILE_SIZE = 128;  // Width and height of a tile, in pixels
+
+    private final List<State> states = new ArrayList<State>();  // Oldest first
+    private int current;  // Index of the state that matches the image, later states can be redone
+
+    private long memoryBudget;  // Most bytes of tiles to keep
+    private long memoryUsed;    // Bytes of tiles kept right now
+
+    private int width;
+    private int height;
+    private int tilesAcross;
+    private int tilesDown;
+
+    /**
+     * Construct a TileHistory that may use up to a quarter of the maximum heap.
+     */
+    public TileHistory ()
+    {
+        this (Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /**
+     * Construct a TileHistory with a memory budget.
+     *
+     * @param memoryBudget  Most bytes of pixel data to keep
+     */
+    public TileHistory (long memoryBudget)
+    {
+        this.memoryBudget = memoryBudget;
+    }
+
+    public synchronized void reset (BufferedImage bi)
+    {
+        states.clear();
+        current = 0;
+        memoryUsed = 0;
+        width = bi.getWidth();
+        height = bi.getHeight();
+        tilesAcross = (width + TILE_SIZE - 1) / TILE_SIZE;
+        tilesDown = (height + TILE_SIZE - 1) / TILE_SIZE;
+
+        states.add (snapshot (bi, null));
+        evict();
+    }
+
+    public synchronized void commit (BufferedImage bi, Edit edit)
+    {
+        if (states.isEmpty() || bi.getWidth() != width || bi.getHeight() != height)
+        {
+            reset (bi);  // Nothing to share tiles with
+            return;
+        }
+
+        // Undone states can't be redone any more. Their tiles were only ever used by them.
+        while (states.size() - 1 > current)
+        {
+            memoryUsed -= states.remove (states.size() - 1).ownedBytes;
+        }
+
+        states.add (snapshot (bi, states.get (current)));
+        current++;
+        evict();
+    }
+
+    public synchronized boolean undo (BufferedImage bi)
+    {
+        if (current == 0)
+            return false;
+
+        restore (bi, states.get (current), states.get (current - 1));
+        current--;
+        return true;
+    }
+
+    public synchronized boolean redo (BufferedImage bi)
+    {
+        if (current >= states.size() - 1)
+            return false;
+
+        restore (bi, states.get (current), states.get (current + 1));
+        current++;
+        return true;
+    }
+
+    public synchronized void revert (BufferedImage bi)
+    {
+        if (states.isEmpty())
+            return;
+        State target = states.get (current);
+        restore (bi, new State (target.tiles.length), target);  // Every tile differs from an empty state
+    }
+
+    /**
+     * @return int  Number of edits that can be undone
+     */
+    public synchronized int getUndoCount ()
+    {
+        return current;
+    }
+
+    /**
+     * @return int  Number of undone edits that can be redone
+     */
+    public synchronized int getRedoCount ()
+    {
+        return Math.max (0, states.size() - 1 - current);
+    }
+
+    /**
+     * @return long Bytes of pixel data kept by the history
+     */
+    public synchronized long getMemoryUsed ()
+    {
+        return memoryUsed;
+    }
+
+    /**
+     * @return long Most bytes of pixel data the history will keep
+     */
+    public synchronized long getMemoryBudget ()
+    {
+        return memoryBudget;
+    }
+
+    /**
+     * Changes the memory budget, dropping states straight away (redo states first, then
+     * the oldest) if they no longer fit.
+     *
+     * @param memoryBudget  Most bytes of pixel data to keep
+     */
+    public synchronized void setMemoryBudget (long memoryBudget)
+    {
+        this.memoryBudget = memoryBudget;
+        evict();
+    }
+
+    /**
+     * Copies the tiles of the image that differ from previous (all of them if previous
+     * is null) and shares the rest.
+     */
+    private State snapshot (BufferedImage bi, State previous)
+    {
+        State state = new State (tilesAcross * tilesDown);
+        BandExecutor.run (tilesDown, (long) width * TILE_SIZE, (start, end) -> {
+            int[] band = new int[width * TILE_SIZE];  // One row of tiles
+            int[] row = new int[width];
+            for (int ty = start; ty < end; ty++)
+            {
+                int y0 = ty * TILE_SIZE;
+                int rows = Math.min (TILE_SIZE, height - y0);
+                for (int r = 0; r < rows; r++)
+                {
+                    PixelAccess.readRow (bi, y0 + r, row);
+                    System.arraycopy (row, 0, band, r * width, width);
+                }
+
+                for (int tx = 0; tx < tilesAcross; tx++)
+                {
+                    int index = ty * tilesAcross + tx;
+                    int x0 = tx * TILE_SIZE;
+                    int columns = Math.min (TILE_SIZE, width - x0);
+                    if (previous != null && sameTile (band, x0, columns, rows, previous.tiles[index]))
+                    {
+                        state.tiles[index] = previous.tiles[index];  // Unchanged, share it
+                    }
+                    else
+                    {
+                        int[] tile = new int[columns * rows];
+                        for (int r = 0; r < rows; r++)
+                        {
+                            System.arraycopy (band, r * width + x0, tile, r * columns, columns);
+                        }
+                        state.tiles[index] = tile;
+                    }
+                }
+            }
+        });
+
+        // Count the tiles this state added
+        for (int i = 0; i < state.tiles.length; i++)
+        {
+            if (previous == null || state.tiles[i] != previous.tiles[i])
+                state.ownedBytes += 4L * state.tiles[i].length;
+        }
+        memoryUsed += state.ownedBytes;
+        return state;
+    }
+
+    /**
+     * Checks whether a tile-sized area of a band of rows holds the same pixels as a tile.
+     */
+    private boolean sameTile (int[] band, int x0, int columns, int rows, int[] tile)
+    {
+        for (int r = 0; r < rows; r++)
+        {
+            int b = r * width + x0;
+            int t = r * columns;
+            for (int c = 0; c < columns; c++)
+            {
+                if (band[b + c] != tile[t + c])
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the tiles of target that differ from shown back into the image.
+     */
+    private void restore (BufferedImage bi, State shown, State target)
+    {
+        int[] pixels = PixelAccess.argbPixels (bi);
+        BandExecutor.run (tilesDown, (long) width * TILE_SIZE, (start, end) -> {
+            int[] row = new int[width];
+            for (int ty = start; ty < end; ty++)
+            {
+                boolean changed = false;
+                for (int tx = 0; tx < tilesAcross; tx++)
+                {
+                    int index = ty * tilesAcross + tx;
+                    changed |= shown.tiles[index] != target.tiles[index];
+                }
+                if (!changed)
+                    continue;  // Nothing in this row of tiles was edited
+
+                int y0 = ty * TILE_SIZE;
+                int rows = Math.min (TILE_SIZE, height - y0);
+                for (int r = 0; r < rows; r++)
+                {
+                    int y = y0 + r;
+                    if (pixels == null)
+                        PixelAccess.readRow (bi, y, row);
+                    for (int tx = 0; tx < tilesAcross; tx++)
+                    {
+                        int index = ty * tilesAcross + tx;
+                        if (shown.tiles[index] == target.tiles[index])
+                            continue;
+                        int x0 = tx * TILE_SIZE;
+                        int columns = Math.min (TILE_SIZE, width - x0);
+                        if (pixels != null)
+                            System.arraycopy (target.tiles[index], r * columns, pixels, y * width + x0, columns);
+                        else
+                            System.arraycopy (target.tiles[index], r * columns, row, x0, columns);
+                    }
+                    if (pixels == null)
+                        PixelAccess.writeRow (bi, y, row);
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the states that could be redone (newest first) until the tiles fit in the
+     * memory budget, then the oldest states if it still doesn't fit.
+     */
+    private void evict ()
+    {
+        while (memoryUsed > memoryBudget && states.size() - 1 > current)
+        {
+            memoryUsed -= states.remove (states.size() - 1).ownedBytes;
+        }
+        while (memoryUsed > memoryBudget && current > 0)
+        {
+            current--;
+            State oldest = states.remove (0);
+            State next = states.get (0);
+            for (int i = 0; i < oldest.tiles.length; i++)
+            {
+                long bytes = 4L * oldest.tiles[i].length;
+                if (next.tiles[i] == oldest.tiles[i])
+                    next.ownedBytes += bytes;  // Still in use, the next state looks after it now
+                else
+                    memoryUsed -= bytes;
+            }
+        }
+    }
+
+    /**
+     * The tiles of one state of the image, in rows of tiles from the top left.
+     */
+    private static class State
+    {
+        final int[][] tiles;
+        long ownedBytes;  // Bytes of the tiles that first appeared in this state
+
+        State (int tileCount)
+        {
+            tiles = new int[tileCount][];
+        }
+    }
+}
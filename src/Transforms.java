@@ -0,0 +1,490 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.io.UncheckedIOException;
+
+/**
+ * Flips, rotations and transposes of whole images.
+ * <p>
+ * Flips and the half turn keep the image's size, so they are done in place: rows
+ * are reversed, or swapped with the row the same distance from the other edge, and
+ * no pixels are copied anywhere else. Quarter turns and transposes swap the width
+ * and height, so they make exactly one new image, laid out like the old one (an
+ * 8-bit grey image stays one byte a pixel, say). They walk the image in small
+ * square tiles, reading a strip of rows and writing each tile into the new image a
+ * column at a time: a tile fits in the processor's cache, so neither image is read
+ * or written in a cache-missing zig-zag. Everything runs in bands of rows on every
+ * core (see BandExecutor).
+ * <p>
+ * orient() turns a photo the right way up from its EXIF orientation (1 to 8).
+ *
+ * @author David Yao
+ * @version May 2018
+ */
+public class Transforms
+{
+    private static final int TILE = 64;  // Tile side, in pixels (64 x 64 ints is 16 KB)
+
+    /**
+     * Mirrors the image left to right, in place.
+     *
+     * @param bi    The BufferedImage (passed by reference) to change.
+     */
+    public static void flipHorizontal (BufferedImage bi)
+    {
+        flipHorizontal (bi, null);
+    }
+
+    /**
+     * Mirrors the image left to right, in place, running afterMove on every row once it
+     * has been moved (Processor uses this to round see-through pixels like it used to).
+     *
+     * @param bi        The BufferedImage (passed by reference) to change.
+     * @param afterMove Applied to each row after it is flipped, or null
+     */
+    static void flipHorizontal (BufferedImage bi, PixelOp afterMove)
+    {
+        int width = bi.getWidth();
+        int[] pixels = PixelAccess.intPixels (bi);
+        BandExecutor.run (bi.getHeight(), width, (start, end) -> {
+            if (pixels != null)
+            {
+                // Reverse each row right inside the image's own array
+                for (int y = start; y < end; y++)
+                {
+                    reverse (pixels, y * width, width);
+                    if (afterMove != null)
+                        afterMove.applyRow (pixels, y * width, width);
+                }
+            }
+            else
+            {
+                int[] row = new int[width];
+                for (int y = start; y < end; y++)
+                {
+                    PixelAccess.readRow (bi, y, row);
+                    reverse (row, 0, width);  // Pixels that started on the left now end up on the right
+                    if (afterMove != null)
+                        afterMove.applyRow (row, 0, width);
+                    PixelAccess.writeRow (bi, y, row);
+                }
+            }
+        });
+    }
+
+    /**
+     * Mirrors the image top to bottom, in place.
+     *
+     * @param bi    The BufferedImage (passed by reference) to change.
+     */
+    public static void flipVertical (BufferedImage bi)
+    {
+        flipVertical (bi, null);
+    }
+
+    /**
+     * Mirrors the image top to bottom, in place, running afterMove on every row once it
+     * has been moved.
+     *
+     * @param bi        The BufferedImage (passed by reference) to change.
+     * @param afterMove Applied to each row after it is moved, or null
+     */
+    static void flipVertical (BufferedImage bi, PixelOp afterMove)
+    {
+        swapRows (bi, false, afterMove);
+    }
+
+    /**
+     * Turns the image upside down (a half turn), in place.
+     *
+     * @param bi    The BufferedImage (passed by reference) to change.
+     */
+    public static void rotate180 (BufferedImage bi)
+    {
+        swapRows (bi, true, null);
+    }
+
+    /**
+     * Turns the image a quarter turn clockwise.
+     *
+     * @param bi    The BufferedImage to turn (not changed)
+     * @return BufferedImage    A new image, bi.getHeight() wide and bi.getWidth() high
+     */
+    public static BufferedImage rotate90 (BufferedImage bi)
+    {
+        return turn (bi, false, true);
+    }
+
+    /**
+     * Turns the image a quarter turn anticlockwise.
+     *
+     * @param bi    The BufferedImage to turn (not changed)
+     * @return BufferedImage    A new image, bi.getHeight() wide and bi.getWidth() high
+     */
+    public static BufferedImage rotate270 (BufferedImage bi)
+    {
+        return turn (bi, true, false);
+    }
+
+    /**
+     * Mirrors the image across the line from its top left to its bottom right corner,
+     * so row y becomes column y.
+     *
+     * @param bi    The BufferedImage to transpose (not changed)
+     * @return BufferedImage    A new image, bi.getHeight() wide and bi.getWidth() high
+     */
+    public static BufferedImage transpose (BufferedImage bi)
+    {
+        return turn (bi, false, false);
+    }
+
+    /**
+     * Mirrors the image across the line from its top right to its bottom left corner.
+     *
+     * @param bi    The BufferedImage to transverse (not changed)
+     * @return BufferedImage    A new image, bi.getHeight() wide and bi.getWidth() high
+     */
+    public static BufferedImage transverse (BufferedImage bi)
+    {
+        return turn (bi, true, true);
+    }
+
+    /**
+     * Turns an image the right way up, given the orientation its camera recorded in
+     * the EXIF data (1 is already upright, 2 to 8 are the flips and turns that undo).
+     * Orientations 2 to 4 are fixed in place; 5 to 8 swap the width and height, so a
+     * new image is returned.
+     *
+     * @param bi            The BufferedImage to turn (changed for orientations 2 to 4)
+     * @param orientation   The EXIF orientation, 1 to 8
+     * @return BufferedImage    The upright image: bi itself, or a new image
+     */
+    public static BufferedImage orient (BufferedImage bi, int orientation)
+    {
+        switch (orientation)
+        {
+            case 1:
+                return bi;
+            case 2:
+                flipHorizontal (bi);
+                return bi;
+            case 3:
+                rotate180 (bi);
+                return bi;
+            case 4:
+                flipVertical (bi);
+                return bi;
+            case 5:
+                return transpose (bi);
+            case 6:
+                return rotate90 (bi);
+            case 7:
+                return transverse (bi);
+            case 8:
+                return rotate270 (bi);
+            default:
+                throw new IllegalArgumentException ("EXIF orientation must be 1 to 8: " + orientation);
+        }
+    }
+
+    /**
+     * Swaps each row in the top half with the matching row in the bottom half, also
+     * reversing both if mirror is true (which makes it a half turn).
+     */
+    private static void swapRows (BufferedImage bi, boolean mirror, PixelOp afterMove)
+    {
+        int width = bi.getWidth();
+        int height = bi.getHeight();
+        int[] pixels = PixelAccess.intPixels (bi);
+
+        // Swap the top and bottom rows, working towards the middle. Each band swaps its own pairs of rows.
+        BandExecutor.run ((height + 1) / 2, 2L * width, (start, end) -> {
+            int[] topRow = new int[width];
+            int[] bottomRow = new int[width];
+            for (int top = start; top < end; top++)
+            {
+                int bottom = height - 1 - top;
+                if (pixels != null)
+                {
+                    int topStart = top * width;
+                    int bottomStart = bottom * width;
+                    if (mirror)
+                    {
+                        if (bottom == top)
+                        {
+                            reverse (pixels, topStart, width);
+                        }
+                        else
+                        {
+                            // Pixel x of the top row changes places with pixel width - 1 - x of the bottom row
+                            for (int x = 0, mirrored = bottomStart + width - 1; x < width; x++, mirrored--)
+                            {
+                                int temp = pixels[topStart + x];
+                                pixels[topStart + x] = pixels[mirrored];
+                                pixels[mirrored] = temp;
+                            }
+                        }
+                    }
+                    else
+                    {
+                        System.arraycopy (pixels, topStart, topRow, 0, width);
+                        System.arraycopy (pixels, bottomStart, pixels, topStart, width);
+                        System.arraycopy (topRow, 0, pixels, bottomStart, width);
+                    }
+                    if (afterMove != null)
+                    {
+                        afterMove.applyRow (pixels, topStart, width);
+                        if (bottom != top)
+                            afterMove.applyRow (pixels, bottomStart, width);
+                    }
+                }
+                else
+                {
+                    PixelAccess.readRow (bi, top, topRow);
+                    PixelAccess.readRow (bi, bottom, bottomRow);
+                    if (mirror)
+                    {
+                        reverse (topRow, 0, width);
+                        reverse (bottomRow, 0, width);
+                    }
+                    if (afterMove != null)
+                    {
+                        afterMove.applyRow (topRow, 0, width);
+                        afterMove.applyRow (bottomRow, 0, width);
+                    }
+                    PixelAccess.writeRow (bi, top, bottomRow);
+                    PixelAccess.writeRow (bi, bottom, topRow);
+                }
+            }
+        });
+    }
+
+    /**
+     * Copies the image into a new one with the width and height swapped. Column x of
+     * bi becomes row x of the new image (row width - 1 - x if flipColumns), and row y
+     * becomes column y (column height - 1 - y if flipRows).
+     */
+    private static BufferedImage turn (BufferedImage bi, boolean flipColumns, boolean flipRows)
+    {
+        int width = bi.getWidth();
+        int height = bi.getHeight();
+        Metrics.Sample sample = Metrics.start ("turn");
+
+        // Raw ints move as they are between two TYPE_INT_RGB or TYPE_INT_ARGB images
+        int[] source = (bi.getType() == BufferedImage.TYPE_INT_RGB) ? PixelAccess.intPixels (bi) : PixelAccess.argbPixels (bi);
+        if (source == null && !MappedImage.isMapped (bi))
+        {
+            BufferedImage turned = turnElements (bi, flipColumns, flipRows);  // Any other layout, kept as it is
+            sample.stop ((long) width * height);
+            return turned;
+        }
+        BufferedImage turned;
+        if (MappedImage.isMapped (bi))
+        {
+            try
+            {
+                turned = MappedImage.create (height, width);  // Keep big images off the heap
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException (e);
+            }
+        }
+        else
+        {
+            turned = new BufferedImage (height, width, bi.getType());
+        }
+        int[] target = PixelAccess.intPixels (turned);  // null for a mapped image
+        MappedImage.PixelBuffer mapped = (target == null) ? (MappedImage.PixelBuffer) turned.getRaster().getDataBuffer() : null;
+
+        // Each band is a strip of TILE rows of bi, which become TILE columns of the new image
+        int strips = (height + TILE - 1) / TILE;
+        BandExecutor.run (strips, (long) TILE * width, (start, end) -> {
+            int[] strip = (source == null) ? new int[TILE * width] : null;
+            int[] row = (source == null) ? new int[width] : null;
+            int[] piece = (target == null) ? new int[TILE] : null;
+            for (int s = start; s < end; s++)
+            {
+                int y0 = s * TILE;
+                int rows = Math.min (TILE, height - y0);
+                int[] from = source;
+                int fromStart = y0 * width;
+                if (source == null)
+                {
+                    for (int y = 0; y < rows; y++)
+                    {
+                        PixelAccess.readRow (bi, y0 + y, row);
+                        System.arraycopy (row, 0, strip, y * width, width);
+                    }
+                    from = strip;
+                    fromStart = 0;
+                }
+                // The rows of this strip land in columns firstColumn to firstColumn + rows - 1
+                int firstColumn = flipRows ? height - y0 - rows : y0;
+                for (int x0 = 0; x0 < width; x0 += TILE)
+                {
+                    int x1 = Math.min (width, x0 + TILE);
+                    for (int x = x0; x < x1; x++)
+                    {
+                        int newRow = flipColumns ? width - 1 - x : x;
+                        int[] to = (target != null) ? target : piece;
+                        int toStart = (target != null) ? newRow * height + firstColumn : 0;
+                        if (flipRows)
+                        {
+                            for (int y = 0, i = fromStart + (rows - 1) * width + x; y < rows; y++, i -= width)
+                            {
+                                to[toStart + y] = from[i];
+                            }
+                        }
+                        else
+                        {
+                            for (int y = 0, i = fromStart + x; y < rows; y++, i += width)
+                            {
+                                to[toStart + y] = from[i];
+                            }
+                        }
+                        if (mapped != null)
+                            mapped.write (newRow * height + firstColumn, piece, rows);
+                    }
+                }
+            }
+        });
+        sample.stop ((long) width * height);
+        return turned;
+    }
+
+    /**
+     * Does what turn() does for an image that isn't made of ints, moving each pixel's
+     * data elements (three bytes for TYPE_3BYTE_BGR, one for a grey image) without
+     * changing them. The new image has the same ColorModel and raster layout.
+     */
+    private static BufferedImage turnElements (BufferedImage bi, boolean flipColumns, boolean flipRows)
+    {
+        int width = bi.getWidth();
+        int height = bi.getHeight();
+        WritableRaster from = bi.getRaster();
+        WritableRaster to = from.createCompatibleWritableRaster (height, width);
+        ColorModel cm = bi.getColorModel();
+        BufferedImage turned = new BufferedImage (cm, to, cm.isAlphaPremultiplied(), null);
+        int elements = from.getNumDataElements();  // Array entries per pixel
+        byte[] source = PixelAccess.bytePixels (bi);
+        byte[] target = (source != null) ? PixelAccess.bytePixels (turned) : null;
+
+        int strips = (height + TILE - 1) / TILE;
+        BandExecutor.run (strips, (long) TILE * width, (start, end) -> {
+            if (target != null)
+            {
+                // Straight between the two arrays, like turn() does with ints
+                for (int s = start; s < end; s++)
+                {
+                    int y0 = s * TILE;
+                    int rows = Math.min (TILE, height - y0);
+                    int rowStep = flipColumns ? -height * elements : height * elements;
+                    for (int x0 = 0; x0 < width; x0 += TILE)
+                    {
+                        int x1 = Math.min (width, x0 + TILE);
+                        // Row y of the strip lands in column column of the new image
+                        for (int y = 0; y < rows; y++)
+                        {
+                            int column = flipRows ? height - 1 - (y0 + y) : y0 + y;
+                            int read = ((y0 + y) * width + x0) * elements;
+                            int write = ((flipColumns ? width - 1 - x0 : x0) * height + column) * elements;
+                            if (elements == 3)
+                            {
+                                // Written out, as it's by far the most common layout
+                                for (int x = x0; x < x1; x++, read += 3, write += rowStep)
+                                {
+                                    target[write] = source[read];
+                                    target[write + 1] = source[read + 1];
+                                    target[write + 2] = source[read + 2];
+                                }
+                            }
+                            else
+                            {
+                                for (int x = x0; x < x1; x++, write += rowStep)
+                                {
+                                    for (int e = 0; e < elements; e++)
+                                    {
+                                        target[write + e] = source[read++];
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+                return;
+            }
+
+            Object strip = null;
+            Object tile = null;
+            for (int s = start; s < end; s++)
+            {
+                int y0 = s * TILE;
+                int rows = Math.min (TILE, height - y0);
+                strip = from.getDataElements (0, y0, width, rows, strip);
+                if (tile == null)
+                    tile = Array.newInstance (strip.getClass().getComponentType(), TILE * TILE * elements);
+                int firstColumn = flipRows ? height - y0 - rows : y0;
+                for (int x0 = 0; x0 < width; x0 += TILE)
+                {
+                    int x1 = Math.min (width, x0 + TILE);
+                    // Columns x0 to x1 - 1 become rows topRow to topRow + x1 - x0 - 1 of the new image
+                    int topRow = flipColumns ? width - x1 : x0;
+                    for (int x = x0; x < x1; x++)
+                    {
+                        int tileRow = (flipColumns ? width - 1 - x : x) - topRow;
+                        copyColumn (strip, x, width, rows, flipRows, tile, tileRow * rows, elements);
+                    }
+                    to.setDataElements (firstColumn, topRow, rows, x1 - x0, tile);
+                }
+            }
+        });
+        return turned;
+    }
+
+    /**
+     * Copies column x of a strip of rows (width pixels each) into one row of a tile,
+     * starting at pixel tileStart, bottom to top if flip is true.
+     */
+    private static void copyColumn (Object strip, int x, int width, int rows, boolean flip, Object tile, int tileStart,
+        int elements)
+    {
+        int from = ((flip ? rows - 1 : 0) * width + x) * elements;
+        int step = (flip ? -width : width) * elements;  // From one row of the strip to the next
+        int to = tileStart * elements;
+        if (strip instanceof byte[])
+        {
+            byte[] source = (byte[]) strip;
+            byte[] target = (byte[]) tile;
+            for (int y = 0; y < rows; y++, from += step)
+            {
+                for (int e = 0; e < elements; e++)
+                {
+                    target[to++] = source[from + e];
+                }
+            }
+        }
+        else
+        {
+            for (int y = 0; y < rows; y++, from += step, to += elements)
+            {
+                System.arraycopy (strip, from, tile, to, elements);  // Shorts, ints or floats
+            }
+        }
+    }
+
+    /**
+     * Reverses the order of length ints in an array, starting at index start.
+     */
+    static void reverse (int[] pixels, int start, int length)
+    {
+        for (int left = start, right = start + length - 1; left < right; left++, right--)
+        {
+            int temp = pixels [left];
+            pixels [left] = pixels [right];
+            pixels [right] = temp;
+        }
+    }
+}